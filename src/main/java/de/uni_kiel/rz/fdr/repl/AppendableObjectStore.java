@@ -8,7 +8,9 @@ import de.uni_kiel.rz.fdr.repl.error.ObjectStoreInvalidException;
 import java.io.*;
 import java.util.Arrays;
 import java.util.Iterator;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
@@ -21,6 +23,12 @@ class AppendableObjectStore implements Iterator<Serializable>, AutoCloseable {
 
     private enum QUEUE_CONTROL { END }
 
+    // passes through the queue like any other object, so once it is processed, everything before it is on disk
+    private static class FlushMarker implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private final transient CountDownLatch done = new CountDownLatch(1);
+    }
+
     private final File path;
     private FileInputStream infile;
     private GZIPInputStream ingz;
@@ -28,7 +36,7 @@ class AppendableObjectStore implements Iterator<Serializable>, AutoCloseable {
     private FileOutputStream outfile;
     private GZIPOutputStream outgz;
     private DataOutputStream out;
-    private LinkedBlockingQueue<Serializable> queue;
+    private volatile LinkedBlockingQueue<Serializable> queue;
     private Thread worker;
     private Integer nextLen = null;
     
@@ -64,6 +72,10 @@ class AppendableObjectStore implements Iterator<Serializable>, AutoCloseable {
         while (true) {
             try {
                 Serializable object = queue.take();
+                if (object instanceof FlushMarker marker) {
+                    marker.done.countDown();
+                    continue;
+                }
                 if (object == QUEUE_CONTROL.END) {
                     if (TRACE || TRACE_JOBS) REPLLog.trace("queueWorker {}: END command received", path);
                     if (!queue.isEmpty()) REPLLog.log(new REPLLogEntry(REPLLogEntry.LOG_LEVEL.WARN, "queueWorker {}: there were {} remaining items after termination", path, queue.size()), INTERNAL_LOG_TARGETS);
@@ -94,6 +106,27 @@ class AppendableObjectStore implements Iterator<Serializable>, AutoCloseable {
         queue.put(object);
     }
 
+    // waits until all objects written so far have reached the file, so that it can be read up to that point
+    public void flush() throws InterruptedException {
+        FlushMarker marker = new FlushMarker();
+        Thread w;
+        synchronized (this) {
+            w = worker;
+            // a closed store has already written everything
+            if (w == null) return;
+            queue.put(marker);
+        }
+        while (!marker.done.await(100, TimeUnit.MILLISECONDS)) {
+            if (!w.isAlive()) return;
+        }
+    }
+
+    // does not synchronize, so that monitoring never waits for a blocked writer
+    public int getQueueLength() {
+        LinkedBlockingQueue<Serializable> q = queue;
+        return q != null ? q.size() : 0;
+    }
+
     @Override
     public synchronized void close() {
         try {
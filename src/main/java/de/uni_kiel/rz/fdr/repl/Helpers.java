@@ -120,6 +120,19 @@ public class Helpers {
         return className.endsWith(PATCHEE_SUFFIX);
     }
 
+    // for settings that are read in static initializers: a bad value must not make the class unusable, so it is reported
+    // on stderr (logging might not be available yet) and the default is used instead
+    public static long longProperty(String name, long defaultValue) {
+        String value = System.getProperty(name);
+        if (value == null) return defaultValue;
+        try {
+            return Long.parseLong(value.strip());
+        } catch (NumberFormatException e) {
+            System.err.println("REPL: ignoring invalid value '" + value + "' of " + name + ", using " + defaultValue);
+            return defaultValue;
+        }
+    }
+
     public static long epochMicros() {
         Instant i = Instant.now();
         return TimeUnit.SECONDS.toMicros(i.getEpochSecond()) + TimeUnit.NANOSECONDS.toMicros(i.getNano());
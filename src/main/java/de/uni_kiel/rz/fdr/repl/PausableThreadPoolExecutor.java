@@ -14,87 +14,225 @@ import java.util.concurrent.locks.ReentrantLock;
 import static de.uni_kiel.rz.fdr.repl.REPLLog.TRACE;
 import static de.uni_kiel.rz.fdr.repl.REPLLog.TRACE_JOBS;
 
+// Concurrency is a permit count: a worker needs a permit to take a task from the queue and returns it after running
+// the task. While the executor is paused or all permits are in use, tasks stay in the queue, so they keep their order and
+// can still be removed from it. The pool only ever grows up to the largest concurrency requested so far, surplus threads
+// simply wait for a permit. This way resizing never terminates threads, which keeps any thread-local state set up by the
+// thread factory.
 class PausableThreadPoolExecutor extends ThreadPoolExecutor {
     private final AtomicInteger pausedThreadCount = new AtomicInteger();
-    private boolean isPaused;
-    private ReentrantLock pauseLock = new ReentrantLock();
-    private Condition unpaused = pauseLock.newCondition();
+    private final PermitQueue queue;
 
-    public PausableThreadPoolExecutor(int poolSize, BlockingQueue<Runnable> workQueue, ThreadFactory threadFactory, String prefix) {
-        super(poolSize, poolSize, 0, TimeUnit.SECONDS, workQueue,
+    public PausableThreadPoolExecutor(int poolSize, ThreadFactory threadFactory, String prefix) {
+        this(poolSize, new PermitQueue(poolSize), threadFactory, prefix);
+    }
+
+    private PausableThreadPoolExecutor(int poolSize, PermitQueue queue, ThreadFactory threadFactory, String prefix) {
+        super(poolSize, poolSize, 0, TimeUnit.SECONDS, queue,
                 threadFactory != null ? new NamedThreadFactory(prefix, threadFactory) : new NamedThreadFactory(prefix));
+        this.queue = queue;
+        // workers that are started for a submitted task run it without taking it from the queue. start them all now,
+        // so that every task goes through the queue.
+        prestartAllCoreThreads();
     }
 
     protected void beforeExecute(Thread t, Runnable r) {
         super.beforeExecute(t, r);
-        pauseLock.lock();
+        if (queue.claim()) return;
+        // the task did not come from the queue (e.g. for a replacement worker), so get a permit now
+        pausedThreadCount.incrementAndGet();
         try {
-            pausedThreadCount.incrementAndGet();
-            while (isPaused) unpaused.await();
+            queue.acquire();
         } catch (InterruptedException ie) {
+            // do not run the task without a permit, this only happens while shutting down
             t.interrupt();
+            throw new RejectedExecutionException("interrupted while waiting for a permit");
         } finally {
             pausedThreadCount.decrementAndGet();
-            pauseLock.unlock();
         }
     }
 
     @Override
     protected void afterExecute(Runnable r, Throwable t) {
         super.afterExecute(r, t);
-        // don't invoke getPoolSize() during shutdown to not interfere
-        if (!isShutdown() && getPoolSize() > getMaximumPoolSize()) {
-            if (Thread.currentThread().getUncaughtExceptionHandler() == null || ! (Thread.currentThread().getUncaughtExceptionHandler() instanceof ReducePoolSizeExceptionHandler)) {
-                Thread.currentThread().setUncaughtExceptionHandler(new ReducePoolSizeExceptionHandler(Thread.currentThread().getUncaughtExceptionHandler()));
+        queue.release();
+    }
+
+    public int getConcurrency() {
+        return queue.getPermits();
+    }
+
+    public void setConcurrency(int concurrency) {
+        if (concurrency < 1) throw new IllegalArgumentException("concurrency must be > 0");
+        synchronized (queue) {
+            if (concurrency > getMaximumPoolSize()) {
+                setMaximumPoolSize(concurrency);
+                setCorePoolSize(concurrency);
+                prestartAllCoreThreads();
+                if (TRACE || TRACE_JOBS) REPLLog.trace("Grew the worker pool to {} threads.", concurrency);
             }
-            throw new ReducePoolSizeException();
+            queue.setPermits(concurrency);
         }
     }
 
     public void pause() {
-        pauseLock.lock();
-        try {
-            isPaused = true;
-        } finally {
-            pauseLock.unlock();
-        }
+        queue.setPaused(true);
     }
 
     public void resume() {
-        pauseLock.lock();
-        try {
-            isPaused = false;
-            unpaused.signalAll();
-        } finally {
-            pauseLock.unlock();
-        }
+        queue.setPaused(false);
     }
 
     public int getWorkingThreadCount() { return Math.max(getActiveCount() - pausedThreadCount.get(), 0); }
 
+    // unlike getWorkingThreadCount(), this does not need the pool's main lock
+    public int getBusyThreadCount() { return queue.getBusy(); }
+
     public void emptyQueue() {
         for (Runnable r : new ArrayList<>(getQueue())) remove(r);
     }
 
-    private static class ReducePoolSizeExceptionHandler implements Thread.UncaughtExceptionHandler {
-        private final Thread.UncaughtExceptionHandler delegate;
-        private ReducePoolSizeExceptionHandler(Thread.UncaughtExceptionHandler delegate) {
-            this.delegate = delegate;
+    // only hands out a task to a worker while the executor is not paused and a permit is available
+    private static class PermitQueue extends LinkedBlockingQueue<Runnable> {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition mayRun = lock.newCondition();
+        // set for a worker that took a task from the queue, until the task starts
+        private final ThreadLocal<Boolean> claimed = ThreadLocal.withInitial(() -> false);
+        private boolean isPaused = false;
+        private int permits;
+        private volatile int busy = 0; // only changed while holding the lock
+
+        PermitQueue(int permits) {
+            this.permits = permits;
+        }
+
+        @Override
+        public boolean offer(Runnable r) {
+            boolean added = super.offer(r);
+            if (added) signal();
+            return added;
+        }
+
+        @Override
+        public boolean offer(Runnable r, long timeout, TimeUnit unit) throws InterruptedException {
+            boolean added = super.offer(r, timeout, unit);
+            if (added) signal();
+            return added;
         }
 
         @Override
-        public void uncaughtException(Thread t, Throwable e) {
-            if (e instanceof ReducePoolSizeException) {
-                if (TRACE || TRACE_JOBS) REPLLog.trace("Terminated a worker thread to accommodate lowered pool size.");
-                return;
+        public void put(Runnable r) throws InterruptedException {
+            super.put(r);
+            signal();
+        }
+
+        @Override
+        public Runnable take() throws InterruptedException {
+            lock.lockInterruptibly();
+            try {
+                while (true) {
+                    Runnable r = next();
+                    if (r != null) return r;
+                    mayRun.await();
+                }
+            } finally {
+                lock.unlock();
             }
-            if (delegate != null) delegate.uncaughtException(t, e);
         }
-    }
 
-    private static class ReducePoolSizeException extends RuntimeException {
-        private ReducePoolSizeException () {
-            super();
+        @Override
+        public Runnable poll(long timeout, TimeUnit unit) throws InterruptedException {
+            long nanos = unit.toNanos(timeout);
+            lock.lockInterruptibly();
+            try {
+                while (true) {
+                    Runnable r = next();
+                    if (r != null) return r;
+                    if (nanos <= 0) return null;
+                    nanos = mayRun.awaitNanos(nanos);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // must hold the lock
+        private Runnable next() {
+            if (isPaused || busy >= permits) return null;
+            Runnable r = super.poll();
+            if (r != null) {
+                busy++;
+                claimed.set(true);
+            }
+            return r;
+        }
+
+        boolean claim() {
+            if (!claimed.get()) return false;
+            claimed.set(false);
+            return true;
+        }
+
+        void acquire() throws InterruptedException {
+            lock.lockInterruptibly();
+            try {
+                while (isPaused || busy >= permits) mayRun.await();
+                busy++;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void release() {
+            lock.lock();
+            try {
+                busy--;
+                mayRun.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        int getBusy() {
+            return busy;
+        }
+
+        int getPermits() {
+            lock.lock();
+            try {
+                return permits;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void setPermits(int permits) {
+            lock.lock();
+            try {
+                this.permits = permits;
+                mayRun.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void setPaused(boolean paused) {
+            lock.lock();
+            try {
+                isPaused = paused;
+                mayRun.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void signal() {
+            lock.lock();
+            try {
+                mayRun.signalAll();
+            } finally {
+                lock.unlock();
+            }
         }
     }
 
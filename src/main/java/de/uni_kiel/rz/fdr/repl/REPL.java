@@ -115,6 +115,8 @@ public class REPL {
         if (!startupCommands.isEmpty()) gs.addDefaultScript(startupCommandsToTempfile());
 
         gs.start(getWorkDir(), sessionListeners);
+
+        if (REPLMetrics.PORT > 0) REPLMetrics.start(REPLMetrics.LISTEN_ADDR, REPLMetrics.PORT);
     }
 
     /**
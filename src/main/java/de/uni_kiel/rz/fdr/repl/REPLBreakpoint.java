@@ -42,6 +42,7 @@ public class REPLBreakpoint {
     private static final Lock w = lock.writeLock();
     private static final LinkedHashMap<String, Pattern> disabledPatterns = new LinkedHashMap<>();
     private static boolean overflowWarning = false;
+    private static volatile int waiting = 0; // breakpoints.size(), readable without the lock
 
     /**
      * Pauses the current thread and triggers a breakpoint in the REPL.
@@ -106,6 +107,7 @@ public class REPLBreakpoint {
             }
             bp.setKey(count++);
             breakpoints.put(bp.getKey(), bp);
+            waiting = breakpoints.size();
         } finally {
             w.unlock();
         }
@@ -116,6 +118,7 @@ public class REPLBreakpoint {
         w.lock();
         try {
             breakpoints.remove(bp.getKey());
+            waiting = breakpoints.size();
         } finally {
             w.unlock();
         }
@@ -218,6 +221,14 @@ public class REPLBreakpoint {
         }
     }
 
+    /**
+     * Get the number of waiting breakpoints without waiting for other threads that trigger or resume breakpoints.
+     * @return The number of currently triggered breakpoint instances
+     */
+    public static int countWaiting() {
+        return waiting;
+    }
+
     /**
      * Retrieve a single breakpoint instance by key.
      * @param key The instance's key
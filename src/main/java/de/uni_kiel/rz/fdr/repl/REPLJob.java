@@ -23,6 +23,7 @@ import java.util.function.Supplier;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import static de.uni_kiel.rz.fdr.repl.REPLLog.*;
 
@@ -183,6 +184,29 @@ public class REPLJob implements Serializable {
         }
     }
 
+    /**
+     * A record of a job's throughput and backlog for monitoring. It is gathered without taking any of the job's locks,
+     * so the individual values may stem from slightly different instants.
+     * @param key The job's key
+     * @param name The job's name
+     * @param active Whether the job has been started and is not yet done
+     * @param paused Whether the job is paused or pausing
+     * @param cancelled Whether the job is cancelled or cancelling
+     * @param totalInputs Number of total inputs that the job was started with
+     * @param remainingInputs Number of inputs that have not yet been processed
+     * @param success Number of inputs that were successfully processed (excluding skipped successful inputs when resuming)
+     * @param skippedSuccess Number of inputs that were skipped when resuming a job because they were successful during an earlier run
+     * @param errors Number of inputs that raised an exception during processing (excluding skipped errors when resuming)
+     * @param skippedErrors Number of inputs that were skipped when resuming a job because they were not successful during an earlier run
+     * @param concurrency The job's configured number of worker threads
+     * @param activeThreads Number of worker threads that are currently processing inputs
+     * @param queueLength Number of inputs that are queued for the workers
+     * @param storeQueueLength Number of results that are queued for writing to the job's state file
+     * @param inputsPerSecond Average number of processed inputs per second while the job was not paused
+     * @param etaSeconds Number of remaining seconds until estimated time of completion, if known
+     */
+    public record JobMetrics(String key, String name, boolean active, boolean paused, boolean cancelled, int totalInputs, int remainingInputs, int success, int skippedSuccess, int errors, int skippedErrors, int concurrency, int activeThreads, int queueLength, int storeQueueLength, double inputsPerSecond, Long etaSeconds) {}
+
     /**
      * The different event types that a {@code JobEvent} handler might receive.
      */
@@ -286,6 +310,7 @@ public class REPLJob implements Serializable {
     @Serial
     private static final long serialVersionUID = 1L;
     private static final int MAX_PARAMS_QUEUED = 100;
+    private static final int JOB_LOG_SIZE = Math.max(1, (int) Helpers.longProperty("CAU.REPL.Job.LogSize", 1000));
 
     private static final DateTimeFormatter TIMESTAMP_FORMAT = DateTimeFormatter.ofPattern("yyyMMdd-HHmmss-nnnnnnnnn");
 
@@ -791,7 +816,7 @@ public class REPLJob implements Serializable {
     /**
      * Internal use only.
      */
-    protected int concurrency;
+    protected volatile int concurrency;
     /**
      * Internal use only.
      */
@@ -814,38 +839,38 @@ public class REPLJob implements Serializable {
      * Internal use only.
      */
     protected final InputResult[] results;
-    /**
-     * Internal use only.
-     */
-    private final ConcurrentLinkedQueue<REPLLogEntry> jobLog = new ConcurrentLinkedQueue<>(); // a wait-free list, ATTENTION: .size() is not O(1)
+    private final transient ArrayDeque<REPLLogEntry> jobLog = new ArrayDeque<>(); // the most recent entries, guarded by itself
+    private transient long jobLogCount = 0; // all entries, including those that were evicted from jobLog
+    private final transient File jobLogFile; // where the evicted entries can be read back from
+    private final transient Object jobLogWriteLock = new Object(); // keeps jobLog and the state file in the same order
     /**
      * Internal use only.
      */
     private REPLLogEntry lastLogEntry = null;
     private final transient AppendableObjectStore objectStore;
-    private transient PausableThreadPoolExecutor executor;
+    private transient volatile PausableThreadPoolExecutor executor;
     private transient Consumer<JobEvent> progressCallback = null;
     private transient Consumer<JobEvent> internalCallback = null;
 
-    // state
-    private transient Integer queuedInput = 0;
-    private transient int queueLength = 0;
-    private transient int remainingInputs = 0;
-    private transient int skippedErrors = 0;
-    private transient int errors = 0;
-    private transient int skippedSuccess = 0;
-    private transient int success = 0;
+    // state, only changed while holding this job's monitor, but volatile so that getMetrics() can do without it
+    private transient volatile Integer queuedInput = 0;
+    private transient volatile int queueLength = 0;
+    private transient volatile int remainingInputs = 0;
+    private transient volatile int skippedErrors = 0;
+    private transient volatile int errors = 0;
+    private transient volatile int skippedSuccess = 0;
+    private transient volatile int success = 0;
     /**
      * Internal use only.
      */
-    private Instant startTimestamp = null;
+    private volatile Instant startTimestamp = null;
     /**
      * Internal use only.
      */
-    private Instant doneTimestamp = null;
-    private transient Instant pausedSince = null;
-    private transient Long pausedMillis = null;
-    private transient Instant cancelledSince = null;
+    private volatile Instant doneTimestamp = null;
+    private transient volatile Instant pausedSince = null;
+    private transient volatile Long pausedMillis = null;
+    private transient volatile Instant cancelledSince = null;
     private transient Integer cancelForceTimeoutSeconds = null;
     private transient CompletableFuture<JobProgress> future = null;
 
@@ -866,8 +891,9 @@ public class REPLJob implements Serializable {
         }
         resetProgress();
 
+        this.jobLogFile = getStateFile();
         try {
-            objectStore = new AppendableObjectStore(getStateFile());
+            objectStore = new AppendableObjectStore(jobLogFile);
             objectStore.writeObject(this);
         } catch (InterruptedException | ObjectStoreInvalidException e) {
             throw new RuntimeException(e);
@@ -897,7 +923,7 @@ public class REPLJob implements Serializable {
                     else result = retryErrors ? null : result;
                     if (result != null) this.results[result.index] = result;
                 } else if (data instanceof REPLLogEntry logEntry) {
-                    this.jobLog.add(logEntry);
+                    addToJobLog(logEntry);
                     if (logEntry.getLevel().compareTo(REPLLogEntry.LOG_LEVEL.DEBUG) > 0) lastLogEntry = logEntry;
                 } else {
                     throw new RuntimeException("entry of unexpected class " + data.getClass() + " in " + path + ", internal error?");
@@ -909,6 +935,7 @@ public class REPLJob implements Serializable {
         if (newKey == null) {
             // for viewing only
             this.resumedKey = null;
+            this.jobLogFile = path;
             objectStore = null;
             queuedInput = null;
             remainingInputs -= success + errors;
@@ -918,11 +945,21 @@ public class REPLJob implements Serializable {
             this.key = newKey;
             this.startTimestamp = null;
             this.doneTimestamp = null;
+            this.jobLogFile = getStateFile();
             try {
-                objectStore = new AppendableObjectStore(getStateFile());
+                objectStore = new AppendableObjectStore(jobLogFile);
                 objectStore.writeObject(this);
-                for (REPLLogEntry logEntry : this.jobLog) objectStore.writeObject(logEntry);
-            } catch (InterruptedException | ObjectStoreInvalidException e) {
+                // copy the complete log, re-reading the old state file if it did not fit into memory
+                if (jobLogCount == jobLog.size()) {
+                    for (REPLLogEntry logEntry : jobLog) objectStore.writeObject(logEntry);
+                } else {
+                    try (AppendableObjectStore in = new AppendableObjectStore(path)) {
+                        while (in.hasNext()) {
+                            if (in.next() instanceof REPLLogEntry logEntry) objectStore.writeObject(logEntry);
+                        }
+                    }
+                }
+            } catch (InterruptedException e) {
                 throw new RuntimeException(e);
             }
         }
@@ -1044,12 +1081,13 @@ public class REPLJob implements Serializable {
 
     private void execute(ThreadFactory threadFactory) throws JobException, InterruptedException {
         if (function == null) throw new JobException("can't execute a job without closure");
-        LinkedBlockingQueue<Runnable> queue = new LinkedBlockingQueue<>();
+        BlockingQueue<Runnable> queue;
         synchronized (this) {
             startTimestamp = Instant.now();
             errors = 0;
             success = 0;
-            executor = new PausableThreadPoolExecutor(concurrency, queue, threadFactory, THREAD_PREFIX + key + " - ");
+            executor = new PausableThreadPoolExecutor(concurrency, threadFactory, THREAD_PREFIX + key + " - ");
+            queue = executor.getQueue();
         }
         Instant pauseNotified = null;
         info("Starting job...");
@@ -1210,6 +1248,36 @@ public class REPLJob implements Serializable {
                 pausedSince == null ? eta : null, pausedSince == null ? etaSeconds : null, threads, future);
     }
 
+    /**
+     * Gets the job's current throughput and backlog. Unlike {@link #getProgress()}, this never waits for the job, so it
+     * is safe to call frequently (e.g. by a monitoring system) while the job is running.
+     * @return The job's current metrics.
+     */
+    public JobMetrics getMetrics() {
+        Instant start = startTimestamp;
+        Instant done = doneTimestamp;
+        Instant paused = pausedSince;
+        Long pausedTotal = pausedMillis;
+        int processed = success + errors;
+        int remaining = remainingInputs;
+        PausableThreadPoolExecutor ex = executor;
+        AppendableObjectStore store = objectStore;
+
+        double perSecond = 0.0d;
+        Long etaSeconds = null;
+        if (start != null && processed > 0) {
+            Instant until = done != null ? done : (paused != null ? paused : Instant.now());
+            long elapsed = ChronoUnit.MILLIS.between(start, until) - (pausedTotal != null ? pausedTotal : 0L);
+            if (elapsed > 0) perSecond = processed * 1000.0d / elapsed;
+            if (done == null && paused == null && perSecond > 0) etaSeconds = Math.round(remaining / perSecond);
+        }
+
+        return new JobMetrics(key, name, JobProgress.isActive(start, done), paused != null, cancelledSince != null,
+                inputs == null ? 1 : inputs.length, remaining, success, skippedSuccess, errors, skippedErrors, concurrency,
+                ex != null ? ex.getBusyThreadCount() : 0, ex != null ? ex.getQueue().size() : 0,
+                store != null ? store.getQueueLength() : 0, perSecond, etaSeconds);
+    }
+
     /**
      * Flag the input item with the specified index for resuming. This makes sure that it will be reprocessed regardless
      * of its previous success. You must call this method before starting the job.
@@ -1338,19 +1406,13 @@ public class REPLJob implements Serializable {
     /**
      * Set the job's concurrency level. This method is safe to use while the job is running, unless you are using
      * {@link REPLJobCallbackAutoTune the Auto Tune feature}. If you reduce a job's
-     * concurrency, your change will take effect gradually as old workers finish their prior input.
+     * concurrency, your change will take effect gradually as old workers finish their prior input. Surplus worker
+     * threads are kept idle and reused if the concurrency is raised again, so changing it does not cause thread churn.
      * @param concurrency The new concurrency level.
      */
     public synchronized void setConcurrency(int concurrency) {
         if (concurrency < 1) throw new IllegalArgumentException("concurrency must be > 0");
-        if (executor != null) {
-            int c = executor.getCorePoolSize();
-            int m = executor.getMaximumPoolSize();
-            if (concurrency > m) executor.setMaximumPoolSize(concurrency);
-            if (concurrency > c) executor.setCorePoolSize(concurrency);
-            if (concurrency < c) executor.setCorePoolSize(concurrency);
-            if (concurrency < m) executor.setMaximumPoolSize(concurrency);
-        }
+        if (executor != null) executor.setConcurrency(concurrency);
         this.concurrency = concurrency;
     }
 
@@ -1420,11 +1482,67 @@ public class REPLJob implements Serializable {
     }
 
     /**
-     * Get the job's private log, which contains messages logged with {@link REPLJob#info(Object...)} and similar methods.
-     * @return The job's private log.
+     * Get the most recent entries of the job's private log, which contains messages logged with
+     * {@link REPLJob#info(Object...)} and similar methods. Only the last {@code CAU.REPL.Job.LogSize} entries are kept in
+     * memory, use {@link #getJobLog(int, Integer, REPLLogEntry.LOG_LEVEL)} to page through the complete log.
+     * @return The most recent entries of the job's private log, in chronological order.
      */
     public List<REPLLogEntry> getJobLog() {
-        return new ArrayList<>(jobLog);
+        synchronized (jobLog) {
+            return new ArrayList<>(jobLog);
+        }
+    }
+
+    /**
+     * Pages through the job's complete private log. Entries that are no longer kept in memory are read back from the
+     * job's state file.
+     * @param offset The number of matching entries to skip.
+     * @param limit The maximum number of entries to return, or {@code null} for no limit.
+     * @param level Only return entries with this log level or above, or {@code null} for all levels.
+     * @return The matching entries, in chronological order.
+     * @throws IOException The state file could not be read.
+     * @throws ObjectStoreInvalidException The state file is corrupted.
+     */
+    public List<REPLLogEntry> getJobLog(int offset, Integer limit, REPLLogEntry.LOG_LEVEL level) throws IOException, ObjectStoreInvalidException {
+        if (offset < 0) throw new IllegalArgumentException("offset must not be negative");
+        if (limit != null && limit < 0) throw new IllegalArgumentException("limit must not be negative");
+        List<REPLLogEntry> recent;
+        long evicted;
+        synchronized (jobLog) {
+            recent = new ArrayList<>(jobLog);
+            evicted = jobLogCount - recent.size();
+        }
+        // the evicted entries might still be waiting in the store's queue
+        AppendableObjectStore store = objectStore;
+        if (evicted > 0 && store != null) {
+            try {
+                store.flush();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted while waiting for the state file", e);
+            }
+        }
+        // the state file is only opened if the page reaches past the entries in memory
+        try (AppendableObjectStore in = evicted > 0 && jobLogFile != null && jobLogFile.isFile() ? new AppendableObjectStore(jobLogFile) : null) {
+            Stream<REPLLogEntry> persisted = in == null ? Stream.empty() : StreamSupport.stream(Spliterators.spliteratorUnknownSize(in, Spliterator.ORDERED), false)
+                    .filter(REPLLogEntry.class::isInstance)
+                    .map(REPLLogEntry.class::cast)
+                    .limit(evicted);
+            Stream<REPLLogEntry> entries = Stream.concat(persisted, recent.stream())
+                    .filter(e -> level == null || e.getLevel().compareTo(level) >= 0)
+                    .skip(offset);
+            return (limit != null ? entries.limit(limit) : entries).toList();
+        }
+    }
+
+    /**
+     * Get the total number of entries in the job's private log, including those that are no longer kept in memory.
+     * @return The number of entries in the job's private log.
+     */
+    public long getJobLogCount() {
+        synchronized (jobLog) {
+            return jobLogCount;
+        }
     }
 
     /**
@@ -1588,11 +1706,25 @@ public class REPLJob implements Serializable {
     }
 
     private void doLog(REPLLogEntry entry) {
-        jobLog.add(entry);
+        // the state file must receive the entries in the same order as jobLog, so that paging can stitch both together.
+        // jobLog itself is not locked while the store blocks, so readers don't have to wait for it.
+        // the entry is kept and serialized later, possibly on another thread: render its arguments now.
+        entry.formattedMessage();
+        synchronized (jobLogWriteLock) {
+            addToJobLog(entry);
+            try {
+                if (objectStore != null) objectStore.writeObject(entry);
+            } catch (AppendableObjectStore.ObjectStoreNotAvailableException | InterruptedException ignore) {}
+        }
         if (entry.getLevel().compareTo(REPLLogEntry.LOG_LEVEL.DEBUG) > 0) lastLogEntry = entry;
-        try {
-            if (objectStore != null) objectStore.writeObject(entry);
-        } catch (AppendableObjectStore.ObjectStoreNotAvailableException | InterruptedException ignore) {}
+    }
+
+    private void addToJobLog(REPLLogEntry entry) {
+        synchronized (jobLog) {
+            if (jobLog.size() >= JOB_LOG_SIZE) jobLog.removeFirst();
+            jobLog.addLast(entry);
+            jobLogCount++;
+        }
     }
 
 
@@ -6,6 +6,7 @@ package de.uni_kiel.rz.fdr.repl;
 import java.util.*;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
+import java.util.function.LongSupplier;
 
 import static de.uni_kiel.rz.fdr.repl.REPLLog.*;
 
@@ -100,6 +101,7 @@ public class REPLJobCallbackAutoTune implements Consumer<REPLJob.JobEvent> {
     private final PriorityQueue<HeapEntry> durationHeap = new PriorityQueue<>();
     private final LinkedList<Integer> toMeasureQueue = new LinkedList<>();
     private final HashMap<Integer, DurationHistory> durationHistories = new HashMap<>();
+    private final LongSupplier nanoClock;
 
 
     /**
@@ -108,9 +110,15 @@ public class REPLJobCallbackAutoTune implements Consumer<REPLJob.JobEvent> {
      * @param maxConcurrency The maximum concurrency level this callback will ever set.
      */
     public REPLJobCallbackAutoTune(int minConcurrency, int maxConcurrency) {
+        this(minConcurrency, maxConcurrency, System::nanoTime);
+    }
+
+    // a replaceable time source, so that simulations can run against a virtual clock
+    REPLJobCallbackAutoTune(int minConcurrency, int maxConcurrency, LongSupplier nanoClock) {
         if (minConcurrency < 1 || minConcurrency > maxConcurrency) throw new IllegalArgumentException("[" + minConcurrency + ", " + maxConcurrency + "] is not a valid concurrency interval");
         this.minConcurrency = minConcurrency;
         this.maxConcurrency = maxConcurrency;
+        this.nanoClock = nanoClock;
     }
 
     /**
@@ -140,7 +148,7 @@ public class REPLJobCallbackAutoTune implements Consumer<REPLJob.JobEvent> {
                 toMeasure = concurrency;
                 measureSampleSize = measureSampleSize(toMeasure, toMeasure, knownOptimumDuration);
                 knownOptimumConcurrency = null;
-                concurrencyStableSince = System.nanoTime();
+                concurrencyStableSince = nanoClock.getAsLong();
                 toMeasureQueue.addAll(concurrenciesToMeasure(toMeasure, 3, false, false));
             }
 
@@ -182,7 +190,7 @@ public class REPLJobCallbackAutoTune implements Consumer<REPLJob.JobEvent> {
                 awaitMeasure = previousConcurrency;
                 job.setConcurrency(toMeasure);
                 concurrency = toMeasure;
-                concurrencyStableSince = System.nanoTime();
+                concurrencyStableSince = nanoClock.getAsLong();
             } else {
                 // normal operation
                 if (isHeapUpdateDue(concurrencyStableSince, durationHistory.getAvgMicros())) {
@@ -235,7 +243,7 @@ public class REPLJobCallbackAutoTune implements Consumer<REPLJob.JobEvent> {
                     previousConcurrency = concurrency;
                     awaitMeasure = previousConcurrency;
                     concurrency = best.concurrency;
-                    concurrencyStableSince = System.nanoTime();
+                    concurrencyStableSince = nanoClock.getAsLong();
                 } else {
                     // let's measure some neighbors first
                     toMeasureQueue.addAll(neighborsToMeasure);
@@ -271,11 +279,11 @@ public class REPLJobCallbackAutoTune implements Consumer<REPLJob.JobEvent> {
             return true;
         }
         long totalNanos = TimeUnit.MICROSECONDS.toNanos(Math.round(amortizedDuration * totalInputs));
-        return System.nanoTime() - stableSince > Math.max(totalNanos / 100, 60L * 1000L * 1000L * 1000L); // every 1%, but never more than once a minute
+        return nanoClock.getAsLong() - stableSince > Math.max(totalNanos / 100, 60L * 1000L * 1000L * 1000L); // every 1%, but never more than once a minute
     }
 
     private synchronized boolean isHeapUpdateDue(long stableSince, Double duration) {
-        return System.nanoTime() - stableSince > Math.min(Math.max(duration * 1000L * 2L, 10L * 1000L * 1000L * 1000L), 300L * 1000L * 1000L * 1000L); // every 2 generations, but never more than once every 10 seconds and never less than once every 5 minutes
+        return nanoClock.getAsLong() - stableSince > Math.min(Math.max(duration * 1000L * 2L, 10L * 1000L * 1000L * 1000L), 300L * 1000L * 1000L * 1000L); // every 2 generations, but never more than once every 10 seconds and never less than once every 5 minutes
     }
 
     private synchronized List<Integer> concurrenciesToMeasure(int center, int interval, boolean centerIncluded, boolean force) {
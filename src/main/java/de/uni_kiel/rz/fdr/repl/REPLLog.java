@@ -4,21 +4,33 @@
 package de.uni_kiel.rz.fdr.repl;
 
 import de.uni_kiel.rz.fdr.repl.groovy.GroovyShellCommand;
-import groovy.lang.Binding;
-
-import java.io.File;
-import java.io.IOException;
-import java.io.PrintStream;
-import java.io.UncheckedIOException;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
+
+import java.io.*;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.nio.file.*;
+import java.time.Duration;
 import java.time.Instant;
 import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
+
+import static de.uni_kiel.rz.fdr.repl.Helpers.longProperty;
 
 /**
  * This class provides the means for logging messages to various targets. If Log4J is available in the current VM,
@@ -94,18 +106,75 @@ public class REPLLog {
     protected static final Set<LOG_TARGETS> TRACE_LOG_TARGETS = System.getProperty("CAU.REPL.Log.Internal", "").equalsIgnoreCase("stderr") ? Set.of(LOG_TARGETS.STDERR, LOG_TARGETS.REPL_FILE) : Set.of(LOG_TARGETS.REPL_FILE);
     protected static final Set<LOG_TARGETS> EPHEMERAL_LOG_TARGETS = Set.of(LOG_TARGETS.STDERR, LOG_TARGETS.REPL_ALL_SHELLS);
 
-    @SuppressWarnings("FieldCanBeLocal")
-    private static Class<?> L4J_LOGMANAGER_CLASS = null;
-    private static Class<?> L4J_SIMPLEMESSAGE_CLASS = null;
+    // generated once in initializeLibs(), so that logging does not need any reflection
     private static Object L4J_LOGGER = null;
-    private static Method L4J_DEBUG = null;
-    private static Method L4J_INFO = null;
-    private static Method L4J_WARN = null;
-    private static Method L4J_ERROR = null;
+    private static Function<String, Object> L4J_NEW_MESSAGE = null;
+    private static Consumer<Object> L4J_DEBUG = null;
+    private static Consumer<Object> L4J_INFO = null;
+    private static Consumer<Object> L4J_WARN = null;
+    private static Consumer<Object> L4J_ERROR = null;
+    private static BooleanSupplier L4J_IS_DEBUG_ENABLED = null;
 
-    private static int KEEP_LOGS = 10;
+    // a bad value must not break the initialization of this class, which would make all logging fail
+    private static REPLLogEntry.LOG_LEVEL levelProperty(String name, REPLLogEntry.LOG_LEVEL defaultValue) {
+        String value = System.getProperty(name);
+        if (value == null) return defaultValue;
+        try {
+            return REPLLogEntry.LOG_LEVEL.valueOf(value.strip().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            System.err.println("REPL: ignoring invalid value '" + value + "' of " + name + ", using " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    private static final int KEEP_LOGS = (int) longProperty("CAU.REPL.Log.Keep", 10);
+    private static final boolean COMPRESS_LOGS = Boolean.parseBoolean(System.getProperty("CAU.REPL.Log.Compress", "true"));
     private static final String DEFAULT_LOG_PREFIX = "repl";
     private static final String DEFAULT_LOG_SUFFIX = ".log";
+    private static final String COMPRESSED_SUFFIX = ".gz";
+    private static final Pattern ARCHIVE_PATTERN = Pattern.compile("^" + Pattern.quote(DEFAULT_LOG_PREFIX) + "\\.(.+)" + Pattern.quote(DEFAULT_LOG_SUFFIX) + "(" + Pattern.quote(COMPRESSED_SUFFIX) + ")?");
+    // entries are timestamped when they are created, not when they are written, so neighbouring files overlap a bit
+    private static final Duration ARCHIVE_OVERLAP = Duration.ofMinutes(1);
+    // indexes of uncompressed archives, carried over from the live file when it is rotated
+    private static final Map<Path, REPLLogIndex> ARCHIVE_INDEXES = new ConcurrentHashMap<>();
+    private static final ExecutorService ARCHIVER = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, REPL.THREAD_PREFIX + "log archiver");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * Log entries at this level or above are written to the repl.log file immediately, all others are buffered and
+     * written in the background. Configured by the {@code CAU.REPL.Log.SyncLevel} system property.
+     */
+    public static final REPLLogEntry.LOG_LEVEL FILE_SYNC_LEVEL = levelProperty("CAU.REPL.Log.SyncLevel", REPLLogEntry.LOG_LEVEL.ERROR);
+    private static final REPLLogFileWriter FILE_WRITER = new REPLLogFileWriter(() -> logFile(null).toPath(),
+            longProperty("CAU.REPL.Log.FlushInterval", 200),
+            (int) longProperty("CAU.REPL.Log.QueueSize", 10000),
+            longProperty("CAU.REPL.Log.RotateSize", 64) * 1024 * 1024,
+            TimeUnit.HOURS.toMillis(longProperty("CAU.REPL.Log.RotateInterval", 0)),
+            REPLLog::archive);
+
+    // messages per level, counted before suppression so that storms show up in the metrics
+    private static final LongAdder[] LOG_COUNTS = Arrays.stream(REPLLogEntry.LOG_LEVEL.values()).map(l -> new LongAdder()).toArray(LongAdder[]::new);
+
+    private static final REPLLogSuppressor SUPPRESSOR = new REPLLogSuppressor(
+            levelProperty("CAU.REPL.Log.SuppressLevel", REPLLogEntry.LOG_LEVEL.WARN),
+            (int) longProperty("CAU.REPL.Log.SuppressAfter", 100),
+            TimeUnit.SECONDS.toMillis(longProperty("CAU.REPL.Log.SuppressWindow", 60)),
+            System::nanoTime,
+            (entry, targets) -> write(entry, targets));
+
+    /**
+     * How often log messages with the same level and template were seen, and how many of them were suppressed because
+     * they were repeated too often.
+     * @param level The log level of the messages.
+     * @param template The unformatted message, i.e. the first argument that was passed to {@link REPLLogEntry}.
+     * @param total The number of messages that were logged.
+     * @param suppressed The number of messages that were suppressed.
+     * @param lastSeen The timestamp of the most recent message.
+     */
+    public record SuppressionCounter(REPLLogEntry.LOG_LEVEL level, String template, long total, long suppressed, Instant lastSeen) {}
 
     private static final DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss-SSSSSSSSS").withZone(ZoneId.systemDefault());
 
@@ -198,19 +267,66 @@ public class REPLLog {
      * @param streams Additional Print Streams to write to.
      */
     public static void log(REPLLogEntry entry, Set<LOG_TARGETS> targets, PrintStream... streams) {
+        // nothing to do: don't even format the message
+        if (targets.isEmpty() && (streams == null || streams.length == 0)) return;
+        LOG_COUNTS[entry.getLevel().ordinal()].increment();
+        // storms of similar messages only reach the targets in summarized form. explicitly given streams get everything.
+        if (!targets.isEmpty() && !SUPPRESSOR.admit(entry, targets)) targets = Set.of();
+        write(entry, targets, streams);
+    }
+
+    /**
+     * Gets statistics about the messages of level {@code CAU.REPL.Log.SuppressLevel} and above. Once a message
+     * template is logged more than {@code CAU.REPL.Log.SuppressAfter} times within {@code CAU.REPL.Log.SuppressWindow}
+     * seconds, further messages are not written to any log target, including the repl.log file and the shells. Instead,
+     * a summary is logged at the end of the window. Templates that were not logged for a whole window are no longer
+     * tracked and drop out of these statistics.
+     * @return The statistics for each template.
+     */
+    public static List<SuppressionCounter> getSuppressionCounters() {
+        return SUPPRESSOR.getCounters();
+    }
+
+    /**
+     * Gets the number of messages of the given level that were logged since startup, including suppressed messages.
+     * @param level The log level.
+     * @return The number of messages.
+     */
+    public static long getLogCount(REPLLogEntry.LOG_LEVEL level) {
+        return LOG_COUNTS[level.ordinal()].sum();
+    }
+
+    /**
+     * Gets the number of messages that are waiting to be written to the repl.log file.
+     * @return The number of messages.
+     */
+    public static int getFileQueueLength() {
+        return FILE_WRITER.queued();
+    }
+
+    private static void write(REPLLogEntry entry, Set<LOG_TARGETS> targets, PrintStream... streams) {
+        if (targets.isEmpty() && (streams == null || streams.length == 0)) return;
+
         boolean l4jSuccess = false;
         if ((targets.contains(LOG_TARGETS.LOG4J) || targets.contains(LOG_TARGETS.STDERR_OR_LOG4J)) && L4J_LOGGER != null) {
             try {
-                Object l4jmsg = L4J_SIMPLEMESSAGE_CLASS.getDeclaredConstructor(String.class).newInstance(entry.getMessage());
-                switch (entry.getLevel()) {
-                    case TRACE, DEBUG -> L4J_DEBUG.invoke(L4J_LOGGER, l4jmsg);
-                    case INFO -> L4J_INFO.invoke(L4J_LOGGER, l4jmsg);
-                    case WARN -> L4J_WARN.invoke(L4J_LOGGER, l4jmsg);
-                    case ERROR -> L4J_ERROR.invoke(L4J_LOGGER, l4jmsg);
-                    default -> throw new RuntimeException("internal error: unknown log level");
+                // don't format messages that Log4J would drop anyway
+                boolean l4jEnabled = switch (entry.getLevel()) {
+                    case TRACE, DEBUG -> L4J_IS_DEBUG_ENABLED.getAsBoolean();
+                    default -> true;
+                };
+                if (l4jEnabled) {
+                    Object l4jmsg = L4J_NEW_MESSAGE.apply(entry.getMessage());
+                    switch (entry.getLevel()) {
+                        case TRACE, DEBUG -> L4J_DEBUG.accept(l4jmsg);
+                        case INFO -> L4J_INFO.accept(l4jmsg);
+                        case WARN -> L4J_WARN.accept(l4jmsg);
+                        case ERROR -> L4J_ERROR.accept(l4jmsg);
+                        default -> throw new RuntimeException("internal error: unknown log level");
+                    }
                 }
                 l4jSuccess = true;
-            } catch (IllegalAccessException | InvocationTargetException | NoSuchMethodException | InstantiationException ignore) {}
+            } catch (RuntimeException ignore) {}
         }
 
         // PrintStreams are thread-safe...
@@ -219,20 +335,8 @@ public class REPLLog {
 
         if (targets.contains(LOG_TARGETS.STDOUT)) System.out.println(entry);
 
-        if (targets.contains(LOG_TARGETS.REPL_ALL_SHELLS)) {
-            for (GroovyShellCommand shell : GroovyShellCommand.activeShells.keySet()) {
-                try {
-                    Binding binding = GroovyShellCommand.activeShells.get(shell);
-                    if (binding == null) continue;
-                    PrintStream shellPrint = (PrintStream) binding.getVariable("err");
-                    if (shellPrint == null) continue;
-                    shellPrint.println(entry);
-                    if (shellPrint.checkError()) {
-                        GroovyShellCommand.activeShells.remove(shell);
-                    }
-                } catch (Exception ignore) {}
-            }
-        }
+        // queued per shell, so that slow clients don't block us
+        if (targets.contains(LOG_TARGETS.REPL_ALL_SHELLS)) GroovyShellCommand.broadcast(entry.toString());
 
         if (streams != null) {
             for (PrintStream pr : streams) {
@@ -242,64 +346,209 @@ public class REPLLog {
 
         // XXX keep this as the final try -> it can throw
         if (targets.contains(LOG_TARGETS.REPL_FILE)) {
-            // Files.writeString is not thread-safe
-            synchronized (REPLLog.class) {
-                try {
-                    Files.writeString(logFile(null).toPath(), entry.toTSV(), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
-                } catch (IOException e) {
-                    throw new UncheckedIOException(e);
-                }
+            try {
+                FILE_WRITER.append(entry, entry.getLevel().compareTo(FILE_SYNC_LEVEL) >= 0);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
             }
         }
     }
 
     /**
-     * Gets all log entries from the repl's internal log file (which is rotated when the JVM starts). They will be read
-     * from disk, so this call might be slow if the log file is big.
-     * @return A list of all log entries from the repl's internal log file.
+     * Gets all log entries from the repl's current internal log file (which is rotated when the JVM starts and when it
+     * exceeds its configured size or age). They will be read from disk, so this call might be slow if the log file is
+     * big. Use {@link #query()} to only fetch the entries you are interested in, including those from older files.
+     * @return A list of all log entries from the repl's current internal log file.
      */
     public static List<REPLLogEntry> getLog() {
-        synchronized (REPLLog.class) {
-            try (Stream<String> lines = Files.lines(logFile(null).toPath())) {
-                return lines
-                        .map(REPLLogEntry::fromTSV)
-                        .toList();
-            } catch (IOException e) {
-                return null;
+        try {
+            return query(false).list();
+        } catch (UncheckedIOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Creates a new query over the repl's internal log file and its rotated archives. Pending log entries are written
+     * out first, so the query will see all entries that have been logged up to now.
+     * @return A new query that will match all entries until you narrow it down.
+     */
+    public static REPLLogQuery query() {
+        return query(true);
+    }
+
+    /**
+     * Creates a new query over the repl's internal log file and, optionally, its rotated archives. Pending log entries
+     * are written out first, so the query will see all entries that have been logged up to now.
+     * @param archives Also search the rotated archives, which may have to be decompressed.
+     * @return A new query that will match all entries until you narrow it down.
+     */
+    public static REPLLogQuery query(boolean archives) {
+        try {
+            FILE_WRITER.flush();
+            Path current = logFile(null).toPath();
+            REPLLogIndex index = FILE_WRITER.getIndex();
+            if (index == null || !index.path.equals(current)) index = new REPLLogIndex(current, Files.isRegularFile(current) ? Files.size(current) : 0);
+            List<REPLLogQuery.Source> sources = new ArrayList<>();
+            sources.add(new REPLLogQuery.Source(current, index, null, null));
+            if (archives) {
+                // each archive ends where the next newer one starts
+                Instant to = null;
+                for (Archive a : listArchives()) {
+                    Instant ts = a.timestamp();
+                    Instant from = ts == null ? null : ts.minus(ARCHIVE_OVERLAP);
+                    REPLLogQuery.Source source = new REPLLogQuery.Source(compressedFile(a.plain() != null ? a.plain() : a.compressed()), null, from, to);
+                    if (a.plain() != null) {
+                        try {
+                            long size = Files.size(a.plain());
+                            source = new REPLLogQuery.Source(a.plain(), ARCHIVE_INDEXES.computeIfAbsent(a.plain(), p -> new REPLLogIndex(p, size)), from, to);
+                        } catch (NoSuchFileException ignore) {
+                            // it was compressed in the meantime
+                        }
+                    }
+                    sources.add(source);
+                    to = ts == null ? null : ts.plus(ARCHIVE_OVERLAP);
+                }
             }
+            return new REPLLogQuery(sources);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
     }
 
     protected static Instant getFirstTimestamp() {
         synchronized (REPLLog.class) {
-            try (Stream<String> lines = Files.lines(logFile(null).toPath())) {
-                return lines
-                        .limit(1)
-                        .map(tsv -> REPLLogEntry.fromTSV(tsv).getTimestamp())
-                        .findFirst()
-                        .orElse(null);
+            try {
+                FILE_WRITER.flush();
             } catch (IOException e) {
                 return null;
             }
+            return firstTimestamp(logFile(null).toPath());
         }
     }
 
     protected static void rollOver() throws IOException {
         synchronized (REPLLog.class) {
-            Instant timestamp = getFirstTimestamp();
-            if (timestamp != null) Files.move(logFile(null).toPath(), logFile(formatter.format(timestamp)).toPath());
-            Pattern pattern = Pattern.compile("^" + Pattern.quote(DEFAULT_LOG_PREFIX) + "\\..*" + Pattern.quote(DEFAULT_LOG_SUFFIX));
-            int keep = KEEP_LOGS;
-            for (File f : Arrays.stream(Objects.requireNonNull(REPL.getWorkDir().listFiles((File x) -> x.isFile() && pattern.matcher(x.getName()).matches()))).sorted(Comparator.comparing(File::getAbsolutePath).reversed()).toList()) {
-                if (keep-- <= 0) f.delete();
-            }
+            rotate();
         }
     }
 
+    /**
+     * Starts a new repl.log file now, regardless of the size and age of the current one. The old file is archived in
+     * the work directory and remains available to {@link #query()}. Archives are compressed and pruned in the
+     * background. This happens automatically when the JVM starts and when the file exceeds the size or age set by the
+     * {@code CAU.REPL.Log.RotateSize} and {@code CAU.REPL.Log.RotateInterval} system properties.
+     * @throws IOException The log file could not be archived.
+     */
+    public static void rotate() throws IOException {
+        FILE_WRITER.rotate();
+    }
+
+    /**
+     * Writes all buffered log entries to the repl.log file. This happens automatically in the background, during
+     * shutdown and before the log file is read, so you will rarely need to invoke this method yourself.
+     * @throws IOException The log file could not be written.
+     */
+    public static void flush() throws IOException {
+        FILE_WRITER.flush();
+    }
+
     private static File logFile(String tag) {
         return new File(REPL.getWorkDir(), DEFAULT_LOG_PREFIX + (tag == null ? "" : ("." + tag)) + DEFAULT_LOG_SUFFIX);
     }
 
+    private static Instant firstTimestamp(Path file) {
+        try (Stream<String> lines = Files.lines(file)) {
+            return lines
+                    .limit(1)
+                    .map(tsv -> REPLLogEntry.fromTSV(tsv).getTimestamp())
+                    .findFirst()
+                    .orElse(null);
+        } catch (IOException | UncheckedIOException e) {
+            return null;
+        }
+    }
+
+    // an archived log file, present in uncompressed or compressed form or both (while it is being compressed)
+    private record Archive(String tag, Path plain, Path compressed) {
+        Instant timestamp() {
+            try {
+                return formatter.parse(tag, Instant::from);
+            } catch (DateTimeParseException e) {
+                return null;
+            }
+        }
+    }
+
+    // newest first
+    private static List<Archive> listArchives() throws IOException {
+        TreeMap<String, Path[]> found = new TreeMap<>(Comparator.reverseOrder());
+        try (Stream<Path> files = Files.list(REPL.getWorkDir().toPath())) {
+            for (Path p : (Iterable<Path>) files::iterator) {
+                Matcher m = ARCHIVE_PATTERN.matcher(p.getFileName().toString());
+                if (!m.matches() || !Files.isRegularFile(p)) continue;
+                found.computeIfAbsent(m.group(1), k -> new Path[2])[m.group(2) == null ? 0 : 1] = p;
+            }
+        }
+        return found.entrySet().stream().map(e -> new Archive(e.getKey(), e.getValue()[0], e.getValue()[1])).toList();
+    }
+
+    // invoked by the file writer, with the file closed
+    private static void archive(Path file, REPLLogIndex index) throws IOException {
+        Instant timestamp = Files.isRegularFile(file) ? firstTimestamp(file) : null;
+        if (timestamp != null) {
+            Path target = logFile(formatter.format(timestamp)).toPath();
+            Files.move(file, target);
+            if (index != null) ARCHIVE_INDEXES.put(target, index.moveTo(target));
+        }
+        ARCHIVER.execute(REPLLog::maintainArchives);
+    }
+
+    // runs on the archiver thread: compresses archives and deletes the oldest ones
+    private static void maintainArchives() {
+        try {
+            int keep = KEEP_LOGS;
+            for (Archive a : listArchives()) {
+                if (keep-- <= 0) {
+                    if (a.plain() != null) {
+                        ARCHIVE_INDEXES.remove(a.plain());
+                        Files.deleteIfExists(a.plain());
+                        Files.deleteIfExists(temporaryFile(compressedFile(a.plain())));
+                    }
+                    if (a.compressed() != null) Files.deleteIfExists(a.compressed());
+                } else if (COMPRESS_LOGS && a.plain() != null) {
+                    compress(a.plain());
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            log(new REPLLogEntry(REPLLogEntry.LOG_LEVEL.WARN, "REPL: could not maintain the log archives: {}", e), INTERNAL_LOG_TARGETS);
+        }
+    }
+
+    private static Path compressedFile(Path file) {
+        return file.getFileName().toString().endsWith(COMPRESSED_SUFFIX) ? file : file.resolveSibling(file.getFileName() + COMPRESSED_SUFFIX);
+    }
+
+    private static Path temporaryFile(Path file) {
+        return file.resolveSibling(file.getFileName() + ".tmp");
+    }
+
+    private static void compress(Path plain) throws IOException {
+        Path compressed = compressedFile(plain);
+        // queries ignore the temporary file until it is complete
+        Path tmp = temporaryFile(compressed);
+        try (InputStream in = Files.newInputStream(plain);
+             OutputStream out = new GZIPOutputStream(Files.newOutputStream(tmp), 64 * 1024)) {
+            in.transferTo(out);
+        } catch (IOException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+        Files.move(tmp, compressed, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        ARCHIVE_INDEXES.remove(plain);
+        Files.delete(plain);
+    }
+
     /**
      * Try to (re-)initialize optional external libraries. At the moment, this pertains only to Log4J. Invoking this
      * method will check whether it is installed and make it available as a logging target.
@@ -307,15 +556,43 @@ public class REPLLog {
     public static synchronized void initializeLibs() {
         try {
             if (L4J_LOGGER != null) return;
-            L4J_LOGMANAGER_CLASS = Class.forName("org.apache.logging.log4j.LogManager");
-            L4J_SIMPLEMESSAGE_CLASS = Class.forName("org.apache.logging.log4j.message.SimpleMessage");
-            L4J_LOGGER = L4J_LOGMANAGER_CLASS.getMethod("getLogger", Class.class).invoke(null, REPLLog.class);
-            L4J_DEBUG = L4J_LOGGER.getClass().getMethod("debug", Class.forName("org.apache.logging.log4j.message.Message"));
-            L4J_INFO = L4J_LOGGER.getClass().getMethod("info", Class.forName("org.apache.logging.log4j.message.Message"));
-            L4J_WARN = L4J_LOGGER.getClass().getMethod("warn", Class.forName("org.apache.logging.log4j.message.Message"));
-            L4J_ERROR = L4J_LOGGER.getClass().getMethod("error", Class.forName("org.apache.logging.log4j.message.Message"));
-        } catch (ClassNotFoundException | NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
+            Class<?> logManagerClass = Class.forName("org.apache.logging.log4j.LogManager");
+            Class<?> loggerClass = Class.forName("org.apache.logging.log4j.Logger");
+            Class<?> messageClass = Class.forName("org.apache.logging.log4j.message.Message");
+            Class<?> simpleMessageClass = Class.forName("org.apache.logging.log4j.message.SimpleMessage");
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            Object logger = lookup.findStatic(logManagerClass, "getLogger", MethodType.methodType(loggerClass, Class.class)).invoke(REPLLog.class);
+            MethodType logType = MethodType.methodType(void.class, messageClass);
+            L4J_NEW_MESSAGE = l4jAdapter(lookup, Function.class, "apply", MethodType.methodType(Object.class, Object.class), lookup.findConstructor(simpleMessageClass, MethodType.methodType(void.class, String.class)), null);
+            L4J_DEBUG = l4jAdapter(lookup, Consumer.class, "accept", MethodType.methodType(void.class, Object.class), lookup.findVirtual(loggerClass, "debug", logType), logger);
+            L4J_INFO = l4jAdapter(lookup, Consumer.class, "accept", MethodType.methodType(void.class, Object.class), lookup.findVirtual(loggerClass, "info", logType), logger);
+            L4J_WARN = l4jAdapter(lookup, Consumer.class, "accept", MethodType.methodType(void.class, Object.class), lookup.findVirtual(loggerClass, "warn", logType), logger);
+            L4J_ERROR = l4jAdapter(lookup, Consumer.class, "accept", MethodType.methodType(void.class, Object.class), lookup.findVirtual(loggerClass, "error", logType), logger);
+            L4J_IS_DEBUG_ENABLED = l4jAdapter(lookup, BooleanSupplier.class, "getAsBoolean", MethodType.methodType(boolean.class), lookup.findVirtual(loggerClass, "isDebugEnabled", MethodType.methodType(boolean.class)), logger);
+            L4J_LOGGER = logger;
+        } catch (ClassNotFoundException e) {
+            // Log4J is not installed
+            L4J_LOGGER = null;
+        } catch (Error e) {
+            throw e;
+        } catch (Throwable e) {
+            // Log4J is there, but we can't talk to it, e.g. after an incompatible upgrade
             L4J_LOGGER = null;
+            log(new REPLLogEntry(REPLLogEntry.LOG_LEVEL.WARN, "REPL: Log4J is available, but can't be used as a log target: {}", e), INTERNAL_LOG_TARGETS);
         }
     }
+
+    // for the tests
+    static boolean isLog4JInitialized() {
+        return L4J_LOGGER != null;
+    }
+
+    // generates a class implementing the given functional interface that directly invokes a Log4J method
+    @SuppressWarnings("unchecked")
+    private static <T> T l4jAdapter(MethodHandles.Lookup lookup, Class<? super T> iface, String method, MethodType erasedType, MethodHandle target, Object receiver) throws Throwable {
+        MethodType instantiatedType = receiver == null ? target.type() : target.type().dropParameterTypes(0, 1);
+        MethodType factoryType = receiver == null ? MethodType.methodType(iface) : MethodType.methodType(iface, target.type().parameterType(0));
+        MethodHandle factory = LambdaMetafactory.metafactory(lookup, method, factoryType, erasedType, target, instantiatedType).getTarget();
+        return (T) (receiver == null ? factory.invoke() : factory.invoke(receiver));
+    }
 }
@@ -5,20 +5,25 @@ package de.uni_kiel.rz.fdr.repl;
 
 import de.uni_kiel.rz.fdr.repl.error.LogEntryFormatException;
 import groovy.json.StringEscapeUtils;
+import groovy.lang.GString;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.time.Instant;
 import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
 import java.util.Locale;
-import java.util.regex.Matcher;
 
 /**
- * Represents a single log message to be used by {@link REPLLog}.
+ * Represents a single log message to be used by {@link REPLLog}. The message is only formatted once it is actually
+ * needed, i.e. when the entry reaches one of its log targets or is kept for later, like in a job's log.
  */
 @SuppressWarnings("unused")
 public class REPLLogEntry implements Serializable {
 
+    // keep the serialized form of pre-existing entries in job state files readable
+    private static final long serialVersionUID = -4983562865905013732L;
     private static final String TRACE_PREFIX = "=====";
 
     /**
@@ -61,7 +66,11 @@ public class REPLLogEntry implements Serializable {
     /**
      * Internal use only.
      */
-    private final String message;
+    private String message;
+    // the unformatted message, released after formatting
+    private transient Object[] messages;
+    // the template of the unformatted message, kept after formatting
+    private transient String template;
 
     /**
      * Create a new log entry.
@@ -72,7 +81,7 @@ public class REPLLogEntry implements Serializable {
     public REPLLogEntry(Instant timestamp, LOG_LEVEL level, Object... messages) {
         this.timestamp = timestamp;
         this.level = level;
-        this.message = interpolateMessage(messages);
+        this.messages = messages;
         validate();
     }
 
@@ -84,7 +93,7 @@ public class REPLLogEntry implements Serializable {
     public REPLLogEntry(LOG_LEVEL level, Object... messages) {
         this.timestamp = Instant.now();
         this.level = level;
-        this.message = interpolateMessage(messages);
+        this.messages = messages;
         validate();
     }
 
@@ -96,7 +105,7 @@ public class REPLLogEntry implements Serializable {
     public REPLLogEntry(String level, Object... messages) {
         this.timestamp = Instant.now();
         this.level = LOG_LEVEL.valueOf(level.toUpperCase(Locale.ROOT));
-        this.message = interpolateMessage(messages);
+        this.messages = messages;
         validate();
     }
 
@@ -121,25 +130,50 @@ public class REPLLogEntry implements Serializable {
      * @return The message's payload.
      */
     public String getMessage() {
-        return ((level.equals(LOG_LEVEL.TRACE) && TRACE_PREFIX != null) ? TRACE_PREFIX + " " : "") + message;
+        return ((level.equals(LOG_LEVEL.TRACE) && TRACE_PREFIX != null) ? TRACE_PREFIX + " " : "") + formattedMessage();
     }
 
+    // formats the message on the calling thread, so the arguments are rendered in their current state, and releases them
+    synchronized String formattedMessage() {
+        if (message == null) {
+            template = template();
+            message = interpolateMessage(messages);
+            messages = null;
+        }
+        return message;
+    }
+
+    // the unformatted first argument, so that entries from the same call site can be told apart from others cheaply.
+    // for a GString, only its constant parts are used, so that its values don't make every entry unique.
+    synchronized String template() {
+        if (template != null) return template;
+        if (messages == null) return message != null ? message : "<NULL>";
+        if (messages.length == 0) return "";
+        if (messages[0] instanceof GString g) return String.join("{}", g.getStrings());
+        return String.valueOf(messages[0]);
+    }
+
+    // a single pass over the template: placeholders inside of substituted arguments are left alone
     private static String interpolateMessage(Object[] messages) {
         if (messages == null) return "<NULL>";
-        String s = messages.length == 0 ? "" : String.valueOf(messages[0]);
-
-        int overflow = 1;
-        for (int i = 1; i < messages.length; i++) {
-            if (!s.contains("{}")) break;
-            s = s.replaceFirst("\\{\\}", Matcher.quoteReplacement(String.valueOf(messages[i])));
-            overflow++;
+        if (messages.length == 0) return "";
+        String template = String.valueOf(messages[0]);
+        if (messages.length == 1) return template;
+
+        StringBuilder sb = new StringBuilder(template.length() + 16 * messages.length);
+        int arg = 1;
+        int pos = 0;
+        for (int ph = template.indexOf("{}"); ph >= 0 && arg < messages.length; ph = template.indexOf("{}", pos)) {
+            sb.append(template, pos, ph).append(messages[arg++]);
+            pos = ph + 2;
         }
+        sb.append(template, pos, template.length());
 
-        for (int i = overflow; i < messages.length; i++) {
-            s = s + System.lineSeparator() + messages[i];
+        for (; arg < messages.length; arg++) {
+            sb.append(System.lineSeparator()).append(messages[arg]);
         }
 
-        return s;
+        return sb.toString();
     }
 
     @Override
@@ -148,13 +182,17 @@ public class REPLLogEntry implements Serializable {
     }
 
     protected String toTSV() {
-        return timestamp + "\t" + level + ((level.equals(LOG_LEVEL.TRACE) && TRACE_PREFIX != null) ? " " + TRACE_PREFIX : "") + "\t" + StringEscapeUtils.escapeJavaScript(message) + System.lineSeparator();
+        return timestamp + "\t" + level + ((level.equals(LOG_LEVEL.TRACE) && TRACE_PREFIX != null) ? " " + TRACE_PREFIX : "") + "\t" + StringEscapeUtils.escapeJavaScript(formattedMessage()) + System.lineSeparator();
     }
 
     private void validate() {
         if (timestamp == null) throw new LogEntryFormatException("missing timestamp");
         if (level == null) throw new LogEntryFormatException("missing level");
-        if (message == null) throw new LogEntryFormatException("missing message");
+    }
+
+    private synchronized void writeObject(ObjectOutputStream out) throws IOException {
+        formattedMessage();
+        out.defaultWriteObject();
     }
 
     protected static REPLLogEntry fromTSV(String tsv) {
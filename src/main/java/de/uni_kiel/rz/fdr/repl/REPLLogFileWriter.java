@@ -0,0 +1,256 @@
+// (C) Copyright 2023 Ove Sörensen
+// SPDX-License-Identifier: MIT
+
+package de.uni_kiel.rz.fdr.repl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+// Appends entries to the repl.log file through a persistent FileChannel. Callers format their entry and only enqueue the
+// resulting line, a background thread writes the queue out in batches. If the queue is full, or if an entry is written synchronously,
+// the caller drains the queue itself so that the order of each thread's entries is preserved. Each write is recorded
+// in the file's REPLLogIndex. Once the file exceeds the configured size or age, it is closed and handed to the rotator,
+// which moves it away so that the next write starts a new file.
+class REPLLogFileWriter {
+
+    interface IOAction {
+        void run() throws IOException;
+    }
+
+    interface Rotator {
+        // called with the file closed and all pending entries written out
+        void rotate(Path path, REPLLogIndex index) throws IOException;
+    }
+
+    private final Supplier<Path> pathSupplier;
+    private final long flushIntervalNanos;
+    private final int capacity;
+    private final long rotateBytes;
+    private final long rotateMillis;
+    private final Rotator rotator;
+    // an entry, formatted by the thread that logged it, so that later changes to its arguments don't matter
+    private record Line(String tsv, Instant timestamp, REPLLogEntry.LOG_LEVEL level) {}
+
+    private final ConcurrentLinkedQueue<Line> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queued = new AtomicInteger(); // ConcurrentLinkedQueue.size() is not O(1)
+    private final Object lock = new Object();
+    private FileChannel channel = null;
+    private Path channelPath = null;
+    private volatile REPLLogIndex index = null;
+    private long nextRotationSize = Long.MAX_VALUE;
+    private long nextRotationTime = Long.MAX_VALUE;
+    // lines that were taken from the queue, but not written yet because writing failed. they are retried first.
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream(1024);
+    private int pendingLines = 0;
+    private Instant pendingMin = null, pendingMax = null;
+    private int pendingLevels = 0;
+    private volatile boolean retry = false;
+    private volatile Thread flusher = null;
+    private volatile boolean closed = false;
+
+    REPLLogFileWriter(Supplier<Path> pathSupplier, long flushIntervalMillis, int capacity, long rotateBytes, long rotateMillis, Rotator rotator) {
+        this.pathSupplier = pathSupplier;
+        this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis);
+        this.capacity = Math.max(capacity, 1);
+        this.rotateBytes = rotateBytes;
+        this.rotateMillis = rotateMillis;
+        this.rotator = rotator;
+    }
+
+    void append(REPLLogEntry entry, boolean synchronous) throws IOException {
+        Line line = new Line(entry.toTSV(), entry.getTimestamp(), entry.getLevel());
+        if (synchronous || closed || flushIntervalNanos <= 0 || queued.incrementAndGet() > capacity) {
+            if (!synchronous && !closed && flushIntervalNanos > 0) queued.decrementAndGet();
+            synchronized (lock) {
+                write(line);
+            }
+            return;
+        }
+        queue.add(line);
+        Thread t = flusher;
+        if (t == null) startFlusher();
+        else if (queued.get() >= capacity / 2) LockSupport.unpark(t);
+    }
+
+    void flush() throws IOException {
+        synchronized (lock) {
+            write(null);
+        }
+    }
+
+    // the index of the file that is currently being written to, if any
+    REPLLogIndex getIndex() {
+        return index;
+    }
+
+    // runs the action with all pending entries written out and the file closed, e.g. to move the file away
+    void release(IOAction action) throws IOException {
+        synchronized (lock) {
+            write(null);
+            closeChannel();
+            index = null;
+            action.run();
+        }
+    }
+
+    // rotates the file now, regardless of its size and age
+    void rotate() throws IOException {
+        if (rotator == null) return;
+        synchronized (lock) {
+            write(null);
+            rotate(pathSupplier.get());
+        }
+    }
+
+    int queued() {
+        return Math.max(queued.get(), 0);
+    }
+
+    void close() {
+        closed = true;
+        Thread t = flusher;
+        if (t != null) LockSupport.unpark(t);
+        synchronized (lock) {
+            try {
+                write(null);
+            } catch (IOException e) {
+                System.err.println("REPL: could not write to log file during shutdown: " + e);
+            }
+            try {
+                closeChannel();
+            } catch (IOException ignore) {}
+        }
+    }
+
+    // must hold the lock. if writing fails, the lines stay pending and are retried with the next write.
+    private void write(Line entry) throws IOException {
+        for (Line e = queue.poll(); ; e = queue.poll()) {
+            if (e == null) {
+                if (entry == null) break;
+                e = entry;
+                entry = null;
+            } else {
+                queued.decrementAndGet();
+            }
+            pending.writeBytes(e.tsv().getBytes(StandardCharsets.UTF_8));
+            pendingLines++;
+            pendingMin = REPLLogIndex.min(pendingMin, e.timestamp());
+            pendingMax = REPLLogIndex.max(pendingMax, e.timestamp());
+            pendingLevels |= REPLLogIndex.levelBit(e.level());
+        }
+        if (pending.size() == 0) return;
+
+        Path path = pathSupplier.get();
+        long offset = -1;
+        ByteBuffer buf = ByteBuffer.wrap(pending.toByteArray());
+        try {
+            if (channel == null || !channel.isOpen() || !path.equals(channelPath)) {
+                closeChannel();
+                channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+                channelPath = path;
+                if (index == null || !index.path.equals(path)) {
+                    index = new REPLLogIndex(path, channel.size());
+                    nextRotationSize = rotateBytes > 0 ? rotateBytes : Long.MAX_VALUE;
+                    nextRotationTime = rotateMillis > 0 ? System.currentTimeMillis() + rotateMillis : Long.MAX_VALUE;
+                }
+            }
+            offset = channel.size();
+            while (buf.hasRemaining()) channel.write(buf);
+        } catch (IOException | RuntimeException e) {
+            // keep what was not written. the file is reopened on the next attempt.
+            try {
+                closeChannel();
+            } catch (IOException ignore) {}
+            if (buf.position() > 0) {
+                index.add(offset, buf.position(), pendingMin, pendingMax, pendingLevels);
+                pending = new ByteArrayOutputStream(buf.remaining());
+                pending.write(buf.array(), buf.position(), buf.remaining());
+            }
+            if (pendingLines > capacity) {
+                System.err.println("REPL: dropping " + pendingLines + " log entries that could not be written");
+                clearPending();
+            }
+            retry = pending.size() > 0;
+            throw e;
+        }
+        index.add(offset, buf.limit(), pendingMin, pendingMax, pendingLevels);
+        clearPending();
+
+        if (rotator != null && (offset + buf.limit() >= nextRotationSize || System.currentTimeMillis() >= nextRotationTime)) {
+            try {
+                rotate(path);
+            } catch (IOException | RuntimeException e) {
+                // keep on writing to the old file and don't retry before it has grown or aged some more
+                System.err.println("REPL: could not rotate log file: " + e);
+                nextRotationSize = rotateBytes > 0 ? offset + buf.limit() + rotateBytes : Long.MAX_VALUE;
+                nextRotationTime = rotateMillis > 0 ? System.currentTimeMillis() + rotateMillis : Long.MAX_VALUE;
+            }
+        }
+    }
+
+    private void clearPending() {
+        pending = new ByteArrayOutputStream(1024);
+        pendingLines = 0;
+        pendingMin = null;
+        pendingMax = null;
+        pendingLevels = 0;
+        retry = false;
+    }
+
+    // must hold the lock. if the rotator fails, the index is kept, so that writing can continue with the old file.
+    private void rotate(Path path) throws IOException {
+        REPLLogIndex old = index != null && index.path.equals(path) ? index : null;
+        closeChannel();
+        index = null;
+        try {
+            rotator.rotate(path, old);
+        } catch (IOException | RuntimeException e) {
+            if (Files.exists(path)) index = old;
+            throw e;
+        }
+    }
+
+    private void closeChannel() throws IOException {
+        if (channel == null) return;
+        try {
+            channel.close();
+        } finally {
+            channel = null;
+            channelPath = null;
+        }
+    }
+
+    private synchronized void startFlusher() {
+        if (flusher != null || closed) return;
+        Thread t = new Thread(this::flushLoop, REPL.THREAD_PREFIX + "log writer");
+        t.setDaemon(true);
+        flusher = t;
+        t.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close, REPL.THREAD_PREFIX + "log writer shutdown"));
+    }
+
+    private void flushLoop() {
+        while (!closed) {
+            LockSupport.parkNanos(this, flushIntervalNanos);
+            if (queued.get() == 0 && !retry) continue;
+            try {
+                flush();
+            } catch (IOException | RuntimeException e) {
+                // we can't log this to the file, obviously
+                System.err.println("REPL: could not write to log file: " + e);
+            }
+        }
+    }
+}
@@ -0,0 +1,141 @@
+// (C) Copyright 2023 Ove Sörensen
+// SPDX-License-Identifier: MIT
+
+package de.uni_kiel.rz.fdr.repl;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+// A sparse index over a log file: for each block of up to BLOCK_SIZE bytes, it records the range of timestamps and
+// the levels of the entries within. Queries use it to skip blocks without reading them. The writer adds a block for
+// each write, content that was already present when the index was created is scanned lazily on first use.
+class REPLLogIndex {
+
+    static final int BLOCK_SIZE = 64 * 1024;
+
+    record Block(long offset, long length, Instant minTimestamp, Instant maxTimestamp, int levels) {
+        boolean matches(Instant since, Instant until, REPLLogEntry.LOG_LEVEL level) {
+            if (minTimestamp == null || maxTimestamp == null) return false;
+            if (since != null && maxTimestamp.isBefore(since)) return false;
+            if (until != null && minTimestamp.isAfter(until)) return false;
+            return level == null || (levels >>> level.ordinal()) != 0;
+        }
+    }
+
+    final Path path;
+    private final ArrayList<Block> blocks = new ArrayList<>();
+    private long unindexedPrefix;
+
+    REPLLogIndex(Path path, long existingBytes) {
+        this.path = path;
+        this.unindexedPrefix = existingBytes;
+    }
+
+    synchronized void add(long offset, long length, Instant minTimestamp, Instant maxTimestamp, int levels) {
+        if (length <= 0) return;
+        if (!blocks.isEmpty()) {
+            Block last = blocks.get(blocks.size() - 1);
+            if (last.offset + last.length == offset && last.length + length <= BLOCK_SIZE) {
+                blocks.set(blocks.size() - 1, new Block(last.offset, last.length + length, min(last.minTimestamp, minTimestamp), max(last.maxTimestamp, maxTimestamp), last.levels | levels));
+                return;
+            }
+        }
+        blocks.add(new Block(offset, length, minTimestamp, maxTimestamp, levels));
+    }
+
+    // the blocks in file order; this never holds the lock while reading the file
+    List<Block> snapshot() throws IOException {
+        long prefix;
+        synchronized (this) {
+            prefix = unindexedPrefix;
+        }
+        if (prefix > 0) {
+            List<Block> scanned = scan(path, prefix);
+            synchronized (this) {
+                if (unindexedPrefix == prefix) {
+                    blocks.addAll(0, scanned);
+                    unindexedPrefix = 0;
+                }
+            }
+        }
+        synchronized (this) {
+            return List.copyOf(blocks);
+        }
+    }
+
+    // a copy of this index for the same content under a new name, e.g. after the file was rotated
+    synchronized REPLLogIndex moveTo(Path target) {
+        REPLLogIndex moved = new REPLLogIndex(target, unindexedPrefix);
+        moved.blocks.addAll(blocks);
+        return moved;
+    }
+
+    static int levelBit(REPLLogEntry.LOG_LEVEL level) {
+        return 1 << level.ordinal();
+    }
+
+    // reads the first "length" bytes of the file, only parsing the timestamp and level of each line
+    private static List<Block> scan(Path path, long length) throws IOException {
+        List<Block> result = new ArrayList<>();
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ);
+             InputStream in = new BufferedInputStream(Channels.newInputStream(ch), 64 * 1024)) {
+            long offset = 0;
+            long blockStart = 0;
+            Instant min = null, max = null;
+            int levels = 0;
+            StringBuilder header = new StringBuilder(64);
+            int tabs = 0;
+            int b;
+            while (offset < length && (b = in.read()) >= 0) {
+                offset++;
+                if (b == '\n') {
+                    String[] h = header.toString().split("\t");
+                    if (tabs >= 2 && h.length >= 2) {
+                        try {
+                            Instant ts = Instant.parse(h[0]);
+                            REPLLogEntry.LOG_LEVEL level = REPLLogEntry.LOG_LEVEL.valueOf(h[1].toUpperCase(Locale.ROOT).split(" ")[0]);
+                            min = min(min, ts);
+                            max = max(max, ts);
+                            levels |= levelBit(level);
+                        } catch (DateTimeParseException | IllegalArgumentException ignore) {}
+                    }
+                    header.setLength(0);
+                    tabs = 0;
+                    if (offset - blockStart >= BLOCK_SIZE) {
+                        result.add(new Block(blockStart, offset - blockStart, min, max, levels));
+                        blockStart = offset;
+                        min = max = null;
+                        levels = 0;
+                    }
+                } else if (tabs < 2) {
+                    if (b == '\t') tabs++;
+                    header.append((char) b); // timestamp and level are plain ASCII
+                }
+            }
+            if (offset > blockStart && min != null) result.add(new Block(blockStart, offset - blockStart, min, max, levels));
+        }
+        return result;
+    }
+
+    static Instant min(Instant a, Instant b) {
+        if (a == null) return b;
+        if (b == null) return a;
+        return a.isBefore(b) ? a : b;
+    }
+
+    static Instant max(Instant a, Instant b) {
+        if (a == null) return b;
+        if (b == null) return a;
+        return a.isAfter(b) ? a : b;
+    }
+}
@@ -0,0 +1,253 @@
+// (C) Copyright 2023 Ove Sörensen
+// SPDX-License-Identifier: MIT
+
+package de.uni_kiel.rz.fdr.repl;
+
+import de.uni_kiel.rz.fdr.repl.error.LogEntryFormatException;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * A query over the entries of the repl.log file and its rotated archives. Create one using {@link REPLLog#query()},
+ * narrow it down using its setters and then fetch the results via {@link #stream()} or {@link #list()}. The files are
+ * read from their end, skipping all parts that can not contain matching entries, so looking at the most recent entries
+ * is cheap even if the log file is big. Compressed archives are only decompressed if the query reaches them. Reading
+ * does not block concurrent logging.
+ */
+public class REPLLogQuery {
+
+    // a file to read: plain files come with an index, compressed archives without. "from" and "to" bound the timestamps
+    // of the file's entries, if they are known.
+    record Source(Path path, REPLLogIndex index, Instant from, Instant to) {
+        boolean matches(Instant since, Instant until) {
+            if (since != null && to != null && to.isBefore(since)) return false;
+            return until == null || from == null || !from.isAfter(until);
+        }
+    }
+
+    private final List<Source> sources;
+    private Instant since = null;
+    private Instant until = null;
+    private REPLLogEntry.LOG_LEVEL level = null;
+    private Pattern grep = null;
+    private Integer limit = null;
+
+    REPLLogQuery(List<Source> sources) {
+        this.sources = sources;
+    }
+
+    /**
+     * Only return entries with a timestamp at or after the given instant.
+     * @param since The earliest timestamp to return, or {@code null} for no limit.
+     * @return This query.
+     */
+    public REPLLogQuery since(Instant since) {
+        this.since = since;
+        return this;
+    }
+
+    /**
+     * Only return entries with a timestamp at or before the given instant.
+     * @param until The latest timestamp to return, or {@code null} for no limit.
+     * @return This query.
+     */
+    public REPLLogQuery until(Instant until) {
+        this.until = until;
+        return this;
+    }
+
+    /**
+     * Only return entries with the given log level or above.
+     * @param level The minimum log level, or {@code null} for all levels.
+     * @return This query.
+     */
+    public REPLLogQuery level(REPLLogEntry.LOG_LEVEL level) {
+        this.level = level;
+        return this;
+    }
+
+    /**
+     * Only return entries whose message contains a match for the given regular expression.
+     * @param regex The regular expression, or {@code null} to match all messages.
+     * @return This query.
+     */
+    public REPLLogQuery grep(String regex) {
+        return grep(regex == null ? null : Pattern.compile(regex));
+    }
+
+    /**
+     * Only return entries whose message contains a match for the given pattern.
+     * @param pattern The pattern, or {@code null} to match all messages.
+     * @return This query.
+     */
+    public REPLLogQuery grep(Pattern pattern) {
+        this.grep = pattern;
+        return this;
+    }
+
+    /**
+     * Return at most this many entries. As the log is read from its end, these will be the most recent matches.
+     * @param limit The maximum number of entries to return, or {@code null} for no limit.
+     * @return This query.
+     */
+    public REPLLogQuery limit(Integer limit) {
+        if (limit != null && limit < 0) throw new IllegalArgumentException("limit must not be negative");
+        this.limit = limit;
+        return this;
+    }
+
+    /**
+     * Lazily streams all matching entries, starting with the most recent one. Close the stream if you do not consume
+     * it completely.
+     * @return The matching entries, newest first.
+     */
+    public Stream<REPLLogEntry> stream() {
+        TailIterator it = new TailIterator();
+        Stream<REPLLogEntry> s = StreamSupport.stream(Spliterators.spliteratorUnknownSize(it, Spliterator.ORDERED | Spliterator.NONNULL), false).onClose(it::close);
+        return limit != null ? s.limit(limit) : s;
+    }
+
+    /**
+     * Gets all matching entries.
+     * @return The matching entries in chronological order.
+     */
+    public List<REPLLogEntry> list() {
+        ArrayList<REPLLogEntry> result;
+        try (Stream<REPLLogEntry> s = stream()) {
+            result = s.collect(ArrayList::new, ArrayList::add, ArrayList::addAll);
+        }
+        Collections.reverse(result);
+        return result;
+    }
+
+    private boolean matches(REPLLogEntry entry) {
+        if (since != null && entry.getTimestamp().isBefore(since)) return false;
+        if (until != null && entry.getTimestamp().isAfter(until)) return false;
+        if (level != null && entry.getLevel().compareTo(level) < 0) return false;
+        return grep == null || grep.matcher(entry.getMessage()).find();
+    }
+
+    private static REPLLogEntry parse(String line) {
+        if (line.isEmpty()) return null;
+        try {
+            return REPLLogEntry.fromTSV(line);
+        } catch (LogEntryFormatException | DateTimeParseException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    // walks the files from newest to oldest and each file's blocks from its end. compressed files can't be read
+    // backwards, so they are decompressed as a whole, retaining only the matches that might be returned.
+    private class TailIterator implements Iterator<REPLLogEntry>, AutoCloseable {
+        private int fileIdx = -1;
+        private FileChannel channel = null;
+        private List<REPLLogIndex.Block> blocks = List.of();
+        private int blockIdx = -1;
+        private final ArrayDeque<REPLLogEntry> pending = new ArrayDeque<>();
+
+        @Override
+        public boolean hasNext() {
+            try {
+                while (pending.isEmpty()) {
+                    if (blockIdx < 0 && !nextFile()) return false;
+                    if (blockIdx < 0) continue;
+                    REPLLogIndex.Block block = blocks.get(blockIdx--);
+                    if (!block.matches(since, until, level)) continue;
+                    readBlock(block);
+                }
+                return true;
+            } catch (IOException e) {
+                close();
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public REPLLogEntry next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            return pending.removeFirst();
+        }
+
+        private boolean nextFile() throws IOException {
+            close();
+            while (++fileIdx < sources.size()) {
+                Source source = sources.get(fileIdx);
+                if (!source.matches(since, until) || !Files.isRegularFile(source.path())) continue;
+                try {
+                    if (source.index() == null) {
+                        readCompressed(source.path());
+                        blocks = List.of();
+                        blockIdx = -1;
+                        return true;
+                    }
+                    blocks = source.index().snapshot();
+                    channel = FileChannel.open(source.path(), StandardOpenOption.READ);
+                } catch (NoSuchFileException e) {
+                    // rotated or compressed in the meantime
+                    continue;
+                }
+                blockIdx = blocks.size() - 1;
+                return true;
+            }
+            return false;
+        }
+
+        private void readCompressed(Path path) throws IOException {
+            try (BufferedReader in = new BufferedReader(new InputStreamReader(new GZIPInputStream(Files.newInputStream(path), 64 * 1024), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    REPLLogEntry entry = parse(line);
+                    if (entry == null || !matches(entry)) continue;
+                    pending.addFirst(entry);
+                    if (limit != null && pending.size() > limit) pending.removeLast();
+                }
+            }
+        }
+
+        private void readBlock(REPLLogIndex.Block block) throws IOException {
+            ByteBuffer buf = ByteBuffer.allocate(Math.toIntExact(block.length()));
+            while (buf.hasRemaining()) {
+                if (channel.read(buf, block.offset() + buf.position()) < 0) break;
+            }
+            String text = new String(buf.array(), 0, buf.position(), StandardCharsets.UTF_8);
+            // lines are collected in file order, then handed out in reverse
+            int start = 0;
+            while (start < text.length()) {
+                int end = text.indexOf('\n', start);
+                if (end < 0) end = text.length();
+                String line = text.substring(start, end > start && text.charAt(end - 1) == '\r' ? end - 1 : end);
+                start = end + 1;
+                REPLLogEntry entry = parse(line);
+                if (entry != null && matches(entry)) pending.addFirst(entry);
+            }
+        }
+
+        @Override
+        public void close() {
+            if (channel == null) return;
+            try {
+                channel.close();
+            } catch (IOException ignore) {
+            } finally {
+                channel = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,159 @@
+// (C) Copyright 2023 Ove Sörensen
+// SPDX-License-Identifier: MIT
+
+package de.uni_kiel.rz.fdr.repl;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiConsumer;
+import java.util.function.LongSupplier;
+
+// Throttles log storms: entries are grouped by their level and unformatted template. Within each time window, the first
+// "burst" entries of a group are let through, the rest are counted and reported in a single summary entry once the
+// window has passed. Summaries are emitted either by the next entry of the group or, if the storm is over, by a
+// background sweeper. The sweeper also forgets groups that stayed quiet for a whole window and exits once there are
+// none left. Suppression applies to all targets, so that a storm neither floods repl.log and the shells nor keeps the
+// file writer busy with synchronous writes. Only the summaries reach them.
+class REPLLogSuppressor {
+
+    static final int MAX_TEMPLATES = 1000;
+
+    private record Key(REPLLogEntry.LOG_LEVEL level, String template) {}
+
+    private static class Counter {
+        long total = 0;
+        long suppressed = 0;
+        long windowStart;
+        long inWindow = 0;
+        long pending = 0;
+        Instant lastSeen = null;
+        Set<REPLLog.LOG_TARGETS> targets = Set.of();
+        boolean removed = false;
+
+        Counter(long windowStart) {
+            this.windowStart = windowStart;
+        }
+    }
+
+    private final REPLLogEntry.LOG_LEVEL level;
+    private final int burst;
+    private final long windowNanos;
+    private final LongSupplier nanoClock;
+    private final BiConsumer<REPLLogEntry, Set<REPLLog.LOG_TARGETS>> emitter;
+    private final ConcurrentHashMap<Key, Counter> counters = new ConcurrentHashMap<>();
+    private volatile Thread sweeper = null;
+
+    REPLLogSuppressor(REPLLogEntry.LOG_LEVEL level, int burst, long windowMillis, LongSupplier nanoClock, BiConsumer<REPLLogEntry, Set<REPLLog.LOG_TARGETS>> emitter) {
+        this.level = level;
+        this.burst = burst;
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(windowMillis, 1));
+        this.nanoClock = nanoClock;
+        this.emitter = emitter;
+    }
+
+    // false if the entry should be dropped
+    boolean admit(REPLLogEntry entry, Set<REPLLog.LOG_TARGETS> targets) {
+        if (burst <= 0 || entry.getLevel().compareTo(level) < 0) return true;
+        Key key = new Key(entry.getLevel(), entry.template());
+        while (true) {
+            Counter c = counters.get(key);
+            if (c == null) {
+                // templates that are built at runtime would fill us up, don't track any more of them until some expire
+                if (counters.size() >= MAX_TEMPLATES) return true;
+                c = counters.computeIfAbsent(key, k -> new Counter(nanoClock.getAsLong()));
+                if (sweeper == null) startSweeper();
+            }
+            long now = nanoClock.getAsLong();
+            REPLLogEntry summary;
+            boolean admit;
+            synchronized (c) {
+                // the sweeper dropped this counter in the meantime
+                if (c.removed) continue;
+                c.total++;
+                c.lastSeen = entry.getTimestamp();
+                c.targets = targets;
+                summary = now - c.windowStart >= windowNanos ? closeWindow(key, c, now) : null;
+                admit = ++c.inWindow <= burst;
+                if (!admit) {
+                    c.suppressed++;
+                    c.pending++;
+                }
+            }
+            if (summary != null) emitter.accept(summary, targets);
+            return admit;
+        }
+    }
+
+    // emits the summaries of all groups whose window has passed and drops the groups that were idle for a whole window
+    void sweep() {
+        long now = nanoClock.getAsLong();
+        for (Map.Entry<Key, Counter> e : counters.entrySet()) {
+            Counter c = e.getValue();
+            REPLLogEntry summary;
+            Set<REPLLog.LOG_TARGETS> targets;
+            synchronized (c) {
+                if (now - c.windowStart < windowNanos) continue;
+                if (c.inWindow == 0) {
+                    c.removed = true;
+                    counters.remove(e.getKey(), c);
+                    continue;
+                }
+                summary = closeWindow(e.getKey(), c, now);
+                targets = c.targets;
+            }
+            if (summary != null) emitter.accept(summary, targets);
+        }
+    }
+
+    List<REPLLog.SuppressionCounter> getCounters() {
+        List<REPLLog.SuppressionCounter> result = new ArrayList<>();
+        for (Map.Entry<Key, Counter> e : counters.entrySet()) {
+            Counter c = e.getValue();
+            synchronized (c) {
+                result.add(new REPLLog.SuppressionCounter(e.getKey().level(), e.getKey().template(), c.total, c.suppressed, c.lastSeen));
+            }
+        }
+        return result;
+    }
+
+    // must hold the counter's lock
+    private REPLLogEntry closeWindow(Key key, Counter c, long now) {
+        long pending = c.pending;
+        long seconds = TimeUnit.NANOSECONDS.toSeconds(now - c.windowStart);
+        c.windowStart = now;
+        c.inWindow = 0;
+        c.pending = 0;
+        if (pending == 0) return null;
+        return new REPLLogEntry(key.level(), "REPL: {} more messages like this were suppressed in the last {}s: {}", pending, seconds, key.template());
+    }
+
+    private synchronized void startSweeper() {
+        if (sweeper != null) return;
+        Thread t = new Thread(() -> {
+            while (true) {
+                LockSupport.parkNanos(this, windowNanos);
+                try {
+                    sweep();
+                } catch (RuntimeException e) {
+                    System.err.println("REPL: could not summarize suppressed log messages: " + e);
+                }
+                synchronized (this) {
+                    // a new counter will start a new sweeper
+                    if (counters.isEmpty()) {
+                        sweeper = null;
+                        return;
+                    }
+                }
+            }
+        }, REPL.THREAD_PREFIX + "log suppressor");
+        t.setDaemon(true);
+        sweeper = t;
+        t.start();
+    }
+}
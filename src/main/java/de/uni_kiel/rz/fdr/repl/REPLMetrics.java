@@ -0,0 +1,228 @@
+// (C) Copyright 2023 Ove Sörensen
+// SPDX-License-Identifier: MIT
+
+package de.uni_kiel.rz.fdr.repl;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import de.uni_kiel.rz.fdr.repl.groovy.GroovyShellCommand;
+import groovy.json.JsonOutput;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+
+/**
+ * Exports metrics about jobs, SSH sessions and cau-repl's internals over HTTP, for scraping by a monitoring system.
+ * {@code /metrics} serves the Prometheus text format, {@code /metrics.json} the same values as JSON. The server is
+ * disabled by default and is started with the REPL if {@code CAU.REPL.Metrics.Port} is set. All values are read
+ * without taking any locks that running jobs depend on, so scraping never slows them down.
+ */
+public class REPLMetrics {
+
+    /**
+     * The port of the metrics endpoint, {@code 0} disables it. Configured by the {@code CAU.REPL.Metrics.Port}
+     * system property.
+     */
+    public static final int PORT = (int) Helpers.longProperty("CAU.REPL.Metrics.Port", 0);
+    /**
+     * The address that the metrics endpoint binds to. Configured by the {@code CAU.REPL.Metrics.ListenAddr} system
+     * property.
+     */
+    public static final String LISTEN_ADDR = System.getProperty("CAU.REPL.Metrics.ListenAddr", "127.0.0.1");
+
+    private static final String PROMETHEUS_CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+    private static final String JSON_CONTENT_TYPE = "application/json; charset=utf-8";
+
+    private static HttpServer server = null;
+    private static ExecutorService executor = null;
+
+    private REPLMetrics() {}
+
+    /**
+     * Starts the metrics endpoint. Does nothing if it is already running.
+     * @param listenAddr The address to bind to.
+     * @param port The port to bind to, {@code 0} picks a free port.
+     * @return The address that the endpoint is listening on.
+     * @throws IOException The server could not be started.
+     */
+    public static synchronized InetSocketAddress start(String listenAddr, int port) throws IOException {
+        if (server != null) return server.getAddress();
+        HttpServer s = HttpServer.create(new InetSocketAddress(listenAddr, port), 0);
+        s.createContext("/metrics", exchange -> respond(exchange, PROMETHEUS_CONTENT_TYPE, REPLMetrics::prometheus));
+        s.createContext("/metrics.json", exchange -> respond(exchange, JSON_CONTENT_TYPE, REPLMetrics::json));
+        executor = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, REPL.THREAD_PREFIX + "metrics");
+            t.setDaemon(true);
+            return t;
+        });
+        s.setExecutor(executor);
+        s.start();
+        server = s;
+        REPLLog.log(new REPLLogEntry(REPLLogEntry.LOG_LEVEL.INFO, "REPL: metrics available at http://{}:{}/metrics", listenAddr, s.getAddress().getPort()), REPLLog.INTERNAL_LOG_TARGETS);
+        return s.getAddress();
+    }
+
+    /**
+     * Stops the metrics endpoint, if it is running.
+     */
+    public static synchronized void stop() {
+        if (server == null) return;
+        server.stop(0);
+        executor.shutdownNow();
+        server = null;
+        executor = null;
+    }
+
+    /**
+     * Gets the address that the metrics endpoint is listening on.
+     * @return The address, or {@code null} if the endpoint is not running.
+     */
+    public static synchronized InetSocketAddress getAddress() {
+        return server != null ? server.getAddress() : null;
+    }
+
+    private static void respond(HttpExchange exchange, String contentType, Supplier<String> body) throws IOException {
+        try {
+            // contexts match by prefix, so /metrics would also answer /metricsfoo
+            String path = exchange.getRequestURI().getPath();
+            if (!path.equals(exchange.getHttpContext().getPath())) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+            if (!exchange.getRequestMethod().equals("GET") && !exchange.getRequestMethod().equals("HEAD")) {
+                exchange.getResponseHeaders().set("Allow", "GET, HEAD");
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] bytes = body.get().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", contentType);
+            if (exchange.getRequestMethod().equals("HEAD")) {
+                exchange.sendResponseHeaders(200, -1);
+                return;
+            }
+            exchange.sendResponseHeaders(200, bytes.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Gets the current metrics in the Prometheus text exposition format.
+     * @return The current metrics.
+     */
+    public static String prometheus() {
+        StringBuilder sb = new StringBuilder(4096);
+        List<REPLJob.JobMetrics> jobs = jobMetrics();
+
+        header(sb, "cau_repl_job_inputs", "gauge", "Number of inputs that the job was started with.");
+        for (REPLJob.JobMetrics j : jobs) sample(sb, "cau_repl_job_inputs", j, null, j.totalInputs());
+        header(sb, "cau_repl_job_remaining_inputs", "gauge", "Number of inputs that have not yet been processed.");
+        for (REPLJob.JobMetrics j : jobs) sample(sb, "cau_repl_job_remaining_inputs", j, null, j.remainingInputs());
+        header(sb, "cau_repl_job_processed_inputs_total", "counter", "Number of processed inputs by result.");
+        for (REPLJob.JobMetrics j : jobs) {
+            sample(sb, "cau_repl_job_processed_inputs_total", j, "result=\"success\"", j.success());
+            sample(sb, "cau_repl_job_processed_inputs_total", j, "result=\"error\"", j.errors());
+            sample(sb, "cau_repl_job_processed_inputs_total", j, "result=\"skipped_success\"", j.skippedSuccess());
+            sample(sb, "cau_repl_job_processed_inputs_total", j, "result=\"skipped_error\"", j.skippedErrors());
+        }
+        header(sb, "cau_repl_job_inputs_per_second", "gauge", "Average number of processed inputs per second while the job was not paused.");
+        for (REPLJob.JobMetrics j : jobs) sample(sb, "cau_repl_job_inputs_per_second", j, null, j.inputsPerSecond());
+        header(sb, "cau_repl_job_eta_seconds", "gauge", "Estimated number of seconds until the job completes.");
+        for (REPLJob.JobMetrics j : jobs) if (j.etaSeconds() != null) sample(sb, "cau_repl_job_eta_seconds", j, null, j.etaSeconds());
+        header(sb, "cau_repl_job_concurrency", "gauge", "Configured number of worker threads.");
+        for (REPLJob.JobMetrics j : jobs) sample(sb, "cau_repl_job_concurrency", j, null, j.concurrency());
+        header(sb, "cau_repl_job_active_threads", "gauge", "Number of worker threads that are processing inputs.");
+        for (REPLJob.JobMetrics j : jobs) sample(sb, "cau_repl_job_active_threads", j, null, j.activeThreads());
+        header(sb, "cau_repl_job_queue_length", "gauge", "Number of inputs that are queued for the worker threads.");
+        for (REPLJob.JobMetrics j : jobs) sample(sb, "cau_repl_job_queue_length", j, null, j.queueLength());
+        header(sb, "cau_repl_job_store_queue_length", "gauge", "Number of results that are queued for writing to the job's state file.");
+        for (REPLJob.JobMetrics j : jobs) sample(sb, "cau_repl_job_store_queue_length", j, null, j.storeQueueLength());
+        header(sb, "cau_repl_job_active", "gauge", "Whether the job has been started and is not yet done.");
+        for (REPLJob.JobMetrics j : jobs) sample(sb, "cau_repl_job_active", j, null, j.active() ? 1 : 0);
+        header(sb, "cau_repl_job_paused", "gauge", "Whether the job is paused or pausing.");
+        for (REPLJob.JobMetrics j : jobs) sample(sb, "cau_repl_job_paused", j, null, j.paused() ? 1 : 0);
+        header(sb, "cau_repl_job_cancelled", "gauge", "Whether the job is cancelled or cancelling.");
+        for (REPLJob.JobMetrics j : jobs) sample(sb, "cau_repl_job_cancelled", j, null, j.cancelled() ? 1 : 0);
+
+        header(sb, "cau_repl_log_messages_total", "counter", "Number of log messages by level, including suppressed messages.");
+        for (REPLLogEntry.LOG_LEVEL level : REPLLogEntry.LOG_LEVEL.values()) {
+            sb.append("cau_repl_log_messages_total{level=\"").append(level.name().toLowerCase(Locale.ROOT)).append("\"} ").append(REPLLog.getLogCount(level)).append('\n');
+        }
+        header(sb, "cau_repl_log_file_queue_length", "gauge", "Number of log messages waiting to be written to repl.log.");
+        sb.append("cau_repl_log_file_queue_length ").append(REPLLog.getFileQueueLength()).append('\n');
+        header(sb, "cau_repl_sessions_active", "gauge", "Number of active SSH shell sessions.");
+        sb.append("cau_repl_sessions_active ").append(GroovyShellCommand.activeShells.size()).append('\n');
+        header(sb, "cau_repl_breakpoints_waiting", "gauge", "Number of triggered breakpoints that wait to be resumed.");
+        sb.append("cau_repl_breakpoints_waiting ").append(REPLBreakpoint.countWaiting()).append('\n');
+        return sb.toString();
+    }
+
+    /**
+     * Gets the current metrics as JSON.
+     * @return The current metrics.
+     */
+    public static String json() {
+        List<Map<String, Object>> jobs = new ArrayList<>();
+        for (REPLJob.JobMetrics j : jobMetrics()) {
+            Map<String, Object> m = new LinkedHashMap<>();
+            m.put("key", j.key());
+            m.put("name", j.name());
+            m.put("active", j.active());
+            m.put("paused", j.paused());
+            m.put("cancelled", j.cancelled());
+            m.put("totalInputs", j.totalInputs());
+            m.put("remainingInputs", j.remainingInputs());
+            m.put("success", j.success());
+            m.put("skippedSuccess", j.skippedSuccess());
+            m.put("errors", j.errors());
+            m.put("skippedErrors", j.skippedErrors());
+            m.put("concurrency", j.concurrency());
+            m.put("activeThreads", j.activeThreads());
+            m.put("queueLength", j.queueLength());
+            m.put("storeQueueLength", j.storeQueueLength());
+            m.put("inputsPerSecond", j.inputsPerSecond());
+            m.put("etaSeconds", j.etaSeconds());
+            jobs.add(m);
+        }
+        Map<String, Object> log = new LinkedHashMap<>();
+        for (REPLLogEntry.LOG_LEVEL level : REPLLogEntry.LOG_LEVEL.values()) log.put(level.name().toLowerCase(Locale.ROOT), REPLLog.getLogCount(level));
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("jobs", jobs);
+        result.put("logMessages", log);
+        result.put("logFileQueueLength", REPLLog.getFileQueueLength());
+        result.put("activeSessions", GroovyShellCommand.activeShells.size());
+        result.put("waitingBreakpoints", REPLBreakpoint.countWaiting());
+        return JsonOutput.toJson(result);
+    }
+
+    private static List<REPLJob.JobMetrics> jobMetrics() {
+        List<REPLJob.JobMetrics> result = new ArrayList<>();
+        for (REPLJob job : REPLJob.list()) result.add(job.getMetrics());
+        return result;
+    }
+
+    private static void header(StringBuilder sb, String name, String type, String help) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder sb, String name, REPLJob.JobMetrics job, String labels, Number value) {
+        sb.append(name).append("{job=\"").append(escape(job.key())).append("\",name=\"").append(escape(job.name())).append('"');
+        if (labels != null) sb.append(',').append(labels);
+        sb.append("} ").append(value).append('\n');
+    }
+
+    private static String escape(String label) {
+        if (label == null) return "";
+        return label.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
@@ -9,6 +9,7 @@ import org.apache.sshd.common.channel.exception.SshChannelException;
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.Objects;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 public class TtyFilterOutputStream extends FilterOutputStream {
@@ -24,13 +25,19 @@ public class TtyFilterOutputStream extends FilterOutputStream {
      */
     private final AtomicBoolean isServiceAlive, isChannelAlive = new AtomicBoolean(true);
 
+    // translated output is collected here and handed to the channel in bulk
+    private static final int BUFFER_SIZE = 8192;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    // only forward flushes if something was written since the last one
+    private boolean dirty = false;
+
     public TtyFilterOutputStream(OutputStream out, AtomicBoolean isServiceAlive) {
         super(out);
         this.isServiceAlive = isServiceAlive;
     }
 
     @Override
-    public void write(int c) throws IOException {
+    public synchronized void write(int c) throws IOException {
         if (isAlive()) {
             try {
                 if (c == '\n') {
@@ -38,6 +45,7 @@ public class TtyFilterOutputStream extends FilterOutputStream {
                     c = '\r';
                 }
                 super.write(c);
+                dirty = true;
             } catch (SshChannelException e) {
                 isChannelAlive.set(false);
                 throw e;
@@ -46,10 +54,11 @@ public class TtyFilterOutputStream extends FilterOutputStream {
     }
 
     @Override
-    public void flush() throws IOException {
-        if (isAlive()) {
+    public synchronized void flush() throws IOException {
+        if (isAlive() && dirty) {
             try {
                 super.flush();
+                dirty = false;
             } catch (SshChannelException e) {
                 isChannelAlive.set(false);
                 throw e;
@@ -58,14 +67,51 @@ public class TtyFilterOutputStream extends FilterOutputStream {
     }
 
     @Override
-    public void write(byte[] b, int off, int len) throws IOException {
-        if (isAlive()) {
-            for (int i = off; i < len; i++) {
-                write(b[i]);
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+        Objects.checkFromIndexSize(off, len, b.length);
+        if (isAlive() && len > 0) {
+            try {
+                int end = off + len;
+                int start = off;
+                int lf = indexOfLF(b, start, end);
+                // no line breaks: nothing to translate
+                if (lf < 0) {
+                    out.write(b, off, len);
+                } else {
+                    int n = 0;
+                    while (start < end) {
+                        int runEnd = lf < 0 ? end : lf + 1;
+                        while (start < runEnd) {
+                            int chunk = Math.min(runEnd - start, BUFFER_SIZE - 1 - n);
+                            System.arraycopy(b, start, buffer, n, chunk);
+                            n += chunk;
+                            start += chunk;
+                            if (n >= BUFFER_SIZE - 1) {
+                                out.write(buffer, 0, n);
+                                n = 0;
+                            }
+                        }
+                        // the run ended with a LF, there is always room for the CR
+                        if (lf >= 0) buffer[n++] = '\r';
+                        lf = indexOfLF(b, start, end);
+                    }
+                    if (n > 0) out.write(buffer, 0, n);
+                }
+                dirty = true;
+            } catch (SshChannelException e) {
+                isChannelAlive.set(false);
+                throw e;
             }
         }
     }
 
+    private static int indexOfLF(byte[] b, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (b[i] == '\n') return i;
+        }
+        return -1;
+    }
+
     private boolean isAlive() {
         return isServiceAlive.get() && isChannelAlive.get();
     }
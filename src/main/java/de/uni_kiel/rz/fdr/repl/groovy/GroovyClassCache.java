@@ -0,0 +1,193 @@
+// (C) Copyright 2024 Ove Sörensen
+// SPDX-License-Identifier: MIT
+
+package de.uni_kiel.rz.fdr.repl.groovy;
+
+import de.uni_kiel.rz.fdr.repl.Helpers;
+import de.uni_kiel.rz.fdr.repl.REPL;
+import de.uni_kiel.rz.fdr.repl.REPLLog;
+import groovy.lang.GroovySystem;
+
+import java.io.*;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.stream.Stream;
+
+import static de.uni_kiel.rz.fdr.repl.REPLLog.TRACE;
+import static de.uni_kiel.rz.fdr.repl.REPLLog.TRACE_COMPILE;
+
+// Keeps the bytecode that a GroovySourceDirectory defined in the work dir, so that the next start of the JVM can skip
+// compilation. There is one file per source directory. It is only used if its key still matches: a hash of the sources,
+// the class path of the @Patches targets and the versions of cau-repl, Groovy and Java. The file lists all class
+// definitions in their original order, including the renamed @Patches targets, so that loading it replays exactly what
+// compilation did. Class paths given in @Patches annotations are only known after compilation, so their fingerprint is
+// stored in the file and checked separately.
+class GroovyClassCache {
+
+    static final String SUBDIR = "classcache";
+
+    private static final int MAGIC = 0xCA0C1A55;
+    private static final int FORMAT = 2;
+
+    record Definition(String name, byte[] bytecode, boolean patchee, String source, Set<String> references) {}
+
+    record Entry(String key, Set<String> classPaths, String classPathsFingerprint, List<Definition> definitions) {}
+
+    private final Path file;
+    private final Path exclude;
+
+    GroovyClassCache(File workDir, Path root) {
+        this.file = workDir.toPath().resolve(SUBDIR).resolve(hex(sha256(root.toString().getBytes(StandardCharsets.UTF_8))).substring(0, 32) + ".cache");
+        // the work dir changes all the time (e.g. repl.log), never consider it to be a part of the class path
+        this.exclude = workDir.toPath().toAbsolutePath().normalize();
+    }
+
+    Path getFile() {
+        return file;
+    }
+
+    String key(Path root, List<File> sources, String patcheeClassPath, boolean reorderSources, String previousKey) throws IOException {
+        MessageDigest md = sha256();
+        update(md, "format " + FORMAT);
+        update(md, REPL.getVersionString());
+        update(md, GroovySystem.getVersion());
+        update(md, String.valueOf(Runtime.version().feature()));
+        update(md, root.toString());
+        update(md, String.valueOf(reorderSources));
+        // classes that were loaded into the same ClassLoader before us may have been compiled from different sources
+        update(md, String.valueOf(previousKey));
+        update(md, fingerprint(Set.of(String.valueOf(patcheeClassPath))));
+        List<Path> sorted = sources.stream().map(File::toPath).sorted().toList();
+        for (Path p : sorted) {
+            update(md, root.relativize(p).toString());
+            update(md, hex(sha256(Files.readAllBytes(p))));
+        }
+        return hex(md.digest());
+    }
+
+    // returns null unless there is a valid entry for this key
+    Entry load(String key) {
+        if (!Files.isRegularFile(file)) return null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT) return null;
+            if (!in.readUTF().equals(key)) return null;
+            int n = in.readInt();
+            Set<String> classPaths = new TreeSet<>();
+            for (int i = 0; i < n; i++) classPaths.add(in.readUTF());
+            String fingerprint = in.readUTF();
+            if (!fingerprint.equals(fingerprint(classPaths))) {
+                if (TRACE || TRACE_COMPILE) REPLLog.trace("Class cache {}: @Patches class path changed", file);
+                return null;
+            }
+            n = in.readInt();
+            List<Definition> definitions = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) {
+                boolean patchee = in.readBoolean();
+                String name = in.readUTF();
+                String source = in.readUTF();
+                int r = in.readInt();
+                Set<String> references = new HashSet<>(r);
+                for (int j = 0; j < r; j++) references.add(in.readUTF());
+                byte[] bytecode = new byte[in.readInt()];
+                in.readFully(bytecode);
+                definitions.add(new Definition(name, bytecode, patchee, source, references));
+            }
+            return new Entry(key, classPaths, fingerprint, definitions);
+        } catch (IOException | RuntimeException e) {
+            if (TRACE || TRACE_COMPILE) REPLLog.trace("Class cache {} is unreadable: {}", file, e);
+            return null;
+        }
+    }
+
+    void store(String key, Set<String> classPaths, List<Definition> definitions) throws IOException {
+        Files.createDirectories(file.getParent());
+        Path tmp = Files.createTempFile(file.getParent(), "cache.", ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 16))) {
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT);
+                out.writeUTF(key);
+                out.writeInt(classPaths.size());
+                for (String cp : classPaths) out.writeUTF(cp);
+                out.writeUTF(fingerprint(classPaths));
+                out.writeInt(definitions.size());
+                for (Definition d : definitions) {
+                    out.writeBoolean(d.patchee());
+                    out.writeUTF(d.name());
+                    out.writeUTF(d.source());
+                    out.writeInt(d.references().size());
+                    for (String r : d.references()) out.writeUTF(r);
+                    out.writeInt(d.bytecode().length);
+                    out.write(d.bytecode());
+                }
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    // jars are identified by their size and modification time, directories by those of all the files they contain
+    private String fingerprint(Set<String> classPaths) throws IOException {
+        MessageDigest md = sha256();
+        for (String classPath : new TreeSet<>(classPaths)) {
+            update(md, "classpath " + classPath);
+            for (URL url : Helpers.deglobClassPath(classPath)) {
+                Path p;
+                try {
+                    p = Path.of(url.toURI()).toAbsolutePath().normalize();
+                } catch (URISyntaxException | IllegalArgumentException e) {
+                    update(md, url.toString());
+                    continue;
+                }
+                if (Files.isDirectory(p)) {
+                    if (p.startsWith(exclude)) continue;
+                    List<String> entries = new ArrayList<>();
+                    try (Stream<Path> w = Files.walk(p)) {
+                        w.filter(f -> !f.startsWith(exclude)).forEach(f -> {
+                            try {
+                                BasicFileAttributes a = Files.readAttributes(f, BasicFileAttributes.class);
+                                if (a.isRegularFile()) entries.add(f + " " + a.size() + " " + a.lastModifiedTime().toMillis());
+                            } catch (IOException ignore) {}
+                        });
+                    }
+                    Collections.sort(entries);
+                    for (String e : entries) update(md, e);
+                } else if (Files.isRegularFile(p)) {
+                    BasicFileAttributes a = Files.readAttributes(p, BasicFileAttributes.class);
+                    update(md, p + " " + a.size() + " " + a.lastModifiedTime().toMillis());
+                } else {
+                    update(md, p + " missing");
+                }
+            }
+        }
+        return hex(md.digest());
+    }
+
+    private static void update(MessageDigest md, String s) {
+        md.update(s.getBytes(StandardCharsets.UTF_8));
+        md.update((byte) 0);
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("Internal error: SHA-256 is not available", e);
+        }
+    }
+
+    private static byte[] sha256(byte[] data) {
+        return sha256().digest(data);
+    }
+
+    private static String hex(byte[] bytes) {
+        return HexFormat.of().formatHex(bytes);
+    }
+}
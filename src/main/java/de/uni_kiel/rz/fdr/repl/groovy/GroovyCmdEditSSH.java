@@ -13,8 +13,8 @@ import java.io.*;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.util.*;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -98,8 +98,8 @@ public class GroovyCmdEditSSH extends CommandSupport {
             }
             args.add(fileName);
             Process proc = Runtime.getRuntime().exec(args.toArray(new String[0]), env);
-            ExecutorService exsvc = StreamRedirector.asyncRedirect(proc, in, out, err);
-            try { exsvc.awaitTermination(999, TimeUnit.DAYS); } catch (InterruptedException ignore) {}
+            Future<Void> redirect = StreamRedirector.asyncRedirect(proc, in, out, err);
+            try { redirect.get(); } catch (InterruptedException | ExecutionException ignore) {}
 
             if (evaluate) {
                 // feed the edited buffer to the repl
@@ -8,6 +8,7 @@ import org.apache.groovy.groovysh.Groovysh;
 import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.nio.charset.StandardCharsets;
+import java.time.temporal.ChronoUnit;
 import java.util.*;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
@@ -37,7 +38,7 @@ public class GroovyCmdPS extends CommandSupport {
 
     @Override
     public String getUsage() {
-        return "[] | all | kill [threadid...] | killforce [threadid...]";
+        return "[] | all | sessions | kill [threadid...] | killforce [threadid...] | close [threadid...]";
     }
 
     @Override
@@ -66,6 +67,31 @@ public class GroovyCmdPS extends CommandSupport {
             return("\n" + s);
         }
 
+        if (list.get(0).equals("sessions")) {
+            String s = GroovyShellCommand.getSessionStats().stream()
+                    .map(st -> String.format("[%d]%s%s@%s since %s: cpu %s, allocated %s, classes %d", st.threadId(),
+                            st.threadId() == Thread.currentThread().getId() ? " * " : " ", st.user(), st.address(),
+                            st.started().truncatedTo(ChronoUnit.SECONDS),
+                            st.cpuNanos() < 0 ? "n/a" : String.format("%.1fs", st.cpuNanos() / 1e9),
+                            st.allocatedBytes() < 0 ? "n/a" : String.format("%.1fMB", st.allocatedBytes() / (1024.0 * 1024.0)),
+                            st.classes()))
+                    .collect(Collectors.joining("\n"));
+            return("\n" + s);
+        }
+
+        if (list.get(0).equals("close")) {
+            if (list.size() < 2) fail("the close subcommand needs at least 1 argument");
+            PrintWriter pw = new PrintWriter(out, true, StandardCharsets.UTF_8);
+            for (String arg : list.subList(1, list.size())) {
+                try {
+                    if (!GroovyShellCommand.closeSession(Long.parseLong(arg))) pw.println("ERROR: " + arg + ": no such session");
+                } catch (NumberFormatException ex) {
+                    pw.println("ERROR: " + arg + ": " + ex.getMessage());
+                }
+            }
+            return null;
+        }
+
         if (list.get(0).equals("kill") || list.get(0).equals("killforce")) {
             // kill command
             boolean force = list.get(0).equals("killforce");
@@ -11,9 +11,9 @@ import org.codehaus.groovy.control.CompilePhase;
 import org.codehaus.groovy.control.SourceUnit;
 import org.codehaus.groovy.control.customizers.CompilationCustomizer;
 
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import de.uni_kiel.rz.fdr.repl.Dynamize;
 
@@ -24,8 +24,9 @@ import de.uni_kiel.rz.fdr.repl.Dynamize;
  */
 
 public class GroovyDynamizeTransformer1 extends CompilationCustomizer {
-    private final Set<String> processed = new HashSet<>();
-    private final HashMap<String, Boolean> dynamizedClasses = new HashMap<>();
+    // shared between batches that are compiled in parallel
+    private final Set<String> processed = ConcurrentHashMap.newKeySet();
+    private final Map<String, Boolean> dynamizedClasses = new ConcurrentHashMap<>();
 
     public GroovyDynamizeTransformer1() {
         super(CompilePhase.CONVERSION);
@@ -51,6 +52,11 @@ public class GroovyDynamizeTransformer1 extends CompilationCustomizer {
         dynamizeClassNode(classNode, inherit);
     }
 
+    // the class will be compiled again
+    void forget(String className) {
+        processed.remove(className);
+    }
+
     public Set<String> getDynamizedClasses() {
         return dynamizedClasses.keySet();
     }
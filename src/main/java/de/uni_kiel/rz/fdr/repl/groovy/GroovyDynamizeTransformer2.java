@@ -23,6 +23,7 @@ import org.codehaus.groovy.control.customizers.CompilationCustomizer;
 
 import java.lang.reflect.Method;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Stream;
 
 import static de.uni_kiel.rz.fdr.repl.Helpers.*;
@@ -54,7 +55,7 @@ public class GroovyDynamizeTransformer2 extends CompilationCustomizer {
                                                             ).toList()
                                                          );
 
-    private final Set<String> processed = new HashSet<>();
+    private final Set<String> processed = ConcurrentHashMap.newKeySet();
     private final GroovyDynamizeTransformer1 transformer1;
 
     public GroovyDynamizeTransformer2(GroovyDynamizeTransformer1 transformer1) {
@@ -150,6 +151,11 @@ public class GroovyDynamizeTransformer2 extends CompilationCustomizer {
         }
     }
 
+    // the class will be compiled again
+    void forget(String className) {
+        processed.remove(className);
+    }
+
     private boolean isTopDynamized(ClassNode classNode) {
         ClassNode realParent = realParent(classNode);
         if (realParent != null && processed.contains(realParent.getName())) return false;
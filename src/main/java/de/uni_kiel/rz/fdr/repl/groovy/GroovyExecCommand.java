@@ -0,0 +1,149 @@
+// (C) Copyright 2023 Ove Sörensen
+// SPDX-License-Identifier: MIT
+
+package de.uni_kiel.rz.fdr.repl.groovy;
+
+import de.uni_kiel.rz.fdr.repl.REPL;
+import de.uni_kiel.rz.fdr.repl.REPLLog;
+import de.uni_kiel.rz.fdr.repl.REPLLogEntry;
+import groovy.lang.Binding;
+import groovy.lang.GroovyShell;
+import groovy.lang.Script;
+import org.apache.sshd.server.Environment;
+import org.apache.sshd.server.ExitCallback;
+import org.apache.sshd.server.SshServer;
+import org.apache.sshd.server.channel.ChannelSession;
+import org.apache.sshd.server.command.Command;
+import org.codehaus.groovy.control.CompilationFailedException;
+import org.codehaus.groovy.control.CompilerConfiguration;
+import org.codehaus.groovy.control.customizers.ImportCustomizer;
+import org.codehaus.groovy.runtime.FormatHelper;
+import org.codehaus.groovy.runtime.InvokerHelper;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Evaluates a Groovy script that was passed as an SSH command (e.g. {@code ssh -p 8512 user@host 'println 42'}), or
+ * piped to the command {@code -} via stdin, without an interactive shell. The script sees the same bindings as a shell
+ * session and cau-repl's classes are imported, but none of the default scripts are loaded. A non-null result is
+ * printed to stdout. The exit code is 0 on success, 1 if the script threw an exception and 2 if it could not be
+ * compiled. Scripts can choose their own exit code by setting the variable {@code exitCode}.
+ */
+public class GroovyExecCommand implements Command {
+
+    public static final String THREAD_PREFIX = GroovyShellCommand.THREAD_PREFIX + "exec ";
+    public static final String STDIN_COMMAND = "-";
+    public static final int EXIT_ERROR = 1;
+    public static final int EXIT_COMPILATION_ERROR = 2;
+
+    // compiled scripts, shared between all exec channels, so that recurring (e.g. cron) commands are only compiled once
+    static class ScriptCache {
+        private static final int MAX_SCRIPTS = 100;
+
+        private final GroovyShell groovyShell;
+        private final Map<String, Class<? extends Script>> scripts = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Class<? extends Script>> eldest) {
+                return size() > MAX_SCRIPTS;
+            }
+        };
+
+        ScriptCache(ClassLoader classLoader) {
+            CompilerConfiguration config = new CompilerConfiguration();
+            config.addCompilationCustomizers(new ImportCustomizer().addStarImports(REPL.class.getPackageName()));
+            this.groovyShell = new GroovyShell(classLoader, config);
+        }
+
+        Script create(String source, Binding binding) throws CompilationFailedException {
+            Class<? extends Script> klass;
+            synchronized (scripts) {
+                klass = scripts.get(source);
+            }
+            if (klass == null) {
+                klass = groovyShell.parse(source, "cau_repl_exec").getClass();
+                synchronized (scripts) {
+                    scripts.put(source, klass);
+                }
+            }
+            return InvokerHelper.createScript(klass, binding);
+        }
+    }
+
+    private final SshServer sshd;
+    private final Map<String, Object> bindings;
+    private final ScriptCache scriptCache;
+    private final String command;
+    private InputStream in;
+    private OutputStream out;
+    private OutputStream err;
+    private ExitCallback callback;
+    private Thread runner;
+
+    GroovyExecCommand(SshServer sshd, Map<String, Object> bindings, ScriptCache scriptCache, String command) {
+        this.sshd = sshd;
+        this.bindings = bindings;
+        this.scriptCache = scriptCache;
+        this.command = command;
+    }
+
+    @Override
+    public void setInputStream(InputStream in) {
+        this.in = in;
+    }
+
+    @Override
+    public void setOutputStream(OutputStream out) {
+        this.out = out;
+    }
+
+    @Override
+    public void setErrorStream(OutputStream err) {
+        this.err = err;
+    }
+
+    @Override
+    public void setExitCallback(ExitCallback callback) {
+        this.callback = callback;
+    }
+
+    @Override
+    public void start(ChannelSession channel, Environment env) {
+        Object address = channel.getSession().getRemoteAddress();
+        runner = new Thread(() -> {
+            Binding binding = GroovyShellCommand.createBinding(sshd, this, bindings, in, out, err, env);
+            int exitCode = execute(binding);
+            REPLLog.log(new REPLLogEntry(REPLLogEntry.LOG_LEVEL.INFO, "REPL: {}: exec command finished with exit code {}", address, exitCode), REPLLog.INTERNAL_LOG_TARGETS);
+            callback.onExit(exitCode);
+        }, THREAD_PREFIX + address);
+        runner.start();
+    }
+
+    private int execute(Binding binding) {
+        PrintStream stdout = (PrintStream) binding.getVariable("out");
+        PrintStream stderr = (PrintStream) binding.getVariable("err");
+        try {
+            String source = command.trim().equals(STDIN_COMMAND) ? new String(in.readAllBytes(), StandardCharsets.UTF_8) : command;
+            Script script = scriptCache.create(source, binding);
+            Object result = script.run();
+            if (result != null) stdout.println(FormatHelper.toString(result));
+            return binding.hasVariable("exitCode") && binding.getVariable("exitCode") instanceof Number n ? n.intValue() : 0;
+        } catch (CompilationFailedException e) {
+            stderr.println(e.getMessage());
+            return EXIT_COMPILATION_ERROR;
+        } catch (Exception | Error e) {
+            e.printStackTrace(stderr);
+            return EXIT_ERROR;
+        } finally {
+            stdout.flush();
+            stderr.flush();
+        }
+    }
+
+    @Override
+    public void destroy(ChannelSession channel) {
+        if (runner != null) runner.interrupt();
+    }
+}
@@ -0,0 +1,302 @@
+// (C) Copyright 2024 Ove Sörensen
+// SPDX-License-Identifier: MIT
+
+package de.uni_kiel.rz.fdr.repl.groovy;
+
+import groovyjarjarantlr4.v4.runtime.*;
+import org.apache.groovy.parser.antlr4.GroovyLangLexer;
+import org.codehaus.groovy.ast.ImportNode;
+import org.codehaus.groovy.ast.ModuleNode;
+
+import java.util.*;
+
+import static org.apache.groovy.parser.antlr4.GroovyLexer.*;
+
+// Finds the class declarations of a Groovy source with nothing but the lexer, so that the compile order can be
+// determined without parsing every source twice. It extracts the same information that GroovyPatchesTransformer's
+// dry-run reads from the AST: the package, imports, and each class's supertypes and annotations, including the
+// members of @Patches. Method bodies are skipped, except for anonymous classes, which may extend classes of their own.
+class GroovyHeaderScanner {
+
+    record Imports(String packageName, LinkedHashMap<String, String> aliases, List<String> starPackages) {}
+
+    record Annotation(String name, Map<String, String> members) {}
+
+    record ClassHeader(String name, String superClass, List<String> interfaces, List<Annotation> annotations, Imports imports) {}
+
+    // the source could not be tokenized, use the parser instead
+    static class ScanException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        ScanException(String message) {
+            super(message);
+        }
+    }
+
+    private static final Set<Integer> MODIFIERS = Set.of(PUBLIC, PROTECTED, PRIVATE, ABSTRACT, FINAL, STATIC, SEALED, NON_SEALED, STRICTFP);
+    private static final Set<Integer> DECLARATIONS = Set.of(CLASS, INTERFACE, ENUM, TRAIT, RECORD);
+    // trait and record are only keywords in front of a declaration, elsewhere they are names of fields or methods
+    private static final Set<Integer> CONTEXTUAL_DECLARATIONS = Set.of(TRAIT, RECORD);
+    private static final Set<Integer> IDENTIFIERS = Set.of(Identifier, CapitalizedIdentifier);
+
+    private final List<Token> tokens;
+    private final String fileName;
+    private final String scriptName;
+    private int pos = 0;
+
+    private GroovyHeaderScanner(List<Token> tokens, String fileName, String scriptName) {
+        this.tokens = tokens;
+        this.fileName = fileName;
+        this.scriptName = scriptName;
+    }
+
+    static List<ClassHeader> scan(String source, String fileName, Map<String, String> defaultImports) throws ScanException {
+        GroovyLangLexer lexer;
+        try {
+            lexer = new GroovyLangLexer(CharStreams.fromString(source, fileName));
+        } catch (RuntimeException e) {
+            throw new ScanException(fileName + ": " + e);
+        }
+        lexer.removeErrorListeners();
+        lexer.addErrorListener(new ANTLRErrorListener<Integer>() {
+            @Override
+            public <T extends Integer> void syntaxError(Recognizer<T, ?> recognizer, T offendingSymbol, int line, int charPositionInLine, String msg, RecognitionException e) {
+                throw new IllegalStateException(fileName + ":" + line + ": " + msg);
+            }
+        });
+        List<Token> tokens = new ArrayList<>();
+        try {
+            for (Token t : lexer.getAllTokens()) {
+                if (t.getChannel() == Token.DEFAULT_CHANNEL && t.getType() != NL) tokens.add(t);
+            }
+        } catch (RuntimeException e) {
+            throw new ScanException(fileName + ": " + e.getMessage());
+        }
+        String scriptName = fileName.replaceAll("^.*[/\\\\]", "").replaceAll("\\.groovy$", "");
+        try {
+            return new GroovyHeaderScanner(tokens, fileName, scriptName).scan(defaultImports);
+        } catch (IndexOutOfBoundsException e) {
+            throw new ScanException(fileName + ": unexpected end of file");
+        }
+    }
+
+    static Imports imports(ModuleNode module) {
+        LinkedHashMap<String, String> aliases = new LinkedHashMap<>();
+        for (ImportNode imp : module.getImports()) aliases.putIfAbsent(imp.getAlias(), imp.getClassName());
+        return new Imports(module.getPackageName(), aliases, module.getStarImports().stream().map(ImportNode::getPackageName).toList());
+    }
+
+    private record Scope(String name, int depth) {}
+
+    private List<ClassHeader> scan(Map<String, String> defaultImports) throws ScanException {
+        String packageName = null;
+        LinkedHashMap<String, String> aliases = new LinkedHashMap<>();
+        List<String> starPackages = new ArrayList<>();
+        Imports imports = new Imports(null, aliases, starPackages);
+        List<ClassHeader> result = new ArrayList<>();
+        Deque<Scope> scopes = new ArrayDeque<>();
+        Map<String, Integer> anonymous = new HashMap<>();
+        List<Annotation> annotations = new ArrayList<>();
+        boolean script = false;
+        int depth = 0;
+
+        while (pos < tokens.size()) {
+            int type = type(pos);
+            boolean classLevel = depth == 0 || (!scopes.isEmpty() && scopes.peek().depth() == depth);
+            if (type == LBRACE) {
+                depth++;
+                annotations.clear();
+                pos++;
+            } else if (type == RBRACE) {
+                if (!scopes.isEmpty() && scopes.peek().depth() == depth) scopes.pop();
+                depth--;
+                annotations.clear();
+                pos++;
+            } else if (depth == 0 && type == PACKAGE) {
+                pos++;
+                packageName = qualifiedName() + ".";
+                imports = new Imports(packageName, aliases, starPackages);
+            } else if (depth == 0 && type == IMPORT) {
+                pos++;
+                boolean isStatic = type(pos) == STATIC;
+                if (isStatic) pos++;
+                String name = qualifiedName();
+                boolean star = false;
+                if (type(pos) == DOT && type(pos + 1) == MUL) {
+                    star = true;
+                    pos += 2;
+                }
+                String alias = name.substring(name.lastIndexOf('.') + 1);
+                if (type(pos) == AS) {
+                    alias = text(pos + 1);
+                    pos += 2;
+                }
+                if (!isStatic && star) starPackages.add(name + ".");
+                else if (!isStatic) aliases.putIfAbsent(alias, name);
+            } else if (classLevel && type == AT && type(pos + 1) != INTERFACE) {
+                pos++;
+                annotations.add(annotation());
+            } else if (classLevel && isDeclaration(pos)) {
+                if (type == AT) pos++;
+                int kind = type(pos);
+                String simpleName = text(pos + 1);
+                pos += 2;
+                String name = scopes.isEmpty() ? (packageName != null ? packageName : "") + simpleName : scopes.peek().name() + "$" + simpleName;
+                List<String> extendsTypes = new ArrayList<>();
+                List<String> implementsTypes = new ArrayList<>();
+                while (type(pos) != LBRACE) {
+                    int t = type(pos);
+                    if (t == Token.EOF) throw new IndexOutOfBoundsException();
+                    if (t == EXTENDS) {
+                        pos++;
+                        extendsTypes.addAll(typeList());
+                    } else if (t == IMPLEMENTS) {
+                        pos++;
+                        implementsTypes.addAll(typeList());
+                    } else if (t == PERMITS) {
+                        pos++;
+                        typeList();
+                    } else if (t == LT) {
+                        skipBalanced(LT, GT);
+                    } else if (t == LPAREN && kind == RECORD) {
+                        skipBalanced(LPAREN, RPAREN);
+                    } else {
+                        throw unexpected(pos);
+                    }
+                }
+                String superClass = null;
+                List<String> interfaces = implementsTypes;
+                if (kind == INTERFACE || kind == TRAIT) interfaces = extendsTypes;
+                else if (!extendsTypes.isEmpty()) superClass = extendsTypes.get(0);
+                result.add(new ClassHeader(name, superClass, interfaces, List.copyOf(annotations), imports));
+                annotations.clear();
+                depth++;
+                scopes.push(new Scope(name, depth));
+                pos++;
+            } else if (classLevel && DECLARATIONS.contains(type) && !CONTEXTUAL_DECLARATIONS.contains(type) && type(pos - 1) != DOT && type(pos + 1) != COLON) {
+                // a keyword that can't be anything but a declaration (or a map key), but isn't followed by a name
+                throw unexpected(pos + 1);
+            } else if (type == NEW) {
+                // anonymous classes: new Foo(...) { ... }
+                if (depth == 0) script = true;
+                pos++;
+                if (type(pos) != Identifier && type(pos) != CapitalizedIdentifier) continue;
+                String superType = qualifiedName();
+                if (type(pos) == LT) skipBalanced(LT, GT);
+                if (type(pos) != LPAREN) continue;
+                skipBalanced(LPAREN, RPAREN);
+                if (type(pos) != LBRACE) continue;
+                String outer = scopes.isEmpty() ? (packageName != null ? packageName : "") + scriptName : scopes.peek().name();
+                int n = anonymous.merge(outer, 1, Integer::sum);
+                String name = outer + "$" + n;
+                result.add(new ClassHeader(name, superType, List.of(), List.of(), imports));
+                depth++;
+                scopes.push(new Scope(name, depth));
+                pos++;
+            } else {
+                if (depth == 0 && type != SEMI && !MODIFIERS.contains(type)) script = true;
+                if (classLevel && !MODIFIERS.contains(type)) annotations.clear();
+                pos++;
+            }
+        }
+
+        if (script || result.stream().noneMatch(h -> !h.name().contains("$"))) {
+            String name = (packageName != null ? packageName : "") + scriptName;
+            if (result.stream().noneMatch(h -> h.name().equals(name))) result.add(0, new ClassHeader(name, null, List.of(), List.of(), imports));
+        }
+        for (Map.Entry<String, String> e : defaultImports.entrySet()) aliases.putIfAbsent(e.getKey(), e.getValue());
+        return result;
+    }
+
+    private int type(int i) {
+        return i >= 0 && i < tokens.size() ? tokens.get(i).getType() : Token.EOF;
+    }
+
+    // class Foo, @interface Foo, trait Foo - but neither Foo.class nor fields or methods that are called trait or record
+    private boolean isDeclaration(int i) {
+        if (type(i - 1) == DOT) return false;
+        if (type(i) == AT) {
+            if (type(i + 1) != INTERFACE) return false;
+            i++;
+        }
+        return DECLARATIONS.contains(type(i)) && IDENTIFIERS.contains(type(i + 1));
+    }
+
+    private ScanException unexpected(int i) {
+        if (type(i) == Token.EOF) return new ScanException(fileName + ": unexpected end of file");
+        Token t = tokens.get(i);
+        return new ScanException(fileName + ":" + t.getLine() + ": unexpected '" + t.getText() + "'");
+    }
+
+    private String text(int i) {
+        return tokens.get(i).getText();
+    }
+
+    private String qualifiedName() {
+        StringBuilder sb = new StringBuilder(text(pos++));
+        while (type(pos) == DOT && type(pos + 1) != MUL && type(pos + 1) != Token.EOF) {
+            sb.append('.').append(text(pos + 1));
+            pos += 2;
+        }
+        return sb.toString();
+    }
+
+    private List<String> typeList() throws ScanException {
+        List<String> result = new ArrayList<>();
+        while (true) {
+            if (!IDENTIFIERS.contains(type(pos))) throw unexpected(pos);
+            result.add(qualifiedName());
+            if (type(pos) == LT) skipBalanced(LT, GT);
+            if (type(pos) != COMMA) return result;
+            pos++;
+        }
+    }
+
+    private void skipBalanced(int open, int close) {
+        int level = 0;
+        do {
+            int t = type(pos++);
+            if (t == open) level++;
+            else if (t == close) level--;
+            else if (t == Token.EOF) throw new IndexOutOfBoundsException();
+        } while (level > 0);
+    }
+
+    private Annotation annotation() {
+        String name = qualifiedName();
+        Map<String, String> members = new LinkedHashMap<>();
+        if (type(pos) != LPAREN) return new Annotation(name, members);
+        pos++;
+        while (type(pos) != RPAREN) {
+            String member = "value";
+            if (type(pos + 1) == ASSIGN) {
+                member = text(pos);
+                pos += 2;
+            }
+            int start = pos;
+            int level = 0;
+            while (level > 0 || (type(pos) != COMMA && type(pos) != RPAREN)) {
+                int t = type(pos++);
+                if (t == LPAREN || t == LBRACK || t == LBRACE) level++;
+                else if (t == RPAREN || t == RBRACK || t == RBRACE) level--;
+                else if (t == Token.EOF) throw new IndexOutOfBoundsException();
+            }
+            members.put(member, value(start, pos));
+            if (type(pos) == COMMA) pos++;
+        }
+        pos++;
+        return new Annotation(name, members);
+    }
+
+    // the text of a constant as the AST would render it, i.e. without quotes
+    private String value(int start, int end) {
+        if (end - start == 1 && type(start) == StringLiteral) {
+            String s = text(start);
+            int q = s.startsWith("'''") || s.startsWith("\"\"\"") ? 3 : s.startsWith("$/") ? 2 : 1;
+            return s.substring(q, s.length() - q);
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int i = start; i < end; i++) sb.append(text(i));
+        return sb.toString();
+    }
+}
@@ -3,39 +3,46 @@
 
 package de.uni_kiel.rz.fdr.repl.groovy;
 
-import de.uni_kiel.rz.fdr.repl.Helpers;
 import org.codehaus.groovy.ast.*;
 import org.codehaus.groovy.classgen.GeneratorContext;
 import org.codehaus.groovy.control.CompilationFailedException;
 import org.codehaus.groovy.control.CompilePhase;
 import org.codehaus.groovy.control.SourceUnit;
 import org.codehaus.groovy.control.customizers.CompilationCustomizer;
-import org.jgrapht.Graph;
-import org.jgrapht.graph.DefaultEdge;
-import org.jgrapht.graph.builder.GraphTypeBuilder;
-import org.jgrapht.traverse.TopologicalOrderIterator;
 
 import java.net.URI;
 import java.util.*;
 
+// Records the classes of a compilation unit and sorts them into an order in which they can be defined: superclasses
+// and interfaces before the classes that extend them, outer classes before their inner classes. The order is computed
+// once, when it is first requested after compilation, instead of after every class.
 public class GroovyLoadOrderTransformer extends CompilationCustomizer {
-    public List<ClassNode> loadOrder = new ArrayList<>();
-    public List<URI> sourceOrder = new ArrayList<>();
+    private final LinkedHashMap<String, ClassNode> classes = new LinkedHashMap<>();
     private final Map<String, URI> sourceMap = new HashMap<>();
+    private List<ClassNode> loadOrder = null;
 
     public GroovyLoadOrderTransformer() {
-        super(CompilePhase.FINALIZATION);
+        super(CompilePhase.CLASS_GENERATION);
     }
 
     @Override
     public void call(SourceUnit sourceUnit, GeneratorContext generatorContext, ClassNode classNode) throws CompilationFailedException {
         sourceMap.put(classNode.getName(), sourceUnit.getSource().getURI());
-        loadOrder.remove(classNode);
-        loadOrder.add(classNode);
-        loadOrder = sortLoadOrder(loadOrder);
-        sourceOrder.clear();
-        for (ClassNode cn : loadOrder) if (!cn.getName().contains("$")) sourceOrder.add(sourceMap.get(cn.getName()));
+        classes.remove(classNode.getName());
+        classes.put(classNode.getName(), classNode);
+        loadOrder = null;
+    }
+
+    public List<ClassNode> getLoadOrder() {
+        if (loadOrder == null) loadOrder = sortLoadOrder(classes);
+        return loadOrder;
+    }
+
+    public List<URI> getSourceOrder() {
+        List<URI> sourceOrder = new ArrayList<>();
+        for (ClassNode cn : getLoadOrder()) if (!cn.getName().contains("$")) sourceOrder.add(sourceMap.get(cn.getName()));
         if (new HashSet<>(sourceOrder).size() != sourceOrder.size()) throw new RuntimeException("Internal Error: inconsistent source order");
+        return sourceOrder;
     }
 
     public static List<ClassNode> getAllSuperclasses(ClassNode classNode) {
@@ -48,40 +55,31 @@ public class GroovyLoadOrderTransformer extends CompilationCustomizer {
         return getAllSuperclasses(classNode).size();
     }
 
-    private static List<ClassNode> sortLoadOrder(List<ClassNode> classes) {
-        Graph<ClassNode, DefaultEdge> graph = GraphTypeBuilder
-                .<ClassNode, DefaultEdge> directed()
-                .allowingMultipleEdges(false)
-                .allowingSelfLoops(false)
-                .edgeClass(DefaultEdge.class)
-                .buildGraph();
-        for (ClassNode c : classes) {
-            graph.addVertex(c);
-            // superclasses before their subclasses
-            for (ClassNode s : getAllSuperclasses(c)) {
-                if (s.equals(c)) continue;
-                if (!classes.contains(s)) continue;
-                graph.addVertex(s);
-                graph.addEdge(c, s);
-            }
-            // outer classes before their inner classes
-            for (ClassNode x : classes) {
-                if (x.equals(c)) continue;
-                if (!classes.contains(x)) continue;
-                graph.addVertex(x);
-                if (Helpers.isInnerClassOf(c.getName(), x.getName())) {
-                    graph.addEdge(x, c);
-                }
-            }
-        }
+    // a depth-first traversal in the order of compilation, which emits every class after its dependencies
+    private static List<ClassNode> sortLoadOrder(LinkedHashMap<String, ClassNode> classes) {
+        List<ClassNode> loadOrder = new ArrayList<>(classes.size());
+        Set<String> visited = new HashSet<>();
+        for (ClassNode c : classes.values()) visit(c, classes, visited, loadOrder);
+        return loadOrder;
+    }
 
-        // topological sort
-        List<ClassNode> loadOrder = new ArrayList<>();
-        for (TopologicalOrderIterator<ClassNode, DefaultEdge> it = new TopologicalOrderIterator<>(graph); it.hasNext(); ) {
-            ClassNode x = it.next();
-            loadOrder.add(x);
+    private static void visit(ClassNode classNode, Map<String, ClassNode> classes, Set<String> visited, List<ClassNode> loadOrder) {
+        if (!visited.add(classNode.getName())) return;
+        String name = classNode.getName();
+        // outer classes before their inner classes
+        for (int i = name.indexOf('$'); i > 0; i = name.indexOf('$', i + 1)) {
+            ClassNode outer = classes.get(name.substring(0, i));
+            if (outer != null) visit(outer, classes, visited, loadOrder);
         }
-        Collections.reverse(loadOrder);
-        return loadOrder;
+        // superclasses and interfaces before their subclasses
+        for (ClassNode s : getAllSuperclasses(classNode)) {
+            ClassNode x = classes.get(s.getName());
+            if (x != null) visit(x, classes, visited, loadOrder);
+        }
+        for (ClassNode s : classNode.getInterfaces()) {
+            ClassNode x = classes.get(s.getName());
+            if (x != null) visit(x, classes, visited, loadOrder);
+        }
+        loadOrder.add(classNode);
     }
 }
@@ -17,7 +17,6 @@ import org.codehaus.groovy.control.SourceUnit;
 import org.codehaus.groovy.control.customizers.CompilationCustomizer;
 import org.jgrapht.Graph;
 import org.jgrapht.alg.connectivity.KosarajuStrongConnectivityInspector;
-import org.jgrapht.alg.cycle.TarjanSimpleCycles;
 import org.jgrapht.graph.DefaultEdge;
 import org.jgrapht.graph.builder.GraphTypeBuilder;
 import org.jgrapht.traverse.TopologicalOrderIterator;
@@ -47,6 +46,8 @@ public class GroovyPatchesTransformer extends CompilationCustomizer {
 
     public record PatchesSettings (String classPath, String target, boolean makePublic, boolean preserveSuper, String[] stripAnnotations, boolean force) {}
     private record SimulationResult(LinkedHashSet<String> dependencies) {}
+    // sources that are compiled together, after the batches at the given (lower) indices have been loaded
+    record CompileBatch(Set<URI> sources, Set<Integer> dependencies) {}
 
     private final GroovySourceDirectory sourceDirectory;
     private final String defaultClassPath;
@@ -55,6 +56,9 @@ public class GroovyPatchesTransformer extends CompilationCustomizer {
     private final Map<String, LinkedHashSet<String>> dependencies = new HashMap<>();
     private final Map<String, URI> sources = new HashMap<>();
     private final Map<String, PatchesSettings> patchesSettings = new HashMap<>();
+    private final LinkedHashMap<String, byte[]> patcheeDefinitions = new LinkedHashMap<>();
+    private final Map<String, SimulationResult> simulated = new HashMap<>();
+    private final Map<String, URLClassLoader> simulationLoaders = new HashMap<>();
 
     public GroovyPatchesTransformer(GroovySourceDirectory sourceDirectory, String defaultClassPath, boolean dryRun) {
         super(CompilePhase.CONVERSION);
@@ -69,39 +73,11 @@ public class GroovyPatchesTransformer extends CompilationCustomizer {
         sources.put(classNode.getName(), sourceUnit.getSource().getURI());
         PatchesSettings settings = null;
         for (AnnotationNode an : classNode.getAnnotations()) {
-            String cp = defaultClassPath;
-            String ta = null;
-            boolean mp = true;
-            boolean ps = true;
-            boolean fo = false;
-            String[] sa = new String[]{};
-
             // we can only match on the simple name in this compilation phase
             if (!an.getClassNode().getName().equals(Patches.class.getSimpleName())) continue;
-            if (!classNode.getSuperClass().getName().equals("java.lang.Object")) throw new UncheckedCompilationException("Class " + classNode.getName() + " mixes @Patches and 'extends'");
-            if (settings != null) throw new UncheckedCompilationException("Class " + classNode.getName() + " has multiple @Patches annotations");
-
-            Expression ex = an.getMember("classPath");
-            if (ex != null) cp = ex.getText();
-
-            ex = an.getMember("target");
-            ta = ex == null ? classNode.getName() : ex.getText();
-
-            ex = an.getMember("makePublic");
-            if (ex != null) mp = !ex.getText().equalsIgnoreCase("false");
-
-            ex = an.getMember("preserveSuper");
-            if (ex != null) ps = !ex.getText().equalsIgnoreCase("false");
-
-            ex = an.getMember("stripAnnotations");
-            if (ex != null) sa = ex.getText().split(",");
-            if (sa.length == 0) sa = null;
-
-            ex = an.getMember("force");
-            if (ex != null) fo = ex.getText().equalsIgnoreCase("true");
-
-            settings = new PatchesSettings(cp, ta, mp, ps, sa, fo);
-            patchesSettings.put(classNode.getName(), settings);
+            Map<String, String> members = new HashMap<>();
+            for (Map.Entry<String, Expression> m : an.getMembers().entrySet()) members.put(m.getKey(), m.getValue().getText());
+            settings = patchesSettings(classNode.getName(), !classNode.getSuperClass().getName().equals("java.lang.Object"), settings != null, members);
         }
 
         if (!dryRun && settings != null) {
@@ -119,6 +95,43 @@ public class GroovyPatchesTransformer extends CompilationCustomizer {
         }
     }
 
+    // simulates the dry-run for a class that was found by GroovyHeaderScanner instead of the parser
+    void simulate(URI source, GroovyHeaderScanner.ClassHeader header) {
+        if (!processed.add(header.name())) return;
+        sources.put(header.name(), source);
+        PatchesSettings settings = null;
+        for (GroovyHeaderScanner.Annotation an : header.annotations()) {
+            if (!an.name().equals(Patches.class.getSimpleName())) continue;
+            settings = patchesSettings(header.name(), header.superClass() != null, settings != null, an.members());
+        }
+        List<String> candidates = new ArrayList<>();
+        if (header.superClass() != null) candidates.add(header.superClass());
+        candidates.addAll(header.interfaces());
+        for (GroovyHeaderScanner.Annotation an : header.annotations()) candidates.add(an.name());
+        try {
+            SimulationResult sr = doDryRun(header.name(), candidates, header.imports(), settings);
+            dependencies.put(header.name(), sr.dependencies);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (TRACE || TRACE_COMPILE) REPLLog.trace("Class {} dependency candidates: {}", header.name(), String.join(", ", dependencies.get(header.name())));
+    }
+
+    private PatchesSettings patchesSettings(String className, boolean hasSuperClass, boolean hasSettings, Map<String, String> members) {
+        if (hasSuperClass) throw new UncheckedCompilationException("Class " + className + " mixes @Patches and 'extends'");
+        if (hasSettings) throw new UncheckedCompilationException("Class " + className + " has multiple @Patches annotations");
+        String cp = members.getOrDefault("classPath", defaultClassPath);
+        String ta = members.getOrDefault("target", className);
+        boolean mp = !members.getOrDefault("makePublic", "true").equalsIgnoreCase("false");
+        boolean ps = !members.getOrDefault("preserveSuper", "true").equalsIgnoreCase("false");
+        String[] sa = members.containsKey("stripAnnotations") ? members.get("stripAnnotations").split(",") : new String[]{};
+        if (sa.length == 0) sa = null;
+        boolean fo = members.getOrDefault("force", "false").equalsIgnoreCase("true");
+        PatchesSettings settings = new PatchesSettings(cp, ta, mp, ps, sa, fo);
+        patchesSettings.put(className, settings);
+        return settings;
+    }
+
     private void doPatch(ClassNode classNode, PatchesSettings settings) {
         GroovyPatchResult patchResult;
         try {
@@ -149,6 +162,15 @@ public class GroovyPatchesTransformer extends CompilationCustomizer {
     }
 
     private SimulationResult doDryRun(ClassNode classNode, SourceUnit sourceUnit, PatchesSettings settings) throws IOException {
+        List<String> candidates = new ArrayList<>();
+        // superclasses, interfaces and annotations, as they appear in the AST
+        for (ClassNode kl = classNode.getSuperClass(); kl != null; kl = kl.getSuperClass()) candidates.add(kl.getName());
+        for (ClassNode iface : classNode.getAllInterfaces()) candidates.add(iface.getName());
+        for (AnnotationNode ann : classNode.getAnnotations()) candidates.add(ann.getClassNode().getName());
+        return doDryRun(classNode.getName(), candidates, GroovyHeaderScanner.imports(sourceUnit.getAST()), settings);
+    }
+
+    private SimulationResult doDryRun(String className, List<String> candidates, GroovyHeaderScanner.Imports imports, PatchesSettings settings) throws IOException {
         LinkedHashMap<String, SimulationResult> toCheck = new LinkedHashMap<>();
 
         if (settings != null) {
@@ -156,34 +178,30 @@ public class GroovyPatchesTransformer extends CompilationCustomizer {
             toCheck.put(settings.target, null);
         }
 
-        // now check the ast directly...
-        // ...superclasses...
-        for (ClassNode kl = classNode.getSuperClass(); kl != null; kl = kl.getSuperClass()) {
-            for (String imp : locateImport(kl.getName(), sourceUnit)) {
-                toCheck.put(imp, null);
-            }
-        }
-        // ...interfaces...
-        for (ClassNode iface : classNode.getAllInterfaces()) {
-            for (String imp : locateImport(iface.getName(), sourceUnit)) {
-                toCheck.put(imp, null);
-            }
-        }
-        // ...and annotations
-        for (AnnotationNode ann : classNode.getAnnotations()) {
-            for (String imp : locateImport(ann.getClassNode().getName(), sourceUnit)) {
+        // now check the candidates from the class declaration
+        for (String candidate : candidates) {
+            for (String imp : locateImport(candidate, imports)) {
                 toCheck.put(imp, null);
             }
         }
 
         // load each candidate in a dummy classloader and check dependencies
         for (String chk : toCheck.keySet()) {
-            try {
-                SimulationResult sr = simulateDependencies(chk, settings != null ? settings.classPath : defaultClassPath);
+            String classPath = settings != null ? settings.classPath : defaultClassPath;
+            // many classes share the same candidates, only simulate each of them once
+            String key = classPath + "\0" + chk;
+            if (!simulated.containsKey(key)) {
+                try {
+                    simulated.put(key, simulateDependencies(chk, classPath));
+                } catch (ClassNotFoundException ex) {
+                    simulated.put(key, null);
+                }
+            }
+            SimulationResult sr = simulated.get(key);
+            if (sr != null) {
                 toCheck.put(chk, sr);
-            } catch (ClassNotFoundException ex) {
-                if (TRACE || TRACE_COMPILE)
-                    REPLLog.trace("Ignoring speculative transitive dependencies of {} -> {} for now", classNode.getName(), chk);
+            } else if (TRACE || TRACE_COMPILE) {
+                REPLLog.trace("Ignoring speculative transitive dependencies of {} -> {} for now", className, chk);
             }
         }
 
@@ -197,28 +215,56 @@ public class GroovyPatchesTransformer extends CompilationCustomizer {
     }
 
     private SimulationResult simulateDependencies(String className, String classPath) throws ClassNotFoundException, IOException {
-        try (URLClassLoader loader = new URLClassLoader(Helpers.deglobClassPath(classPath).toArray(new URL[]{}), null)) {
-            Class<?> simulatedClass = loader.loadClass(className);
-            LinkedList<Class<?>> queue = new LinkedList<>();
-            HashSet<String> seen = new HashSet<>();
-            queue.add(simulatedClass.getSuperclass());
-            queue.addAll(Arrays.stream(simulatedClass.getInterfaces()).toList());
-
-            LinkedHashSet<String> simulatedDeps = new LinkedHashSet<>();
-            while (!queue.isEmpty()) {
-                Class<?> klass = queue.removeFirst();
-                if (klass == null || !seen.add(klass.getName())) continue;
-                simulatedDeps.add(klass.getName());
-                queue.add(klass.getSuperclass());
-                queue.addAll(Arrays.stream(klass.getInterfaces()).toList());
-                queue.addAll(Arrays.stream(klass.getAnnotations()).map(Annotation::annotationType).toList());
-            }
-
-            return new SimulationResult(simulatedDeps);
+        URLClassLoader loader = simulationLoaders.get(classPath);
+        if (loader == null) {
+            loader = new URLClassLoader(Helpers.deglobClassPath(classPath).toArray(new URL[]{}), null);
+            simulationLoaders.put(classPath, loader);
+        }
+        Class<?> simulatedClass = loader.loadClass(className);
+        LinkedList<Class<?>> queue = new LinkedList<>();
+        HashSet<String> seen = new HashSet<>();
+        queue.add(simulatedClass.getSuperclass());
+        queue.addAll(Arrays.stream(simulatedClass.getInterfaces()).toList());
+
+        LinkedHashSet<String> simulatedDeps = new LinkedHashSet<>();
+        while (!queue.isEmpty()) {
+            Class<?> klass = queue.removeFirst();
+            if (klass == null || !seen.add(klass.getName())) continue;
+            simulatedDeps.add(klass.getName());
+            queue.add(klass.getSuperclass());
+            queue.addAll(Arrays.stream(klass.getInterfaces()).toList());
+            queue.addAll(Arrays.stream(klass.getAnnotations()).map(Annotation::annotationType).toList());
         }
+
+        return new SimulationResult(simulatedDeps);
+    }
+
+    // releases the class loaders of the dry-run, once all classes were simulated
+    void closeSimulation() throws IOException {
+        for (URLClassLoader loader : simulationLoaders.values()) loader.close();
+        simulationLoaders.clear();
+    }
+
+    // the source of each class that was seen
+    Map<String, URI> getSources() {
+        return Collections.unmodifiableMap(sources);
+    }
+
+    // the renamed @Patches targets that were defined, in order
+    Map<String, byte[]> getPatcheeDefinitions() {
+        return Collections.unmodifiableMap(patcheeDefinitions);
+    }
+
+    // the class paths of all @Patches targets that were seen
+    Set<String> getPatcheeClassPaths() {
+        return patchesSettings.values().stream().map(PatchesSettings::classPath).collect(Collectors.toCollection(TreeSet::new));
     }
 
     public List<Set<URI>> getCompileOrder() {
+        return getCompileBatches().stream().map(CompileBatch::sources).toList();
+    }
+
+    List<CompileBatch> getCompileBatches() {
         // collect dependencies in a directed graph
         Graph<String, DefaultEdge> graph = GraphTypeBuilder
                 .<String, DefaultEdge> directed()
@@ -235,35 +281,45 @@ public class GroovyPatchesTransformer extends CompilationCustomizer {
                 graph.addEdge(e.getKey(), s);
             }
         }
+        // inner and outer classes depend on one another
         for (String x : graph.vertexSet()) {
-            for (String y : graph.vertexSet()) {
-                if (y.equals(x)) continue;
-                // inner and outer classes depend on one another
-                if (isInnerClassOf(x, y)) {
-                    graph.addEdge(x, y);
-                    graph.addEdge(y, x);
-                }
-                // outer classes in the same package can use one another without imports, but make sure not to disturb the @Patches induced order
-                if (packageOfClass(y).equals(packageOfClass(x)) && !patchesSettings.containsKey(y) && !patchesSettings.containsKey(x) && !x.contains("$") && !y.contains("$")) {
-                    graph.addEdge(x, y);
-                    graph.addEdge(y, x);
-                }
+            for (int i = x.indexOf('$'); i > 0; i = x.indexOf('$', i + 1)) {
+                String outer = x.substring(0, i);
+                if (!graph.containsVertex(outer)) continue;
+                graph.addEdge(outer, x);
+                graph.addEdge(x, outer);
             }
         }
+        // outer classes in the same package can use one another without imports, but make sure not to disturb the
+        // @Patches induced order. a ring through all of a package's classes makes them strongly connected just like
+        // edges between all pairs would, but with a linear number of edges.
+        Map<String, List<String>> packages = new LinkedHashMap<>();
+        for (String x : graph.vertexSet()) {
+            if (patchesSettings.containsKey(x) || x.contains("$")) continue;
+            packages.computeIfAbsent(packageOfClass(x), k -> new ArrayList<>()).add(x);
+        }
+        for (List<String> members : packages.values()) {
+            if (members.size() < 2) continue;
+            for (int i = 0; i < members.size(); i++) graph.addEdge(members.get(i), members.get((i + 1) % members.size()));
+        }
 
-        // detect unresolvable cycles
-        TarjanSimpleCycles<String, DefaultEdge> cycleDetector = new TarjanSimpleCycles<>(graph);
+        // detect unresolvable cycles: two @Patches classes that are not nested in one another must not depend on each other
+        KosarajuStrongConnectivityInspector<String, DefaultEdge> scc = new KosarajuStrongConnectivityInspector<>(graph);
         List<List<String>> cycles = new ArrayList<>();
-        cycleDetector.findSimpleCycles(c -> {
-            List<String> pc = c.stream().filter(patchesSettings::containsKey).toList();
+        for (Set<String> component : scc.stronglyConnectedSets()) {
+            List<String> pc = component.stream().filter(patchesSettings::containsKey).sorted().toList();
+            search:
             for (String x : pc) {
-                if (pc.stream().anyMatch(y -> !x.equals(y) && !isInnerClassOf(x, y) && !isInnerClassOf(y, x))) {
-                    c.add(c.get(0));
-                    cycles.add(c);
-                    break;
+                for (String y : pc) {
+                    if (x.equals(y) || isInnerClassOf(x, y) || isInnerClassOf(y, x)) continue;
+                    List<String> cycle = new ArrayList<>(shortestPath(graph, component, x, y));
+                    cycle.remove(cycle.size() - 1);
+                    cycle.addAll(shortestPath(graph, component, y, x));
+                    cycles.add(cycle);
+                    break search;
                 }
             }
-        });
+        }
         if (!cycles.isEmpty()) {
             cycles.sort(Comparator.comparingInt(List::size));
             String msg = cycles.stream().map(x -> String.join(" -> ", x)).collect(Collectors.joining(", "));
@@ -272,7 +328,7 @@ public class GroovyPatchesTransformer extends CompilationCustomizer {
         }
 
         // group strongly connected clusters in a single node each
-        Graph<Graph<String, DefaultEdge>, DefaultEdge> cgraph = new KosarajuStrongConnectivityInspector<>(graph).getCondensation();
+        Graph<Graph<String, DefaultEdge>, DefaultEdge> cgraph = scc.getCondensation();
         for (Graph<String, DefaultEdge> x : cgraph.vertexSet()) {
             if (TRACE || TRACE_COMPILE) REPLLog.trace("Batch {}", x.vertexSet());
             for (DefaultEdge e : cgraph.edgesOf(x)) {
@@ -283,32 +339,57 @@ public class GroovyPatchesTransformer extends CompilationCustomizer {
         }
 
         // sort topologically
-        List<Set<URI>> batches = new ArrayList<>();
+        List<Graph<String, DefaultEdge>> order = new ArrayList<>();
         for (TopologicalOrderIterator<Graph<String, DefaultEdge>, DefaultEdge> it = new TopologicalOrderIterator<>(cgraph); it.hasNext(); ) {
-            Graph<String, DefaultEdge> x = it.next();
-            batches.add(new HashSet<>(x.vertexSet().stream().map(sources::get).distinct().toList()));
+            order.add(it.next());
+        }
+        Collections.reverse(order);
+        Map<Graph<String, DefaultEdge>, Integer> index = new HashMap<>();
+        List<CompileBatch> batches = new ArrayList<>();
+        for (Graph<String, DefaultEdge> x : order) {
+            Set<Integer> deps = new TreeSet<>();
+            for (DefaultEdge e : cgraph.outgoingEdgesOf(x)) deps.add(index.get(cgraph.getEdgeTarget(e)));
+            index.put(x, batches.size());
+            batches.add(new CompileBatch(new HashSet<>(x.vertexSet().stream().map(sources::get).distinct().toList()), deps));
         }
-        Collections.reverse(batches);
         return batches;
     }
 
+    // a breadth-first search for the shortest path from one class to another, within their strongly connected component
+    private static List<String> shortestPath(Graph<String, DefaultEdge> graph, Set<String> component, String from, String to) {
+        Map<String, String> previous = new HashMap<>();
+        Deque<String> queue = new ArrayDeque<>(List.of(from));
+        previous.put(from, from);
+        while (!queue.isEmpty() && !previous.containsKey(to)) {
+            String x = queue.poll();
+            for (DefaultEdge e : graph.outgoingEdgesOf(x)) {
+                String y = graph.getEdgeTarget(e);
+                if (component.contains(y) && previous.putIfAbsent(y, x) == null) queue.add(y);
+            }
+        }
+        LinkedList<String> path = new LinkedList<>();
+        for (String x = to; !x.equals(from); x = previous.get(x)) path.addFirst(x);
+        path.addFirst(from);
+        return path;
+    }
+
 
     // FIXME this is an ugly hack. we run in a compilation phase where imports are not yet resolved,
     // to work around this, we employ a heuristic which can break in certain situations
-    private static List<String> locateImport(String className, SourceUnit sourceUnit) {
+    private static List<String> locateImport(String className, GroovyHeaderScanner.Imports imports) {
         // starts with a lower case letter -> probably fully qualified
         if (className.startsWith(className.substring(0,1).toLowerCase())) return new ArrayList<>(List.of(className));
 
         // find an exact match
-        for (ImportNode imp : sourceUnit.getAST().getImports()) {
-            if (className.equals(imp.getAlias()) || className.startsWith(imp.getAlias() + ".")) {
-                return new ArrayList<>(List.of(imp.getClassName()));
+        for (Map.Entry<String, String> imp : imports.aliases().entrySet()) {
+            if (className.equals(imp.getKey()) || className.startsWith(imp.getKey() + ".")) {
+                return new ArrayList<>(List.of(imp.getValue()));
             }
         }
 
         // no exact match found. heuristically return dependencies in all *-imports and our own package
-        List<String> res = new ArrayList<>(List.of(sourceUnit.getAST().getPackageName() + className));
-        res.addAll(new ArrayList<>(sourceUnit.getAST().getStarImports().stream().map(i -> i.getPackageName() + className).toList()));
+        List<String> res = new ArrayList<>(List.of((imports.packageName() != null ? imports.packageName() : "") + className));
+        res.addAll(imports.starPackages().stream().map(p -> p + className).toList());
 
         return res;
     }
@@ -351,7 +432,9 @@ public class GroovyPatchesTransformer extends CompilationCustomizer {
             if (settings.preserveSuper) classVisitor = new AddSuperStubsAdapter(ASM9, classVisitor, newName, classLoader);
             classReader.accept(classVisitor, 0);
             try {
-                result.patchedClasses.add(GroovySourceDirectory.defineClass(classLoader, newName, classWriter.toByteArray()));
+                byte[] bytecode = classWriter.toByteArray();
+                result.patchedClasses.add(GroovySourceDirectory.defineClass(classLoader, newName, bytecode));
+                patcheeDefinitions.put(newName, bytecode);
             } catch (LinkageError | InvocationTargetException ex) {
                 Throwable t = ex;
                 if (ex instanceof InvocationTargetException iex) t = iex.getCause();
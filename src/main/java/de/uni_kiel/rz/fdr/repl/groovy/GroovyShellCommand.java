@@ -17,14 +17,16 @@ import org.apache.sshd.server.SshServer;
 import org.apache.sshd.server.channel.ChannelSession;
 import org.apache.sshd.server.command.Command;
 import org.codehaus.groovy.tools.shell.IO;
+import org.codehaus.groovy.tools.shell.util.Preferences;
 
 import java.io.*;
 import java.nio.charset.StandardCharsets;
+import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.Collectors;
 
-import static java.util.Collections.singletonList;
 import static de.uni_kiel.rz.fdr.repl.groovy.GroovyShellService.SHELL_KEY;
 import static org.codehaus.groovy.tools.shell.IO.Verbosity.INFO;
 
@@ -32,23 +34,32 @@ public class GroovyShellCommand implements Command {
 
     public static final Map<GroovyShellCommand, Binding> activeShells = Collections.synchronizedMap(new WeakHashMap<>());
     public static final String THREAD_PREFIX = REPL.THREAD_PREFIX + "client: ";
+    static final long SESSION_CPU_LIMIT = Helpers.longProperty("CAU.REPL.SSH.SessionCpuLimit", 0);
+    private static final long WATCHDOG_INTERVAL = 5000;
+    private static Thread watchdog = null;
 
     private final SshServer sshd;
     private final Map<String, Object> bindings;
     private final List<String> defaultScripts;
+    private final StartupScriptCache startupScriptCache;
     private InputStream in;
     private OutputStream out;
     private OutputStream err;
     private ExitCallback callback;
     private Thread wrapper;
+    private ShellOutputQueue broadcasts;
+    private ChannelSession channel;
+    private SessionAccounting accounting;
+    private volatile boolean closing = false;
     private final AtomicBoolean isServiceAlive;
     private final ClassLoader classLoader;
 
     GroovyShellCommand(SshServer sshd, Map<String, Object> bindings, List<String> defaultScripts,
-                       AtomicBoolean isServiceAlive, ClassLoader classLoader) {
+                       StartupScriptCache startupScriptCache, AtomicBoolean isServiceAlive, ClassLoader classLoader) {
         this.sshd = sshd;
         this.bindings = bindings;
         this.defaultScripts = defaultScripts;
+        this.startupScriptCache = startupScriptCache;
         this.isServiceAlive = isServiceAlive;
         try {
             classLoader.loadClass("org.apache.groovy.groovysh.Groovysh");
@@ -85,9 +96,10 @@ public class GroovyShellCommand implements Command {
         TtyFilterOutputStream out = new TtyFilterOutputStream(this.out, isServiceAlive);
         TtyFilterOutputStream err = new TtyFilterOutputStream(this.err, isServiceAlive);
 
+        ShellInputStream in = new ShellInputStream(this.in);
         IO io = new IO(in, out, err);
         io.setVerbosity(INFO);
-        Binding binding = createBinding(bindings, in, out, err, env);
+        Binding binding = createBinding(sshd, this, bindings, in, out, err, env);
         Groovysh shell = new Groovysh(this.classLoader, binding, io);
         binding.setVariable("_cauShell", shell);
         shell.setErrorHook(new Closure<>(this) {
@@ -106,6 +118,23 @@ public class GroovyShellCommand implements Command {
             }
         });
 
+        ResultRenderer renderer = new ResultRenderer(ResultRenderer.DEFAULT_MAX_CHARS, ResultRenderer.DEFAULT_MAX_ELEMENTS, ResultRenderer.DEFAULT_MAX_MILLIS, in::pollInterrupt);
+        shell.setResultHook(new Closure<>(this) {
+            @Override
+            public Object call(Object... args) {
+                if (io.isQuiet() || !(io.isVerbose() || Boolean.parseBoolean(Preferences.get(Groovysh.SHOW_LAST_RESULT_PREFERENCE_KEY, "true")))) return null;
+                try {
+                    io.out.print("@|bold ===>|@ ");
+                    renderer.render(args.length == 1 ? args[0] : args, io.out);
+                    io.out.println();
+                    io.out.flush();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return null;
+            }
+        });
+
         try {
             loadDefaultScripts(shell);
         } catch (Exception e) {
@@ -124,11 +153,123 @@ public class GroovyShellCommand implements Command {
                 callback.onExit(-1, e.getMessage());
             } finally {
                 activeShells.remove(this);
+                broadcasts.close();
             }
         };
         wrapper = newThread(runnable, session);
+        channel = session;
+        accounting = new SessionAccounting(wrapper, shell.getInterp().getClassLoader());
+        broadcasts = new ShellOutputQueue((PrintStream) binding.getVariable("err"), wrapper.getName() + " output", ShellOutputQueue.DEFAULT_CAPACITY, () -> activeShells.remove(this));
         wrapper.start();
         activeShells.put(this, binding);
+        if (SESSION_CPU_LIMIT > 0) startWatchdog();
+    }
+
+    /**
+     * Resource usage of a shell session.
+     * @param threadId The id of the session's shell thread, as shown by {@code :ps}.
+     * @param user The authenticated user.
+     * @param address The client's address.
+     * @param started When the session's shell was started.
+     * @param cpuNanos The CPU time that the session's shell thread has used, or -1 if the JVM does not support this.
+     * @param allocatedBytes The bytes that the session's shell thread has allocated, or -1 if the JVM does not support
+     *                       this.
+     * @param classes The number of classes that the session has compiled.
+     */
+    public record SessionStats(long threadId, String user, String address, Instant started, long cpuNanos, long allocatedBytes, int classes) {}
+
+    /**
+     * Gets the resource usage of all active shell sessions. Only the work done in the sessions' shell threads is
+     * accounted for, not that of jobs or other threads that were started from a session.
+     * @return The resource usage of each active shell session, the most CPU intensive first.
+     */
+    public static List<SessionStats> getSessionStats() {
+        List<GroovyShellCommand> shells;
+        synchronized (activeShells) {
+            shells = new ArrayList<>(activeShells.keySet());
+        }
+        List<SessionStats> result = new ArrayList<>();
+        for (GroovyShellCommand shell : shells) {
+            SessionAccounting a = shell.accounting;
+            if (a == null) continue;
+            result.add(new SessionStats(a.getThread().getId(), shell.channel.getSession().getAttribute(REPL.USER_KEY),
+                    String.valueOf(shell.channel.getSession().getIoSession().getRemoteAddress()), a.getStarted(),
+                    a.getCpuNanos(), a.getAllocatedBytes(), a.getClasses()));
+        }
+        result.sort(Comparator.comparingLong(SessionStats::cpuNanos).reversed());
+        return result;
+    }
+
+    /**
+     * Terminates a shell session, disconnecting its client.
+     * @param threadId The id of the session's shell thread, as shown by {@code :ps}.
+     * @return true if a session with this shell thread was found and closed.
+     */
+    public static boolean closeSession(long threadId) {
+        List<GroovyShellCommand> shells;
+        synchronized (activeShells) {
+            shells = new ArrayList<>(activeShells.keySet());
+        }
+        for (GroovyShellCommand shell : shells) {
+            if (shell.accounting == null || shell.accounting.getThread().getId() != threadId) continue;
+            shell.close();
+            return true;
+        }
+        return false;
+    }
+
+    private void close() {
+        if (closing) return;
+        closing = true;
+        REPLLog.log(new REPLLogEntry(REPLLogEntry.LOG_LEVEL.INFO, "REPL: {}: closing session", channel.getSession().getRemoteAddress()), REPLLog.INTERNAL_LOG_TARGETS);
+        wrapper.interrupt();
+        channel.getSession().close(true);
+    }
+
+    // closes sessions that have used up their CPU time
+    private static synchronized void startWatchdog() {
+        if (watchdog != null) return;
+        Thread t = new Thread(() -> {
+            long limit = TimeUnit.SECONDS.toNanos(SESSION_CPU_LIMIT);
+            while (true) {
+                try {
+                    Thread.sleep(WATCHDOG_INTERVAL);
+                    List<GroovyShellCommand> shells;
+                    synchronized (activeShells) {
+                        shells = new ArrayList<>(activeShells.keySet());
+                    }
+                    for (GroovyShellCommand shell : shells) {
+                        if (shell.accounting == null || shell.closing || shell.accounting.getCpuNanos() <= limit) continue;
+                        REPLLog.log(new REPLLogEntry(REPLLogEntry.LOG_LEVEL.WARN, "REPL: {}: session exceeded its CPU time limit of {}s", shell.channel.getSession().getRemoteAddress(), SESSION_CPU_LIMIT), REPLLog.INTERNAL_LOG_TARGETS);
+                        shell.close();
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                } catch (RuntimeException e) {
+                    REPLLog.log(new REPLLogEntry(REPLLogEntry.LOG_LEVEL.ERROR, "REPL: session watchdog error: {}", e), REPLLog.INTERNAL_LOG_TARGETS);
+                }
+            }
+        }, REPL.THREAD_PREFIX + "session watchdog");
+        t.setDaemon(true);
+        watchdog = t;
+        t.start();
+    }
+
+    /**
+     * Sends a line of text to the error output of all active shells. This never blocks: each shell has its own
+     * bounded output queue that is written to the client in the background. If a client can't keep up, its oldest
+     * queued lines are dropped.
+     * @param line The text to send.
+     */
+    public static void broadcast(String line) {
+        List<GroovyShellCommand> shells;
+        synchronized (activeShells) {
+            shells = new ArrayList<>(activeShells.keySet());
+        }
+        for (GroovyShellCommand shell : shells) {
+            ShellOutputQueue queue = shell.broadcasts;
+            if (queue != null) queue.offer(line);
+        }
     }
 
     private static Thread newThread(Runnable r, ChannelSession session) {
@@ -137,7 +278,7 @@ public class GroovyShellCommand implements Command {
         return new Thread(r, threadName);
     }
 
-    private Binding createBinding(Map<String, Object> objects, InputStream in, OutputStream out, OutputStream err, Environment env) {
+    static Binding createBinding(SshServer sshd, Object owner, Map<String, Object> objects, InputStream in, OutputStream out, OutputStream err, Environment env) {
         Binding binding = new Binding();
 
         if (objects != null) {
@@ -152,17 +293,23 @@ public class GroovyShellCommand implements Command {
         binding.setVariable("_cauEnv", env.getEnv());
         binding.setVariable("out", createPrintStream(out));
         binding.setVariable("err", createPrintStream(err));
-        binding.setVariable("activeSessions", new Closure<List<AbstractSession>>(this) {
+        binding.setVariable("activeSessions", new Closure<List<AbstractSession>>(owner) {
             @Override
             public List<AbstractSession> call() {
                 return sshd.getActiveSessions();
             }
         });
+        binding.setVariable("sessionStats", new Closure<List<SessionStats>>(owner) {
+            @Override
+            public List<SessionStats> call() {
+                return getSessionStats();
+            }
+        });
 
         return binding;
     }
 
-    private static PrintStream createPrintStream(OutputStream out) {
+    static PrintStream createPrintStream(OutputStream out) {
         return new PrintStream(out, true, StandardCharsets.UTF_8);
     }
 
@@ -180,10 +327,7 @@ public class GroovyShellCommand implements Command {
                     }
                 });
 
-                org.apache.groovy.groovysh.Command cmd = shell.getRegistry().find(":load");
-                for (String script : defaultScripts) {
-                    cmd.execute(singletonList(script));
-                }
+                startupScriptCache.load(shell, defaultScripts, classLoader);
             } finally {
                 // Restoring original result hook
                 shell.setResultHook(defaultResultHook);
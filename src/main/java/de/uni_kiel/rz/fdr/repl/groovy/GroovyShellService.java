@@ -22,6 +22,7 @@ import de.uni_kiel.rz.fdr.repl.REPLLog;
 import de.uni_kiel.rz.fdr.repl.REPLLogEntry;
 import de.uni_kiel.rz.fdr.repl.SshTerminal;
 import org.apache.groovy.groovysh.Groovysh;
+import org.apache.sshd.common.file.virtualfs.VirtualFileSystemFactory;
 import org.apache.sshd.common.session.Session;
 import org.apache.sshd.common.session.SessionListener;
 import org.apache.sshd.server.SshServer;
@@ -30,8 +31,10 @@ import org.apache.sshd.server.auth.password.PasswordAuthenticator;
 import org.apache.sshd.server.auth.password.UserAuthPasswordFactory;
 import org.apache.sshd.server.channel.ChannelSession;
 import org.apache.sshd.server.command.Command;
+import org.apache.sshd.server.command.CommandFactory;
 import org.apache.sshd.server.keyprovider.SimpleGeneratorHostKeyProvider;
 import org.apache.sshd.server.shell.ShellFactory;
+import org.apache.sshd.sftp.server.SftpSubsystemFactory;
 import org.codehaus.groovy.tools.shell.util.Preferences;
 
 import java.io.File;
@@ -62,6 +65,7 @@ import static org.apache.sshd.server.SshServer.setUpDefaultServer;
 public class GroovyShellService {
 
     public static final String HOST_KEY_FILENAME = "ssh-host.key";
+    public static final boolean SFTP_ENABLED = Boolean.parseBoolean(System.getProperty("CAU.REPL.SSH.SFTP", "false"));
 
     private int port;
     private String host;
@@ -71,8 +75,10 @@ public class GroovyShellService {
 
     public static final Session.AttributeKey<Groovysh> SHELL_KEY = new Session.AttributeKey<>();
     private List<String> defaultScripts = new ArrayList<>();
+    private final StartupScriptCache startupScriptCache = new StartupScriptCache();
     private SshServer sshd;
     private boolean disableImportCompletions = false;
+    private boolean sftpEnabled = SFTP_ENABLED;
     private final AtomicBoolean isServiceAlive = new AtomicBoolean(true);
     private final ClassLoader classLoader;
 
@@ -145,6 +151,10 @@ public class GroovyShellService {
         this.disableImportCompletions = disableImportCompletions;
     }
 
+    public void setSftpEnabled(boolean sftpEnabled) {
+        this.sftpEnabled = sftpEnabled;
+    }
+
     public void setPasswordAuthenticator(PasswordAuthenticator passwordAuthenticator) {
         this.passwordAuthenticator = passwordAuthenticator;
     }
@@ -159,7 +169,7 @@ public class GroovyShellService {
      * @throws IOException thrown if socket cannot be opened
      */
     public synchronized void start(File workDir, List<SessionListener> sessionListeners) throws IOException {
-        sshd = buildSshServer(new File(workDir, HOST_KEY_FILENAME), sessionListeners);
+        sshd = buildSshServer(workDir, new File(workDir, HOST_KEY_FILENAME), sessionListeners);
         sshd.start();
         Preferences.put("interpreterMode", "false");
         if (disableImportCompletions) {
@@ -167,7 +177,7 @@ public class GroovyShellService {
         }
     }
 
-    private SshServer buildSshServer(File hostKey, List<SessionListener> sessionListeners) {
+    private SshServer buildSshServer(File workDir, File hostKey, List<SessionListener> sessionListeners) {
         SshServer sshd = setUpDefaultServer();
         sshd.setPort(port);
         if (host != null) {
@@ -208,6 +218,12 @@ public class GroovyShellService {
         sshd.setKeyPairProvider(new SimpleGeneratorHostKeyProvider(hostKey.toPath()));
         configureAuthentication(sshd);
         sshd.setShellFactory(new GroovyShellFactory());
+        sshd.setCommandFactory(new GroovyExecFactory(new GroovyExecCommand.ScriptCache(classLoader)));
+        if (sftpEnabled) {
+            // sftp clients only see the work directory, read-only and without the host key and the class cache
+            sshd.setFileSystemFactory(new VirtualFileSystemFactory(workDir.getAbsoluteFile().toPath()));
+            sshd.setSubsystemFactories(singletonList(new SftpSubsystemFactory.Builder().withFileSystemAccessor(new ReadOnlySftpAccessor()).build()));
+        }
         return sshd;
     }
 
@@ -231,7 +247,20 @@ public class GroovyShellService {
     class GroovyShellFactory implements ShellFactory {
         @Override
         public Command createShell(ChannelSession channel) {
-            return new GroovyShellCommand(sshd, bindings, defaultScripts, isServiceAlive, classLoader);
+            return new GroovyShellCommand(sshd, bindings, defaultScripts, startupScriptCache, isServiceAlive, classLoader);
+        }
+    }
+
+    class GroovyExecFactory implements CommandFactory {
+        private final GroovyExecCommand.ScriptCache scriptCache;
+
+        GroovyExecFactory(GroovyExecCommand.ScriptCache scriptCache) {
+            this.scriptCache = scriptCache;
+        }
+
+        @Override
+        public Command createCommand(ChannelSession channel, String command) {
+            return new GroovyExecCommand(sshd, bindings, scriptCache, command);
         }
     }
 }
@@ -6,31 +6,43 @@ package de.uni_kiel.rz.fdr.repl.groovy;
 import de.uni_kiel.rz.fdr.repl.error.ClassLoadingException;
 import de.uni_kiel.rz.fdr.repl.error.CompilationException;
 import de.uni_kiel.rz.fdr.repl.error.InsufficientAccessRightsException;
+import de.uni_kiel.rz.fdr.repl.Helpers;
+import de.uni_kiel.rz.fdr.repl.REPL;
 import de.uni_kiel.rz.fdr.repl.REPLLog;
 import de.uni_kiel.rz.fdr.repl.REPLLogEntry;
 import groovy.lang.*;
+import groovyjarjarasm.asm.ClassReader;
+import groovyjarjarasm.asm.ClassVisitor;
 import groovyjarjarasm.asm.ClassWriter;
+import groovyjarjarasm.asm.Opcodes;
+import groovyjarjarasm.asm.commons.ClassRemapper;
+import groovyjarjarasm.asm.commons.Remapper;
 import org.codehaus.groovy.ast.ClassHelper;
 import org.codehaus.groovy.control.ClassNodeResolver;
 import org.codehaus.groovy.control.CompilationUnit;
 import org.codehaus.groovy.control.CompilerConfiguration;
+import org.codehaus.groovy.control.Phases;
 import org.codehaus.groovy.control.customizers.ImportCustomizer;
 
 import java.io.File;
 import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
 import java.lang.reflect.InaccessibleObjectException;
 import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 import java.net.URI;
+import java.nio.charset.CharacterCodingException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.*;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
-import static de.uni_kiel.rz.fdr.repl.Helpers.darkInvocation;
 import static de.uni_kiel.rz.fdr.repl.Helpers.isPatchedClass;
 import static de.uni_kiel.rz.fdr.repl.REPLLog.*;
 
@@ -43,8 +55,24 @@ public class GroovySourceDirectory {
      * All the Groovy classes that were successfully compiled by all GroovySourceDirectory instances.
      */
     public static Set<Class<?>> groovyClasses = new ConcurrentHashMap<Class<?>, Boolean>().keySet(true);
-    private static boolean KEEP_TEMPFILES = false;
+    /**
+     * Controls whether compiled classes are cached in the REPL's work directory, so that the next start of the JVM can
+     * load them without compiling the sources again. Configured by the {@code CAU.Groovy.ClassCache} system property.
+     */
+    public static boolean CLASS_CACHE = !System.getProperty("CAU.Groovy.ClassCache", "true").equalsIgnoreCase("false");
+    /**
+     * The maximum number of threads that compile independent batches of sources in parallel, {@code 1} compiles them
+     * sequentially. Configured by the {@code CAU.Groovy.CompileThreads} system property.
+     */
+    public static int COMPILE_THREADS = (int) Helpers.longProperty("CAU.Groovy.CompileThreads", Runtime.getRuntime().availableProcessors());
+    // imported into every source, in addition to a static import of REPLBreakpoint.replbreakpoint
+    private static final Map<String, String> DEFAULT_IMPORTS = Map.of("Patches", "de.uni_kiel.rz.fdr.repl.Patches", "Dynamize", "de.uni_kiel.rz.fdr.repl.Dynamize");
     private static Pattern RE_VERIFY_ERROR_LOCATION = Pattern.compile("^\\s*Location:$\\s*(.*)", Pattern.MULTILINE);
+    // the cache key of the directory that was most recently loaded into each ClassLoader
+    private static final Map<ClassLoader, String> previousCacheKeys = Collections.synchronizedMap(new WeakHashMap<>());
+    // the most recent complete compilation of each root
+    private static final Map<Path, GroovySourceDirectory> directories = new ConcurrentHashMap<>();
+    private static volatile MethodHandle defineClassHandle = null;
 
     private final Path root;
     private List<File> sources;
@@ -53,6 +81,15 @@ public class GroovySourceDirectory {
     private final String patcheeClassPath;
     private final boolean deferredMetaClasses;
     private final boolean reorderSources;
+    private List<GroovyClassCache.Definition> definitions = null; // recorded for the class cache during compilation
+    // the source of each class and the other classes that it refers to, for GroovySourceWatcher's dependency graph
+    private final Map<String, URI> classSources = new HashMap<>();
+    private final Map<String, Set<String>> classReferences = new HashMap<>();
+    private boolean fromCache = false;
+
+    // the output of compiling one batch: the classes in load order, the source of each class, the renamed @Patches
+    // targets that were defined while compiling and the class paths of the @Patches targets
+    private record CompiledBatch(LinkedHashMap<String, byte[]> classes, Map<String, URI> sources, Map<String, byte[]> patchees, Set<String> patcheeClassPaths) {}
 
     /**
      * Compiles the Groovy sources in a directory and its subdirectories, loading it into a private ClassLoader.
@@ -165,6 +202,33 @@ public class GroovySourceDirectory {
         compile();
     }
 
+    // compiles only some of the sources below root and never uses the class cache
+    GroovySourceDirectory(Path root, List<File> files, ClassLoader classLoader, String patcheeClassPath, boolean reorderSources) throws IOException, IllegalAccessException, InsufficientAccessRightsException, CompilationException, ClassLoadingException {
+        this.root = root.toAbsolutePath();
+        this.classLoader = classLoader;
+        this.patcheeClassPath = patcheeClassPath;
+        this.deferredMetaClasses = false;
+        this.reorderSources = reorderSources;
+        compile(files, false);
+    }
+
+    /**
+     * Get the most recent GroovySourceDirectory that compiled all sources below a directory.
+     * @param root The directory.
+     * @return The GroovySourceDirectory, or {@code null} if the directory was never compiled.
+     */
+    public static GroovySourceDirectory get(Path root) {
+        return directories.get(root.toAbsolutePath());
+    }
+
+    /**
+     * Get the directory or file that this instance compiled.
+     * @return The directory or file that this instance compiled.
+     */
+    public Path getRoot() {
+        return root;
+    }
+
     /**
      * Get the ClassLoader of this directory's Groovy classes.
      * @return The ClassLoader of this directory's Groovy classes.
@@ -188,6 +252,13 @@ public class GroovySourceDirectory {
     @SuppressWarnings("unused")
     public List<Class<?>> getClasses() { return List.copyOf(classes); }
 
+    /**
+     * Determines whether the classes were loaded from the class cache instead of being compiled.
+     * @return {@code true} if the classes were loaded from the class cache.
+     */
+    @SuppressWarnings("unused")
+    public boolean isFromCache() { return fromCache; }
+
     /**
      * Add a {@link GroovyDynamizedExpando} meta class to a compiled groovy class. You need to do this manually for
      * dynamized classes if you explicitly deferred this in the settings.
@@ -205,117 +276,334 @@ public class GroovySourceDirectory {
         GroovySystem.getMetaClassRegistry().setMetaClass(theClass, demc);
     }
 
+    String getPatcheeClassPath() {
+        return patcheeClassPath;
+    }
+
+    boolean isReorderSources() {
+        return reorderSources;
+    }
+
+    Map<String, URI> getClassSources() {
+        return Collections.unmodifiableMap(classSources);
+    }
+
+    Map<String, Set<String>> getClassReferences() {
+        return Collections.unmodifiableMap(classReferences);
+    }
+
+    static List<File> findSources(Path root) throws IOException {
+        try(Stream<Path> w = Files.walk(root)) {
+            return w.filter(Files::isRegularFile)
+                    .filter(p -> p.toString().endsWith(".groovy"))
+                    .map(Path::toFile)
+                    .toList();
+        }
+    }
+
     private void compile() throws IOException, IllegalAccessException, InsufficientAccessRightsException, CompilationException, ClassLoadingException {
-        List<File> files;
+        compile(findSources(root), true);
+        directories.put(root, this);
+    }
+
+    private void compile(List<File> files, boolean useCache) throws IOException, IllegalAccessException, InsufficientAccessRightsException, CompilationException, ClassLoadingException {
         REPLLog.log(new REPLLogEntry(REPLLogEntry.LOG_LEVEL.INFO, "REPL: Compiling Groovy classes from '{}'", root), INTERNAL_LOG_TARGETS);
-        try(Stream<Path> w = Files.walk(root)) {
-            files = w.filter(Files::isRegularFile)
-                     .filter(p -> p.toString().endsWith(".groovy"))
-                     .map(Path::toFile)
-                     .toList();
+        GroovyClassCache cache = null;
+        String cacheKey = null;
+        File workDir = REPL.getWorkDir();
+        if (useCache && CLASS_CACHE && workDir != null) {
+            try {
+                cache = new GroovyClassCache(workDir, root);
+                cacheKey = cache.key(root, files, patcheeClassPath, reorderSources, previousCacheKeys.get(classLoader));
+                GroovyClassCache.Entry entry = cache.load(cacheKey);
+                if (entry != null) {
+                    loadCached(entry);
+                    previousCacheKeys.put(classLoader, cacheKey);
+                    this.sources = files;
+                    return;
+                }
+                definitions = new ArrayList<>();
+            } catch (IOException e) {
+                REPLLog.log(new REPLLogEntry(REPLLogEntry.LOG_LEVEL.WARN, "REPL: Groovy class cache is not available: {}", e), INTERNAL_LOG_TARGETS);
+                cache = null;
+            }
         }
+
         List<URI> uris = files.stream().map(File::toURI).toList();
         List<Set<URI>> compilationBatches = new ArrayList<>();
+        List<Set<Integer>> batchDependencies = new ArrayList<>();
+        Map<String, URI> dryRunSources = Map.of();
         if (reorderSources) {
             GroovyPatchesTransformer simulationRun = determineCompileOrder(files);
-            compilationBatches.addAll(simulationRun.getCompileOrder());
+            for (GroovyPatchesTransformer.CompileBatch b : simulationRun.getCompileBatches()) {
+                if (b.sources().isEmpty()) continue;
+                compilationBatches.add(b.sources());
+                batchDependencies.add(b.dependencies());
+            }
+            dryRunSources = simulationRun.getSources();
             // now add all the rest that were not important during the simulation run
             Set<URI> theRest = new HashSet<>(uris);
             for (Set<URI> x : compilationBatches) theRest.removeAll(x);
-            compilationBatches.add(theRest);
-            compilationBatches.removeIf(Set::isEmpty);
+            if (!theRest.isEmpty()) {
+                batchDependencies.add(new TreeSet<>(IntStream.range(0, compilationBatches.size()).boxed().toList()));
+                compilationBatches.add(theRest);
+            }
         } else {
             compilationBatches.add(new HashSet<>(uris));
+            batchDependencies.add(Set.of());
         }
         if (TRACE || TRACE_COMPILE) REPLLog.trace("Compilation order: {}", compilationBatches.stream().map(x -> x.stream().map(URI::toString).sorted().collect(Collectors.joining(", ", "[", "]"))).collect(Collectors.joining("; ")));
 
-        CompilerConfiguration cc = new CompilerConfiguration();
+        // independent batches are compiled in parallel, but the classes are still loaded batch by batch in the order
+        // above. when compiled sequentially, each batch sees all earlier ones. in parallel, it only sees the classes of
+        // the batches it depends on, so that the outcome does not depend on timing. the dependencies don't cover the
+        // classes that are only used in fields, signatures or method bodies, so a batch that fails to compile in
+        // parallel is compiled again once all earlier batches are loaded, just like it would be sequentially.
+        final int n = compilationBatches.size();
+        final boolean parallel = COMPILE_THREADS > 1 && n > 1;
+        List<BitSet> visible = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            BitSet v = new BitSet(n);
+            if (parallel) {
+                for (int d : batchDependencies.get(i)) {
+                    v.set(d);
+                    v.or(visible.get(d));
+                }
+            } else {
+                v.set(0, i);
+            }
+            visible.add(v);
+        }
+
         GroovyDynamizeTransformer1 dynamize1 = new GroovyDynamizeTransformer1();
-        GroovyPatchesTransformer patches = new GroovyPatchesTransformer(this, patcheeClassPath, false);
         GroovyDynamizeTransformer2 dynamize2 = new GroovyDynamizeTransformer2(dynamize1);
-        GroovyLoadOrderTransformer loadOrder = new GroovyLoadOrderTransformer();
-        ImportCustomizer imports = new ImportCustomizer();
-        imports.addStaticImport("de.uni_kiel.rz.fdr.repl.REPLBreakpoint", "replbreakpoint");
-        imports.addImport("Patches", "de.uni_kiel.rz.fdr.repl.Patches");
-        imports.addImport("Dynamize", "de.uni_kiel.rz.fdr.repl.Dynamize");
-        cc.addCompilationCustomizers(imports, dynamize1, patches, dynamize2, loadOrder);
-        File tmpdir = Files.createTempDirectory("cau-repl-compiletmp.").toFile();
+        Set<String> patcheeClassPaths = new TreeSet<>();
+        List<List<String>> loadedClasses = new ArrayList<>(Collections.nCopies(n, List.of()));
+        List<CompletableFuture<Void>> loaded = new ArrayList<>(n);
+        List<CompletableFuture<CompiledBatch>> compiled = new ArrayList<>(n);
+        ForkJoinPool pool = null;
         try {
-            if (!KEEP_TEMPFILES) tmpdir.deleteOnExit();
-            cc.setTargetDirectory(tmpdir);
-
-            for (Set<URI> batch : compilationBatches) {
-                if (TRACE || TRACE_COMPILE)
-                    REPLLog.trace("Compiling {}", batch.stream().map(URI::toString).collect(Collectors.joining(", ")));
-                // collect all compiled classes, including generated inner classes (closures etc.)
-                final HashMap<String, byte[]> bytecode = new HashMap<>();
-                try {
-                    CompilationUnit cu = new CompilationUnit(cc);
-                    cu.setClassNodeResolver(new CompilationOutputFirstClassNodeResolver(classLoader, classes.stream().map(Class::getName).toList()));
-                    cu.setClassLoader(new GroovyClassLoader(classLoader));
-                    for (URI u : batch) cu.addSource(u.toURL());
-                    cu.setClassgenCallback((classVisitor, classNode) -> {
-                        ClassWriter writer = (ClassWriter) classVisitor;
-                        bytecode.put(classNode.getName(), writer.toByteArray());
-                    });
-                    cu.compile();
-                } catch (VerifyError e) {
-                    String location = null;
-                    if (e.getMessage() != null) {
+            if (parallel) {
+                ClassLoader contextClassLoader = Thread.currentThread().getContextClassLoader();
+                pool = new ForkJoinPool(Math.min(COMPILE_THREADS, n), p -> {
+                    ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+                    t.setName(REPL.THREAD_PREFIX + "groovy compiler " + t.getPoolIndex());
+                    t.setContextClassLoader(contextClassLoader);
+                    return t;
+                }, null, false);
+                for (int i = 0; i < n; i++) loaded.add(new CompletableFuture<>());
+                Map<String, URI> finalDryRunSources = dryRunSources;
+                for (int i = 0; i < n; i++) {
+                    final int batch = i;
+                    CompletableFuture<?>[] deps = batchDependencies.get(i).stream().map(loaded::get).toArray(CompletableFuture[]::new);
+                    compiled.add(CompletableFuture.allOf(deps).thenApplyAsync(x -> {
                         try {
-                            Matcher m = RE_VERIFY_ERROR_LOCATION.matcher(e.getMessage());
-                            m.find();
-                            location = m.group(1);
-                        } catch (IllegalStateException ignore) {}
-                    }
-                    if (location == null) location = "<unknown location>";
-                    throw new CompilationException("Compilation error: there are cyclic dependencies between an @Patches (target-)class and another class: " + location);
-                } catch (RuntimeException e) {
-                    throw new CompilationException("Compilation error", e);
+                            return compileBatch(compilationBatches, batch, visible.get(batch), loadedClasses, finalDryRunSources, dynamize1, dynamize2);
+                        } catch (CompilationException e) {
+                            throw new CompletionException(e);
+                        }
+                    }, pool));
                 }
+            }
 
-                LinkedHashMap<String, byte[]> newClasses = new LinkedHashMap<>();
-                // sort compiled classes in proper load order
-                for (org.codehaus.groovy.ast.ClassNode cn : loadOrder.loadOrder) {
-                    if (bytecode.containsKey(cn.getName())) newClasses.put(cn.getName(), bytecode.get(cn.getName()));
+            for (int i = 0; i < n; i++) {
+                CompiledBatch cb;
+                if (parallel) {
+                    try {
+                        cb = compiled.get(i).join();
+                    } catch (CompletionException e) {
+                        BitSet earlier = new BitSet(n);
+                        earlier.set(0, i);
+                        if (e.getCause() instanceof CompilationException ce && visible.get(i).equals(earlier)) throw ce;
+                        if (e.getCause() instanceof CompilationException) {
+                            if (TRACE || TRACE_COMPILE) REPLLog.trace("Compiling batch {} again with all earlier batches: {}", i, e.getCause().getMessage());
+                            cb = compileBatch(compilationBatches, i, earlier, loadedClasses, Map.of(), dynamize1, dynamize2);
+                        } else {
+                            if (e.getCause() instanceof RuntimeException re) throw re;
+                            if (e.getCause() instanceof Error er) throw er;
+                            throw e;
+                        }
+                    }
+                } else {
+                    cb = compileBatch(compilationBatches, i, visible.get(i), loadedClasses, Map.of(), dynamize1, dynamize2);
                 }
-                // now append generated inner classes
-                List<String> leftover = new ArrayList<>(bytecode.keySet().stream().filter(x -> !newClasses.containsKey(x)).toList());
-                Collections.reverse(leftover);
-                for (String l : leftover) {
-                    newClasses.put(l, bytecode.get(l));
-                }
-
-                // load the compiled classes, making sure to do it one class at a time. this ensures that,
-                // in the case of a compilation error, the subset of classes that were actually loaded are in the list.
-                for (Map.Entry<String, byte[]> toLoad : newClasses.entrySet()) {
-                    if (TRACE || TRACE_COMPILE) REPLLog.trace("Loading compiled class: {}", toLoad.getKey());
-                    classes.addAll(loadClassBatch(Map.of(toLoad.getKey(), toLoad.getValue())));
+                patcheeClassPaths.addAll(cb.patcheeClassPaths());
+                for (Map.Entry<String, byte[]> d : cb.patchees().entrySet()) recordDefinition(d.getKey(), d.getValue(), null);
+
+                // load the compiled classes. they are added to the list one at a time, so that in the case of an error,
+                // the subset of classes that were actually loaded are in it.
+                int first = classes.size();
+                loadClassBatch(cb.classes(), classes);
+                List<String> names = new ArrayList<>();
+                for (Class<?> c : classes.subList(first, classes.size())) names.add(c.getName());
+                for (Map.Entry<String, byte[]> d : cb.classes().entrySet()) {
+                    if (d.getValue() != null) recordDefinition(d.getKey(), d.getValue(), cb.sources().get(d.getKey()));
                 }
+                loadedClasses.set(i, names);
+                if (parallel) loaded.get(i).complete(null);
             }
 
             REPLLog.log(new REPLLogEntry(REPLLogEntry.LOG_LEVEL.INFO, "REPL: Compiled Groovy classes: {}",
                     classes.stream().map(Class::getName).collect(Collectors.joining(", "))), INTERNAL_LOG_TARGETS);
             this.sources = files;
+            if (cache != null) {
+                previousCacheKeys.put(classLoader, cacheKey);
+                try {
+                    cache.store(cacheKey, patcheeClassPaths, definitions);
+                } catch (IOException e) {
+                    REPLLog.log(new REPLLogEntry(REPLLogEntry.LOG_LEVEL.WARN, "REPL: Could not write Groovy class cache {}: {}", cache.getFile(), e), INTERNAL_LOG_TARGETS);
+                }
+            }
         } finally {
-            if (KEEP_TEMPFILES) {
-                REPLLog.log(new REPLLogEntry(REPLLogEntry.LOG_LEVEL.INFO, "REPL: Compiled Class Files remain in: {}", tmpdir), INTERNAL_LOG_TARGETS);
-            } else {
-                // delete tempdir
-                try (Stream<Path> paths = Files.walk(tmpdir.toPath())) {
-                    //noinspection ResultOfMethodCallIgnored
-                    paths.sorted(Comparator.reverseOrder())
-                            .map(Path::toFile)
-                            .forEach(File::delete);
+            if (pool != null) {
+                // don't leave batches behind that still define classes
+                for (CompletableFuture<Void> l : loaded) l.completeExceptionally(new CancellationException());
+                for (CompletableFuture<CompiledBatch> c : compiled) {
+                    try {
+                        c.join();
+                    } catch (CompletionException | CancellationException ignore) {}
                 }
+                pool.shutdown();
+            }
+            definitions = null;
+        }
+    }
+
+    private void loadCached(GroovyClassCache.Entry entry) throws IllegalAccessException, InsufficientAccessRightsException, ClassLoadingException {
+        for (GroovyClassCache.Definition d : entry.definitions()) {
+            if (TRACE || TRACE_COMPILE) REPLLog.trace("Loading cached class: {}", d.name());
+            if (!d.patchee()) {
+                loadClassBatch(Map.of(d.name(), d.bytecode()), classes);
+                classSources.put(d.name(), URI.create(d.source()));
+                classReferences.put(d.name(), d.references());
+                continue;
+            }
+            try {
+                defineClass(classLoader, d.name(), d.bytecode());
+            } catch (LinkageError e) {
+                if (TRACE || TRACE_COMPILE) REPLLog.trace("Ignoring duplicate definition of patchee {}", d.name());
+            } catch (InvocationTargetException e) {
+                if (!(e.getCause() instanceof LinkageError)) throw new ClassLoadingException("Can't load the patched class '" + d.name() + "'", e);
+                if (TRACE || TRACE_COMPILE) REPLLog.trace("Ignoring duplicate definition of patchee {}", d.name());
+            } catch (InaccessibleObjectException e) {
+                throw new InsufficientAccessRightsException("Could not load the patched class '" + d.name() + "'", e);
+            } catch (NoSuchMethodException e) {
+                throw new RuntimeException("Could not define class, possibly an internal error?", e);
             }
         }
+        fromCache = true;
+        REPLLog.log(new REPLLogEntry(REPLLogEntry.LOG_LEVEL.INFO, "REPL: Loaded cached Groovy classes: {}",
+                classes.stream().map(Class::getName).collect(Collectors.joining(", "))), INTERNAL_LOG_TARGETS);
     }
 
-    private List<Class<?>> loadClassBatch(Map<String, byte[]> classes) throws IllegalAccessException, InsufficientAccessRightsException, ClassLoadingException {
+    private CompiledBatch compileBatch(List<Set<URI>> batches, int index, BitSet visible, List<List<String>> loadedClasses, Map<String, URI> dryRunSources, GroovyDynamizeTransformer1 dynamize1, GroovyDynamizeTransformer2 dynamize2) throws CompilationException {
+        Set<URI> batch = batches.get(index);
+        if (TRACE || TRACE_COMPILE)
+            REPLLog.trace("Compiling {}", batch.stream().map(URI::toString).collect(Collectors.joining(", ")));
+        // classes of this directory that we may see: the ones of the batches we depend on
+        Set<String> compiledClasses = new HashSet<>();
+        Set<URI> visibleSources = new HashSet<>(batch);
+        for (int i = visible.nextSetBit(0); i >= 0; i = visible.nextSetBit(i + 1)) {
+            compiledClasses.addAll(loadedClasses.get(i));
+            visibleSources.addAll(batches.get(i));
+        }
+        Set<String> hiddenClasses = new HashSet<>();
+        for (Map.Entry<String, URI> e : dryRunSources.entrySet()) if (!visibleSources.contains(e.getValue())) hiddenClasses.add(e.getKey());
+
+        CompilerConfiguration cc = new CompilerConfiguration();
+        GroovyPatchesTransformer patches = new GroovyPatchesTransformer(this, patcheeClassPath, false);
+        GroovyLoadOrderTransformer loadOrder = new GroovyLoadOrderTransformer();
+        ImportCustomizer imports = new ImportCustomizer();
+        imports.addStaticImport("de.uni_kiel.rz.fdr.repl.REPLBreakpoint", "replbreakpoint");
+        for (Map.Entry<String, String> i : DEFAULT_IMPORTS.entrySet()) imports.addImport(i.getKey(), i.getValue());
+        cc.addCompilationCustomizers(imports, dynamize1, patches, dynamize2, loadOrder);
+
+        // collect all compiled classes, including generated inner classes (closures etc.)
+        final HashMap<String, byte[]> bytecode = new HashMap<>();
+        final HashMap<String, URI> compiledSources = new HashMap<>();
+        CompilationUnit cu = null;
+        try {
+            cu = new CompilationUnit(cc);
+            cu.setClassNodeResolver(new CompilationOutputFirstClassNodeResolver(classLoader, compiledClasses, hiddenClasses));
+            cu.setClassLoader(new GroovyClassLoader(classLoader));
+            for (URI u : batch) cu.addSource(u.toURL());
+            cu.setClassgenCallback((classVisitor, classNode) -> {
+                ClassWriter writer = (ClassWriter) classVisitor;
+                bytecode.put(classNode.getName(), writer.toByteArray());
+                compiledSources.put(classNode.getName(), classNode.getModule().getContext().getSource().getURI());
+            });
+            // the bytecode is collected by the callback above, so stop before the output phase would write class files
+            cu.compile(Phases.CLASS_GENERATION);
+        } catch (VerifyError e) {
+            String location = null;
+            if (e.getMessage() != null) {
+                try {
+                    Matcher m = RE_VERIFY_ERROR_LOCATION.matcher(e.getMessage());
+                    m.find();
+                    location = m.group(1);
+                } catch (IllegalStateException ignore) {}
+            }
+            if (location == null) location = "<unknown location>";
+            forget(cu, dynamize1, dynamize2);
+            throw new CompilationException("Compilation error: there are cyclic dependencies between an @Patches (target-)class and another class: " + location);
+        } catch (RuntimeException | IOException e) {
+            forget(cu, dynamize1, dynamize2);
+            throw new CompilationException("Compilation error", e);
+        }
+
+        LinkedHashMap<String, byte[]> newClasses = new LinkedHashMap<>();
+        // sort compiled classes in proper load order
+        for (org.codehaus.groovy.ast.ClassNode cn : loadOrder.getLoadOrder()) {
+            if (bytecode.containsKey(cn.getName())) newClasses.put(cn.getName(), bytecode.get(cn.getName()));
+        }
+        // now append generated inner classes
+        List<String> leftover = new ArrayList<>(bytecode.keySet().stream().filter(x -> !newClasses.containsKey(x)).toList());
+        Collections.reverse(leftover);
+        for (String l : leftover) {
+            newClasses.put(l, bytecode.get(l));
+        }
+        return new CompiledBatch(newClasses, compiledSources, patches.getPatcheeDefinitions(), patches.getPatcheeClassPaths());
+    }
+
+    // a failed batch may be compiled again, its classes must be transformed again then
+    private static void forget(CompilationUnit cu, GroovyDynamizeTransformer1 dynamize1, GroovyDynamizeTransformer2 dynamize2) {
+        if (cu == null) return;
+        for (org.codehaus.groovy.ast.ClassNode cn : cu.getAST().getClasses()) {
+            dynamize1.forget(cn.getName());
+            dynamize2.forget(cn.getName());
+        }
+    }
+
+    // called for each class that was defined during compilation. source is null for the renamed targets of @Patches.
+    void recordDefinition(String name, byte[] bytecode, URI source) {
+        Set<String> references = Set.of();
+        if (source != null) {
+            references = referencedClasses(bytecode);
+            classSources.put(name, source);
+            classReferences.put(name, references);
+        }
+        if (definitions != null) definitions.add(new GroovyClassCache.Definition(name, bytecode, source == null, source != null ? source.toString() : "", references));
+    }
+
+    // all classes that appear anywhere in the bytecode: in the constant pool, descriptors, signatures and annotations
+    private static Set<String> referencedClasses(byte[] bytecode) {
+        Set<String> result = new HashSet<>();
+        ClassReader reader = new ClassReader(bytecode);
+        reader.accept(new ClassRemapper(new ClassVisitor(Opcodes.ASM9) {}, new Remapper(Opcodes.ASM9) {
+            @Override
+            public String map(String internalName) {
+                result.add(internalName.replace('/', '.'));
+                return internalName;
+            }
+        }), 0);
+        result.remove(reader.getClassName().replace('/', '.'));
+        return result;
+    }
+
+    // defines the classes in the given order and appends each one to the result as soon as it is loaded
+    private void loadClassBatch(Map<String, byte[]> classes, List<Class<?>> result) throws IllegalAccessException, InsufficientAccessRightsException, ClassLoadingException {
         // Instead of injecting the bytecode directly into a classloader, it might also be possible to have groovy generate
         // .class files at runtime and add the directory to the classpath / module path
-        ArrayList<Class<?>> result = new ArrayList<>();
         for (Map.Entry<String, byte[]> gc : classes.entrySet()) {
             if (gc.getValue() == null) {
                 if (TRACE || TRACE_COMPILE) REPLLog.trace("Not loading uncompiled class {}", gc.getKey());
@@ -351,34 +639,46 @@ public class GroovySourceDirectory {
                 throw new RuntimeException("Could not define class, possibly an internal error?", e);
             }
         }
-        return result;
     }
 
-    private GroovyPatchesTransformer determineCompileOrder(List<File> files) throws IOException {
+    // finds the class declarations with GroovyHeaderScanner, so that the sources are only parsed once, during the real
+    // compilation. the parser is only used for the compile order if a source can't be tokenized.
+    GroovyPatchesTransformer determineCompileOrder(List<File> files) throws IOException {
+        Map<File, List<GroovyHeaderScanner.ClassHeader>> headers = new LinkedHashMap<>();
+        try {
+            for (File f : files) headers.put(f, GroovyHeaderScanner.scan(Files.readString(f.toPath()), f.getPath(), DEFAULT_IMPORTS));
+        } catch (GroovyHeaderScanner.ScanException | CharacterCodingException e) {
+            if (TRACE || TRACE_COMPILE) REPLLog.trace("Can't scan Groovy sources, parsing them to determine the compile order: {}", e.getMessage());
+            return parseCompileOrder(files);
+        }
+        GroovyPatchesTransformer patchOrder = new GroovyPatchesTransformer(this, patcheeClassPath, true);
+        try {
+            for (Map.Entry<File, List<GroovyHeaderScanner.ClassHeader>> e : headers.entrySet()) {
+                URI source = e.getKey().toURI();
+                for (GroovyHeaderScanner.ClassHeader h : e.getValue()) patchOrder.simulate(source, h);
+            }
+        } finally {
+            patchOrder.closeSimulation();
+        }
+        return patchOrder;
+    }
+
+    GroovyPatchesTransformer parseCompileOrder(List<File> files) throws IOException {
         CompilerConfiguration cc = new CompilerConfiguration();
         GroovyPatchesTransformer patchOrder = new GroovyPatchesTransformer(this, patcheeClassPath, true);
         ImportCustomizer imports = new ImportCustomizer();
         imports.addStaticImport("de.uni_kiel.rz.fdr.repl.REPLBreakpoint", "replbreakpoint");
-        imports.addImport("Patches", "de.uni_kiel.rz.fdr.repl.Patches");
-        imports.addImport("Dynamize", "de.uni_kiel.rz.fdr.repl.Dynamize");
+        for (Map.Entry<String, String> i : DEFAULT_IMPORTS.entrySet()) imports.addImport(i.getKey(), i.getValue());
         cc.addCompilationCustomizers(imports, patchOrder);
 
-        File tmpdir = Files.createTempDirectory("cau-repl-compiletmp.").toFile();
         try {
-            tmpdir.deleteOnExit();
+            // this stops long before the output phase, so nothing is written to disk
             CompilationUnit cu = new CompilationUnit(cc);
             cu.setClassLoader(new GroovyClassLoader(classLoader));
-            cc.setTargetDirectory(tmpdir);
             cu.addSources(files.toArray(new File[0]));
             cu.compile(patchOrder.getPhase().getPhaseNumber());
         } finally {
-            // delete tempdir
-            try (Stream<Path> paths = Files.walk(tmpdir.toPath())) {
-                //noinspection ResultOfMethodCallIgnored
-                paths.sorted(Comparator.reverseOrder())
-                        .map(Path::toFile)
-                        .forEach(File::delete);
-            }
+            patchOrder.closeSimulation();
         }
 
         return patchOrder;
@@ -397,24 +697,50 @@ public class GroovySourceDirectory {
             loadedClass = gcl.defineClass(name, bytecode);
         } else {
             // try to inject it into an unsuspecting normal classloader using dark powers: requires --add-opens 'java.base/java.lang=ALL-UNNAMED'. maybe the agent's Instrumentation.redefineModule() can be used instead of this parameter?
-            loadedClass = (Class<?>) darkInvocation(cl, "defineClass", new Class<?>[]{String.class, byte[].class, int.class, int.class}, new Object[]{name, bytecode, 0, bytecode.length});
+            MethodHandle handle = getDefineClassHandle(cl);
+            try {
+                loadedClass = (Class<?>) handle.invokeExact(cl, name, bytecode, 0, bytecode.length);
+            } catch (Throwable e) {
+                // report errors of ClassLoader.defineClass() the same way as a reflective invocation would
+                throw new InvocationTargetException(e);
+            }
         }
 
         return loadedClass;
     }
 
+    // ClassLoader.defineClass() is looked up and made accessible only once, instead of reflectively for every class
+    private static MethodHandle getDefineClassHandle(ClassLoader cl) throws IllegalAccessException, InsufficientAccessRightsException, NoSuchMethodException {
+        MethodHandle handle = defineClassHandle;
+        if (handle != null) return handle;
+        try {
+            Method method = ClassLoader.class.getDeclaredMethod("defineClass", String.class, byte[].class, int.class, int.class);
+            method.setAccessible(true);
+            handle = MethodHandles.lookup().unreflect(method);
+        } catch (InaccessibleObjectException e) {
+            REPLLog.log(new REPLLogEntry(REPLLogEntry.LOG_LEVEL.ERROR, "REPL: Could not access object of class {}" + InsufficientAccessRightsException.explanation, cl.getClass()), INTERNAL_LOG_TARGETS);
+            throw new InsufficientAccessRightsException("Could not access object of class " + cl.getClass(), e);
+        }
+        defineClassHandle = handle;
+        return handle;
+    }
+
     private static class CompilationOutputFirstClassNodeResolver extends ClassNodeResolver {
 
         private final ClassLoader classLoader;
-        private final List<String> compiledClasses;
+        private final Set<String> compiledClasses;
+        private final Set<String> hiddenClasses;
 
-        public CompilationOutputFirstClassNodeResolver(ClassLoader classLoader, List<String> compiledClasses) {
+        public CompilationOutputFirstClassNodeResolver(ClassLoader classLoader, Set<String> compiledClasses, Set<String> hiddenClasses) {
             this.classLoader = classLoader;
             this.compiledClasses = compiledClasses;
+            this.hiddenClasses = hiddenClasses;
         }
 
         @Override
         public LookupResult findClassNode(String name, CompilationUnit compilationUnit) {
+            // classes of batches that may or may not have been loaded yet, depending on timing
+            if (hiddenClasses.contains(name)) return null;
             if (compiledClasses.contains(name)) {
                 try {
                     Class<?> res = classLoader.loadClass(name);
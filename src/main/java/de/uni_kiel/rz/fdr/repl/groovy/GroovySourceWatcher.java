@@ -0,0 +1,310 @@
+// (C) Copyright 2024 Ove Sörensen
+// SPDX-License-Identifier: MIT
+
+package de.uni_kiel.rz.fdr.repl.groovy;
+
+import de.uni_kiel.rz.fdr.repl.REPL;
+import de.uni_kiel.rz.fdr.repl.REPLLog;
+import de.uni_kiel.rz.fdr.repl.REPLLogEntry;
+import groovy.lang.GroovyClassLoader;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+import static de.uni_kiel.rz.fdr.repl.REPLLog.*;
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Watches the sources of a {@link GroovySourceDirectory} and recompiles them when they change. Only the changed files
+ * and the files that depend on them (directly or transitively) are compiled again. The new classes are put into a
+ * fresh ClassLoader that sees the newest version of every class, so {@link #getClassLoader()} always returns a
+ * ClassLoader with the current state of the sources. The ClassLoaders of earlier recompilations are not chained: once
+ * all of their classes have been replaced, only the objects and classes that were created before still refer to them
+ * and keep using the old versions.
+ */
+public class GroovySourceWatcher implements Closeable {
+
+    /**
+     * The time to wait for further changes before recompiling, so that saving many files at once only triggers a single
+     * compilation.
+     */
+    public static final long DEBOUNCE_MILLIS = 200;
+
+    /**
+     * The outcome of a recompilation.
+     * @param changed The files that were changed, created or deleted.
+     * @param compiled The files that were compiled, i.e. the changed files and their dependents.
+     * @param classes The classes that were compiled.
+     * @param millis The duration of the compilation in milliseconds.
+     * @param error The error that occurred, or {@code null} if the compilation was successful.
+     */
+    public record Result(List<Path> changed, List<Path> compiled, List<Class<?>> classes, long millis, Exception error) {}
+
+    private final Path root;
+    private final Path watchDir;
+    private final String patcheeClassPath;
+    private final boolean reorderSources;
+    private final ClassLoader baseLoader;
+    private volatile ClassLoader classLoader;
+    private Consumer<Result> listener = null;
+    // the dependency graph, merged over all compilations: the source of each class and the classes it refers to
+    private final Map<String, Path> classSources = new HashMap<>();
+    private final Map<String, Set<String>> classReferences = new HashMap<>();
+    // the newest version of every class that was recompiled since the watcher was created
+    private final Map<String, Class<?>> currentClasses = new HashMap<>();
+    private final Set<Path> pending = new TreeSet<>();
+    private WatchService watchService = null;
+    private Thread thread = null;
+
+    /**
+     * Prepares to watch the sources of a GroovySourceDirectory. Call {@link #start()} to begin watching.
+     * @param sourceDirectory The compiled GroovySourceDirectory.
+     */
+    public GroovySourceWatcher(GroovySourceDirectory sourceDirectory) {
+        this.root = sourceDirectory.getRoot();
+        this.watchDir = Files.isDirectory(root) ? root : root.getParent();
+        this.patcheeClassPath = sourceDirectory.getPatcheeClassPath();
+        this.reorderSources = sourceDirectory.isReorderSources();
+        this.baseLoader = sourceDirectory.getClassLoader();
+        this.classLoader = baseLoader;
+        merge(sourceDirectory, Set.of());
+    }
+
+    /**
+     * Sets a listener that is called after each recompilation.
+     * @param listener The listener, or {@code null} to remove it.
+     * @return This GroovySourceWatcher.
+     */
+    public synchronized GroovySourceWatcher setListener(Consumer<Result> listener) {
+        this.listener = listener;
+        return this;
+    }
+
+    /**
+     * Get the ClassLoader that contains the newest version of all classes.
+     * @return The ClassLoader.
+     */
+    public ClassLoader getClassLoader() {
+        return classLoader;
+    }
+
+    /**
+     * Starts watching the sources in a background thread.
+     * @return This GroovySourceWatcher.
+     * @throws IOException The directory could not be watched.
+     */
+    public synchronized GroovySourceWatcher start() throws IOException {
+        if (watchService != null) return this;
+        watchService = watchDir.getFileSystem().newWatchService();
+        register(watchDir);
+        final WatchService ws = watchService;
+        thread = new Thread(() -> run(ws), REPL.THREAD_PREFIX + "groovy watcher " + root);
+        thread.setDaemon(true);
+        thread.start();
+        REPLLog.log(new REPLLogEntry(REPLLogEntry.LOG_LEVEL.INFO, "REPL: Watching Groovy sources in '{}'", root), INTERNAL_LOG_TARGETS);
+        return this;
+    }
+
+    /**
+     * Stops watching the sources.
+     * @throws IOException The WatchService could not be closed.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (watchService == null) return;
+        watchService.close();
+        watchService = null;
+        thread = null;
+    }
+
+    /**
+     * Marks files as changed, so that the next recompilation includes them.
+     * @param files The files.
+     */
+    public synchronized void markChanged(Collection<Path> files) {
+        for (Path f : files) if (isSource(f.toAbsolutePath())) pending.add(f.toAbsolutePath());
+    }
+
+    /**
+     * Immediately recompiles all the files that changed since the last recompilation, and their dependents.
+     * @return The result of the recompilation, or {@code null} if nothing changed.
+     */
+    public synchronized Result recompile() {
+        if (pending.isEmpty()) return null;
+        List<Path> changed = List.copyOf(pending);
+        long t0 = System.nanoTime();
+        Set<Path> affected = dependents(changed);
+        List<Path> compile = affected.stream().filter(Files::isRegularFile).sorted().toList();
+        Result result;
+        try {
+            List<Class<?>> classes = List.of();
+            if (!compile.isEmpty()) {
+                // the compilation sees the current classes, except for the old versions of the ones it replaces
+                Map<String, Class<?>> visible = new HashMap<>(currentClasses);
+                visible.keySet().removeIf(n -> affected.contains(classSources.get(n)));
+                GroovySourceDirectory dir = new GroovySourceDirectory(root, compile.stream().map(Path::toFile).toList(), new GroovyClassLoader(new CurrentClassLoader(baseLoader, visible)), patcheeClassPath, reorderSources);
+                merge(dir, affected);
+                classLoader = dir.getClassLoader();
+                classes = dir.getClasses();
+                for (Class<?> c : classes) currentClasses.put(c.getName(), c);
+            } else {
+                merge(null, affected);
+            }
+            pending.clear();
+            result = new Result(changed, compile, classes, (System.nanoTime() - t0) / 1000000, null);
+            REPLLog.log(new REPLLogEntry(REPLLogEntry.LOG_LEVEL.INFO, "REPL: Recompiled {} of {} Groovy sources in {}ms", compile.size(), new HashSet<>(classSources.values()).size(), result.millis()), INTERNAL_LOG_TARGETS);
+        } catch (Exception e) {
+            // keep the changes pending, the next attempt will include them again
+            result = new Result(changed, compile, List.of(), (System.nanoTime() - t0) / 1000000, e);
+            REPLLog.log(new REPLLogEntry(REPLLogEntry.LOG_LEVEL.ERROR, "REPL: Recompiling Groovy sources failed after {}ms: {}", result.millis(), e), INTERNAL_LOG_TARGETS);
+        }
+        if (listener != null) {
+            try {
+                listener.accept(result);
+            } catch (Exception e) {
+                REPLLog.log(new REPLLogEntry(REPLLogEntry.LOG_LEVEL.ERROR, "REPL: Groovy watcher listener failed: {}", e), INTERNAL_LOG_TARGETS);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Get the files that must be recompiled if some files change: the files themselves and all files that depend on
+     * them, directly or transitively.
+     * @param changed The changed files.
+     * @return The files to recompile, including ones that no longer exist.
+     */
+    public synchronized Set<Path> dependents(Collection<Path> changed) {
+        Map<Path, Set<Path>> reverse = new HashMap<>();
+        for (Map.Entry<String, Set<String>> e : classReferences.entrySet()) {
+            Path from = classSources.get(e.getKey());
+            for (String ref : e.getValue()) {
+                Path to = classSources.get(ref);
+                if (to != null && !to.equals(from)) reverse.computeIfAbsent(to, k -> new HashSet<>()).add(from);
+            }
+        }
+        Set<Path> result = new TreeSet<>();
+        Deque<Path> todo = new ArrayDeque<>();
+        for (Path p : changed) todo.add(p.toAbsolutePath());
+        while (!todo.isEmpty()) {
+            Path p = todo.poll();
+            if (result.add(p)) todo.addAll(reverse.getOrDefault(p, Set.of()));
+        }
+        return result;
+    }
+
+    // replaces the graph entries of the recompiled sources with those of the new compilation
+    private void merge(GroovySourceDirectory dir, Set<Path> replaced) {
+        classSources.entrySet().removeIf(e -> {
+            if (!replaced.contains(e.getValue())) return false;
+            currentClasses.remove(e.getKey());
+            return true;
+        });
+        classReferences.keySet().retainAll(classSources.keySet());
+        if (dir == null) return;
+        for (Map.Entry<String, URI> e : dir.getClassSources().entrySet()) {
+            classSources.put(e.getKey(), Path.of(e.getValue()).toAbsolutePath());
+            classReferences.put(e.getKey(), dir.getClassReferences().getOrDefault(e.getKey(), Set.of()));
+        }
+    }
+
+    // Resolves the newest recompiled classes and delegates everything else to the original ClassLoader. Each compilation
+    // gets its own instance with a snapshot of the classes, so no compilation holds on to the ClassLoader of another one
+    // after all of its classes have been replaced.
+    private static class CurrentClassLoader extends ClassLoader {
+        static {
+            registerAsParallelCapable();
+        }
+
+        private final Map<String, Class<?>> classes;
+
+        CurrentClassLoader(ClassLoader parent, Map<String, Class<?>> classes) {
+            super(parent);
+            this.classes = Map.copyOf(classes);
+        }
+
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            Class<?> c = classes.get(name);
+            return c != null ? c : super.loadClass(name, resolve);
+        }
+    }
+
+    private void run(WatchService ws) {
+        try {
+            //noinspection InfiniteLoopStatement
+            while (true) {
+                boolean changed = handle(ws.take());
+                // wait until the files have settled
+                WatchKey key;
+                while ((key = ws.poll(DEBOUNCE_MILLIS, TimeUnit.MILLISECONDS)) != null) changed |= handle(key);
+                if (changed) recompile();
+            }
+        } catch (InterruptedException | ClosedWatchServiceException ignore) {}
+    }
+
+    private boolean handle(WatchKey key) {
+        boolean changed = false;
+        Path dir = (Path) key.watchable();
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == OVERFLOW) {
+                if (TRACE || TRACE_COMPILE) REPLLog.trace("Groovy watcher: events were lost in {}", dir);
+                continue;
+            }
+            Path p = dir.resolve((Path) event.context()).toAbsolutePath();
+            if (event.kind() == ENTRY_CREATE && Files.isDirectory(p) && Files.isDirectory(root)) {
+                try {
+                    register(p);
+                    // files that were created along with the directory
+                    try (Stream<Path> w = Files.walk(p)) {
+                        List<Path> created = w.filter(Files::isRegularFile).toList();
+                        synchronized (this) {
+                            markChanged(created);
+                            changed |= !created.isEmpty();
+                        }
+                    }
+                } catch (IOException e) {
+                    REPLLog.log(new REPLLogEntry(REPLLogEntry.LOG_LEVEL.WARN, "REPL: Can't watch directory {}: {}", p, e), INTERNAL_LOG_TARGETS);
+                }
+                continue;
+            }
+            if (!isSource(p)) continue;
+            if (TRACE || TRACE_COMPILE) REPLLog.trace("Groovy watcher: {} {}", event.kind(), p);
+            markChanged(List.of(p));
+            changed = true;
+        }
+        key.reset();
+        return changed;
+    }
+
+    private boolean isSource(Path p) {
+        if (!Files.isDirectory(root)) return p.equals(root);
+        return p.startsWith(root) && p.toString().endsWith(".groovy");
+    }
+
+    private void register(Path dir) throws IOException {
+        WatchService ws;
+        synchronized (this) {
+            ws = watchService;
+        }
+        if (ws == null) return;
+        if (!Files.isDirectory(root)) {
+            dir.register(ws, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+            return;
+        }
+        try (Stream<Path> w = Files.walk(dir)) {
+            for (Path d : w.filter(Files::isDirectory).toList()) d.register(ws, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "GroovySourceWatcher(" + root + ")";
+    }
+}
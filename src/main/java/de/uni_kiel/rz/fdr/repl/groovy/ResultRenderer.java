@@ -0,0 +1,157 @@
+// (C) Copyright 2023 Ove Sörensen
+// SPDX-License-Identifier: MIT
+
+package de.uni_kiel.rz.fdr.repl.groovy;
+
+import de.uni_kiel.rz.fdr.repl.Helpers;
+import groovy.lang.Range;
+import org.codehaus.groovy.runtime.FormatHelper;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.reflect.Array;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+// Prints evaluation results in the shell like groovysh does, but streams the elements of collections, maps and arrays
+// instead of building the complete string in memory first. Output stops with a summary once it gets too long or takes
+// too long, or when the user cancels it (e.g. with Ctrl-C).
+class ResultRenderer {
+
+    static final int DEFAULT_MAX_CHARS = (int) Helpers.longProperty("CAU.REPL.SSH.ResultMaxChars", 100000);
+    static final int DEFAULT_MAX_ELEMENTS = (int) Helpers.longProperty("CAU.REPL.SSH.ResultMaxElements", 1000);
+    static final long DEFAULT_MAX_MILLIS = Helpers.longProperty("CAU.REPL.SSH.ResultMaxMillis", 10000);
+
+    private static final int FLUSH_CHARS = 8192;
+
+    private static class Stop extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        Stop(String message) {
+            super(message, null, false, false);
+        }
+    }
+
+    private final int maxChars;
+    private final int maxElements;
+    private final long maxNanos;
+    private final BooleanSupplier cancelled;
+
+    ResultRenderer(int maxChars, int maxElements, long maxMillis, BooleanSupplier cancelled) {
+        this.maxChars = maxChars;
+        this.maxElements = maxElements;
+        this.maxNanos = TimeUnit.MILLISECONDS.toNanos(maxMillis);
+        this.cancelled = cancelled;
+    }
+
+    void render(Object value, Writer out) throws IOException {
+        Output o = new Output(out);
+        try {
+            write(o, value, Collections.newSetFromMap(new IdentityHashMap<>()));
+        } catch (Stop s) {
+            out.write(s.getMessage());
+        }
+        out.flush();
+    }
+
+    private class Output {
+        private final Writer out;
+        private final long start = System.nanoTime();
+        private long chars = 0;
+        private long unflushed = 0;
+
+        Output(Writer out) {
+            this.out = out;
+        }
+
+        void write(String s) throws IOException {
+            if (maxChars > 0 && chars + s.length() > maxChars) {
+                out.write(s, 0, (int) (maxChars - chars));
+                chars = maxChars;
+                throw new Stop(" ... (output truncated after " + maxChars + " characters)");
+            }
+            out.write(s);
+            chars += s.length();
+            unflushed += s.length();
+            if (unflushed >= FLUSH_CHARS) {
+                out.flush();
+                unflushed = 0;
+            }
+        }
+
+        // called before each element
+        void check() {
+            if (Thread.currentThread().isInterrupted() || cancelled.getAsBoolean()) throw new Stop(" ... (interrupted)");
+            if (maxNanos > 0 && System.nanoTime() - start > maxNanos) {
+                throw new Stop(" ... (output stopped after " + TimeUnit.NANOSECONDS.toMillis(maxNanos) + "ms)");
+            }
+        }
+    }
+
+    private void write(Output o, Object value, Set<Object> containers) throws IOException {
+        if (value instanceof Map<?, ?> map) {
+            if (!containers.add(map)) {
+                o.write("(this Map)");
+                return;
+            }
+            if (map.isEmpty()) o.write("[:]");
+            else writeElements(o, map.entrySet().iterator(), map.size(), containers, true);
+            containers.remove(map);
+        } else if (value instanceof Collection<?> c && !(value instanceof Range)) {
+            if (!containers.add(c)) {
+                o.write("(this Collection)");
+                return;
+            }
+            writeElements(o, c.iterator(), c.size(), containers, false);
+            containers.remove(c);
+        } else if (value instanceof char[] chars) {
+            // groovy prints char arrays as strings
+            for (int i = 0; i < chars.length; i += FLUSH_CHARS) {
+                o.check();
+                o.write(new String(chars, i, Math.min(FLUSH_CHARS, chars.length - i)));
+            }
+        } else if (value != null && value.getClass().isArray()) {
+            int length = Array.getLength(value);
+            writeElements(o, new Iterator<>() {
+                int i = 0;
+
+                @Override
+                public boolean hasNext() {
+                    return i < length;
+                }
+
+                @Override
+                public Object next() {
+                    return Array.get(value, i++);
+                }
+            }, length, containers, false);
+        } else {
+            o.write(FormatHelper.toString(value));
+        }
+    }
+
+    private void writeElements(Output o, Iterator<?> it, int size, Set<Object> containers, boolean isMap) throws IOException {
+        o.write("[");
+        int n = 0;
+        while (it.hasNext()) {
+            if (maxElements > 0 && n >= maxElements) {
+                o.write(", ... " + (size - n) + " more");
+                break;
+            }
+            o.check();
+            Object element = it.next();
+            if (n > 0) o.write(", ");
+            if (isMap) {
+                Map.Entry<?, ?> e = (Map.Entry<?, ?>) element;
+                write(o, e.getKey(), containers);
+                o.write(":");
+                write(o, e.getValue(), containers);
+            } else {
+                write(o, element, containers);
+            }
+            n++;
+        }
+        o.write("]");
+    }
+}
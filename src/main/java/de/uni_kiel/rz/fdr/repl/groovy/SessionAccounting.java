@@ -0,0 +1,53 @@
+// (C) Copyright 2023 Ove Sörensen
+// SPDX-License-Identifier: MIT
+
+package de.uni_kiel.rz.fdr.repl.groovy;
+
+import groovy.lang.GroovyClassLoader;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.time.Instant;
+
+// Resource usage of a shell session. All evaluations of a session run on its shell thread, so that thread's CPU time
+// and allocations are the session's. Work that is handed off to other threads (e.g. jobs) is not included. The classes
+// are those that the session's interpreter has compiled and still holds on to.
+class SessionAccounting {
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    private final Thread thread;
+    private final GroovyClassLoader classLoader;
+    private final Instant started = Instant.now();
+
+    SessionAccounting(Thread thread, GroovyClassLoader classLoader) {
+        this.thread = thread;
+        this.classLoader = classLoader;
+    }
+
+    Thread getThread() {
+        return thread;
+    }
+
+    Instant getStarted() {
+        return started;
+    }
+
+    // -1 if not supported by the JVM or the thread has already terminated
+    long getCpuNanos() {
+        if (!THREADS.isThreadCpuTimeSupported() || !THREADS.isThreadCpuTimeEnabled()) return -1;
+        return THREADS.getThreadCpuTime(thread.getId());
+    }
+
+    // -1 if not supported by the JVM or the thread has already terminated
+    long getAllocatedBytes() {
+        if (THREADS instanceof com.sun.management.ThreadMXBean t && t.isThreadAllocatedMemorySupported() && t.isThreadAllocatedMemoryEnabled()) {
+            return t.getThreadAllocatedBytes(thread.getId());
+        }
+        return -1;
+    }
+
+    int getClasses() {
+        return classLoader == null ? 0 : classLoader.getLoadedClasses().length;
+    }
+}
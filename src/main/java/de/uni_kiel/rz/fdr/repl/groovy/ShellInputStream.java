@@ -0,0 +1,92 @@
+// (C) Copyright 2023 Ove Sörensen
+// SPDX-License-Identifier: MIT
+
+package de.uni_kiel.rz.fdr.repl.groovy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+// The client's input to a shell. While the shell is busy and nobody reads the input, pollInterrupt() can check whether
+// the user has pressed Ctrl-C. Everything else the user typed in the meantime is kept for the shell's next read.
+class ShellInputStream extends FilterInputStream {
+
+    static final int CTRL_C = 3;
+
+    private byte[] pending = new byte[0];
+    private int pendingPos = 0;
+
+    ShellInputStream(InputStream in) {
+        super(in);
+    }
+
+    // true if there was a Ctrl-C in the input that arrived so far, which is then removed from the input
+    synchronized boolean pollInterrupt() {
+        try {
+            int available = in.available();
+            if (available <= 0) return false;
+            byte[] buf = new byte[available];
+            int n = in.read(buf, 0, available);
+            if (n <= 0) return false;
+            ByteArrayOutputStream keep = new ByteArrayOutputStream(pending.length - pendingPos + n);
+            keep.write(pending, pendingPos, pending.length - pendingPos);
+            boolean interrupted = false;
+            for (int i = 0; i < n; i++) {
+                if (buf[i] == CTRL_C) interrupted = true;
+                else keep.write(buf[i]);
+            }
+            pending = keep.toByteArray();
+            pendingPos = 0;
+            return interrupted;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        synchronized (this) {
+            if (pendingPos < pending.length) return pending[pendingPos++] & 0xff;
+        }
+        return in.read();
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        synchronized (this) {
+            if (pendingPos < pending.length) {
+                int n = Math.min(len, pending.length - pendingPos);
+                System.arraycopy(pending, pendingPos, b, off, n);
+                pendingPos += n;
+                return n;
+            }
+        }
+        return in.read(b, off, len);
+    }
+
+    @Override
+    public int available() throws IOException {
+        synchronized (this) {
+            if (pendingPos < pending.length) return pending.length - pendingPos;
+        }
+        return in.available();
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        synchronized (this) {
+            if (pendingPos < pending.length) {
+                int skipped = (int) Math.min(n, pending.length - pendingPos);
+                pendingPos += skipped;
+                return skipped;
+            }
+        }
+        return in.skip(n);
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+}
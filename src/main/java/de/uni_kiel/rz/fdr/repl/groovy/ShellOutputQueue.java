@@ -0,0 +1,88 @@
+// (C) Copyright 2023 Ove Sörensen
+// SPDX-License-Identifier: MIT
+
+package de.uni_kiel.rz.fdr.repl.groovy;
+
+import de.uni_kiel.rz.fdr.repl.Helpers;
+
+import java.io.PrintStream;
+import java.util.ArrayDeque;
+
+// Decouples broadcasts from a shell's SSH connection: producers only enqueue their line, a dedicated thread per session
+// writes the queue out to the client. If the client can't keep up, the oldest lines are dropped and summarized in a
+// single notice once the connection has caught up, so a stalled client never blocks the logging thread.
+class ShellOutputQueue {
+
+    static final int DEFAULT_CAPACITY = (int) Helpers.longProperty("CAU.REPL.SSH.OutputQueueSize", 1000);
+
+    private final PrintStream out;
+    private final String threadName;
+    private final int capacity;
+    private final Runnable onError;
+    private final ArrayDeque<String> lines = new ArrayDeque<>();
+    private long dropped = 0;
+    private Thread writer = null;
+    private boolean closed = false;
+
+    ShellOutputQueue(PrintStream out, String threadName, int capacity, Runnable onError) {
+        this.out = out;
+        this.threadName = threadName;
+        this.capacity = Math.max(capacity, 1);
+        this.onError = onError;
+    }
+
+    synchronized void offer(String line) {
+        if (closed) return;
+        if (lines.size() >= capacity) {
+            lines.removeFirst();
+            dropped++;
+        }
+        lines.addLast(line);
+        if (writer == null) {
+            writer = new Thread(this::writeLoop, threadName);
+            writer.setDaemon(true);
+            writer.start();
+        } else {
+            notifyAll();
+        }
+    }
+
+    synchronized void close() {
+        closed = true;
+        lines.clear();
+        if (writer != null) writer.interrupt();
+    }
+
+    private void writeLoop() {
+        StringBuilder sb = new StringBuilder();
+        while (true) {
+            long drops;
+            synchronized (this) {
+                try {
+                    while (lines.isEmpty() && !closed) wait();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (closed) return;
+                drops = dropped;
+                dropped = 0;
+                sb.setLength(0);
+                // the dropped lines were older than everything that is still queued
+                if (drops > 0) sb.append("REPL: ").append(drops).append(" messages were dropped, because this session could not keep up").append(System.lineSeparator());
+                for (String line : lines) sb.append(line).append(System.lineSeparator());
+                lines.clear();
+            }
+            // one write and flush per batch, outside the lock
+            out.print(sb);
+            out.flush();
+            if (out.checkError()) {
+                synchronized (this) {
+                    closed = true;
+                    lines.clear();
+                }
+                onError.run();
+                return;
+            }
+        }
+    }
+}
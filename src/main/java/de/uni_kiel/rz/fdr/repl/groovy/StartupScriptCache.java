@@ -0,0 +1,125 @@
+// (C) Copyright 2023 Ove Sörensen
+// SPDX-License-Identifier: MIT
+
+package de.uni_kiel.rz.fdr.repl.groovy;
+
+import de.uni_kiel.rz.fdr.repl.REPLLog;
+import de.uni_kiel.rz.fdr.repl.REPLLogEntry;
+import groovy.lang.Binding;
+import groovy.lang.GroovyClassLoader;
+import groovy.lang.GroovyCodeSource;
+import groovy.lang.GroovyShell;
+import groovy.lang.Script;
+import org.apache.groovy.groovysh.Groovysh;
+import org.codehaus.groovy.runtime.InvokerHelper;
+import org.codehaus.groovy.runtime.MethodClosure;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static java.util.Collections.singletonList;
+
+// Compiles the default scripts once and shares the classes between all sessions, so a new session only has to
+// instantiate and run them instead of :load-ing them line by line. We mimic what groovysh does with a :load-ed script:
+// its methods become closures in the session's binding and its imports are added to the shell's imports. Scripts that
+// contain shell commands (like :register) can't be compiled and are still :load-ed. A script is recompiled if its file
+// was modified.
+class StartupScriptCache {
+
+    private static final Pattern COMMAND_PATTERN = Pattern.compile("^\\s*:[a-zA-Z]");
+    private static final Pattern IMPORT_PATTERN = Pattern.compile("^\\s*import\\s+([^;/]+?)\\s*;?\\s*(//.*)?$");
+
+    private record Entry(long modified, long size, List<String> precedingImports, List<String> imports, Class<?> script) {}
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private GroovyClassLoader groovyClassLoader = null;
+
+    void load(Groovysh shell, List<String> scripts, ClassLoader classLoader) {
+        org.apache.groovy.groovysh.Command cmd = shell.getRegistry().find(":load");
+        // imports of earlier scripts are visible to later ones, just as in the shell
+        List<String> imports = new ArrayList<>();
+        for (String script : scripts) {
+            Entry entry = get(script, imports, classLoader);
+            if (entry == null || entry.script() == null) {
+                cmd.execute(singletonList(script));
+            } else {
+                try {
+                    run(shell, entry);
+                } catch (Exception e) {
+                    // report it like the shell would and carry on with the next script
+                    shell.getErrorHook().call(e);
+                }
+            }
+            if (entry != null) imports.addAll(entry.imports());
+        }
+    }
+
+    private synchronized Entry get(String script, List<String> precedingImports, ClassLoader classLoader) {
+        File file = new File(script);
+        long modified = file.lastModified();
+        long size = file.length();
+        Entry entry = entries.get(script);
+        if (entry != null && entry.modified() == modified && entry.size() == size && entry.precedingImports().equals(precedingImports)) return entry;
+
+        String text;
+        try {
+            text = Files.readString(file.toPath());
+        } catch (IOException e) {
+            // :load will report this to the user
+            return null;
+        }
+        List<String> imports = new ArrayList<>();
+        boolean compilable = !text.startsWith("#!");
+        for (String line : text.split("\\R")) {
+            if (COMMAND_PATTERN.matcher(line).find()) compilable = false;
+            Matcher m = IMPORT_PATTERN.matcher(line);
+            if (m.matches()) imports.add(m.group(1).replaceAll("\\s+", " "));
+        }
+
+        Class<?> klass = null;
+        if (compilable) {
+            if (groovyClassLoader == null) groovyClassLoader = new GroovyClassLoader(classLoader);
+            // prepend the imports on the first line, so that line numbers in error messages stay the same
+            StringBuilder source = new StringBuilder();
+            for (String i : precedingImports) source.append("import ").append(i).append(';');
+            source.append(text);
+            try {
+                klass = groovyClassLoader.parseClass(new GroovyCodeSource(source.toString(), className(file), GroovyShell.DEFAULT_CODE_BASE), false);
+            } catch (RuntimeException e) {
+                REPLLog.log(new REPLLogEntry(REPLLogEntry.LOG_LEVEL.WARN, "REPL: could not compile startup script {}, loading it line by line: {}", script, e), REPLLog.INTERNAL_LOG_TARGETS);
+            }
+        }
+
+        entry = new Entry(modified, size, List.copyOf(precedingImports), imports, klass);
+        entries.put(script, entry);
+        return entry;
+    }
+
+    private static void run(Groovysh shell, Entry entry) {
+        Binding binding = shell.getInterp().getContext();
+        Script script = InvokerHelper.createScript(entry.script(), binding);
+        for (Method m : entry.script().getDeclaredMethods()) {
+            String name = m.getName();
+            if (m.isSynthetic() || !Modifier.isPublic(m.getModifiers()) || name.equals("main") || name.equals("run")
+                    || name.startsWith("super$") || name.startsWith("class$") || name.startsWith("$")) continue;
+            binding.setVariable(name, new MethodClosure(script, name));
+        }
+        List<String> shellImports = shell.getImports();
+        for (String i : entry.imports()) if (!shellImports.contains(i)) shellImports.add(i);
+        script.run();
+    }
+
+    private static String className(File file) {
+        String name = file.getName().replaceAll("\\.[^.]*$", "").replaceAll("\\W", "_");
+        return Character.isJavaIdentifierStart(name.isEmpty() ? '0' : name.charAt(0)) ? name : "_" + name;
+    }
+}
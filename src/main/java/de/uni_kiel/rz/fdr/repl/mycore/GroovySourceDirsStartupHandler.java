@@ -32,6 +32,8 @@ public class GroovySourceDirsStartupHandler implements MCRStartupHandler.AutoExe
     private static final String HANDLER_NAME = GroovySourceDirsStartupHandler.class.getName();
     private static final Map<String, String> GROOVY_SOURCE_DIRS = MCRConfiguration2.getSubPropertiesMap("CAU.Groovy.SourceDirs.");
     private static final boolean REORDER_SOURCES = MCRConfiguration2.getBoolean("CAU.REPL.Groovy.ReorderSources").orElse(true);
+    private static final boolean CLASS_CACHE = MCRConfiguration2.getBoolean("CAU.REPL.Groovy.ClassCache").orElse(true);
+    private static final int COMPILE_THREADS = MCRConfiguration2.getInt("CAU.REPL.Groovy.CompileThreads").orElse(Runtime.getRuntime().availableProcessors());
     protected static final boolean TRACE_ENABLED = MCRConfiguration2.getBoolean("CAU.REPL.Log.Trace").orElse(false);
     public static ClassLoader classLoader = null;
     public static String classPath = System.getProperty("CAU.Groovy.ClassPath", System.getProperty("java.class.path", "."));
@@ -77,6 +79,8 @@ public class GroovySourceDirsStartupHandler implements MCRStartupHandler.AutoExe
         }
 
         // compile our sources
+        GroovySourceDirectory.CLASS_CACHE = CLASS_CACHE;
+        GroovySourceDirectory.COMPILE_THREADS = COMPILE_THREADS;
         try {
             for (String prop : GROOVY_SOURCE_DIRS.keySet().stream().sorted().filter(k -> GROOVY_SOURCE_DIRS.get(k) != null && !GROOVY_SOURCE_DIRS.get(k).isBlank()).toList()) {
                 Path p = Path.of(GROOVY_SOURCE_DIRS.get(prop)).toAbsolutePath();
@@ -30,6 +30,13 @@ def compile(Map params=[:], path) {
     return new de.uni_kiel.rz.fdr.repl.groovy.GroovySourceDirectory(path, classLoader, classPath)
 }
 
+def watch(Map params=[:], path) {
+    path = path instanceof String ? java.nio.file.Path.of(path) : path
+    path = path instanceof File ? path.toPath() : path
+    def dir = de.uni_kiel.rz.fdr.repl.groovy.GroovySourceDirectory.get(path) ?: compile(params, path)
+    return new de.uni_kiel.rz.fdr.repl.groovy.GroovySourceWatcher(dir).start()
+}
+
 @SuppressWarnings('GrMethodMayBeStatic')
 def log(Map args=[:], ...msgs) {
     def level = args.getOrDefault("level", "INFO")
@@ -81,8 +88,22 @@ def error(Map args=[:], ...msgs) {
     return log(a, msgs)
 }
 
-static def repllog() {
-    return de.uni_kiel.rz.fdr.repl.REPLLog.getLog()
+static def _CAUREPL_toInstant(x) {
+    if (x == null || x instanceof java.time.Instant) return x
+    if (x instanceof java.time.Duration) return java.time.Instant.now() - x
+    if (x instanceof Date) return x.toInstant()
+    if (x instanceof java.time.temporal.TemporalAccessor) return java.time.Instant.from(x)
+    return java.time.Instant.parse(x as String)
+}
+
+static def repllog(Map args=[:]) {
+    def q = de.uni_kiel.rz.fdr.repl.REPLLog.query(args.get("archives") as boolean)
+    if (args.containsKey("since")) q.since(_CAUREPL_toInstant(args.get("since")))
+    if (args.containsKey("until")) q.until(_CAUREPL_toInstant(args.get("until")))
+    if (args.get("level") != null) q.level(args.get("level") as REPLLogEntry.LOG_LEVEL)
+    if (args.get("grep") != null) q.grep(args.get("grep") instanceof java.util.regex.Pattern ? args.get("grep") as java.util.regex.Pattern : args.get("grep") as String)
+    if (args.get("limit") != null) q.limit(args.get("limit") as Integer)
+    return q.list()
 }
 
 static def tomcatlog() {
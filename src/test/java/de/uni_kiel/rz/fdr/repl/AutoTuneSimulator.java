@@ -0,0 +1,228 @@
+// (C) Copyright 2023 Ove Sörensen
+// SPDX-License-Identifier: MIT
+
+package de.uni_kiel.rz.fdr.repl;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+// A deterministic simulator that feeds synthetic job events into REPLJobCallbackAutoTune. The job is never started;
+// instead, inputs are "processed" by virtual workers whose durations follow a configurable contention curve. All
+// timestamps come from a virtual clock, so a simulation of hours of processing finishes in milliseconds and yields
+// the same result for the same seed.
+public class AutoTuneSimulator {
+
+    // Per-input duration follows the Universal Scalability Law: d(c) = base * (1 + contention * (c - 1) + coherency * c * (c - 1))
+    public record Workload(double baseMillis, double contention, double coherency) {
+        public double durationMicros(int concurrency) {
+            return baseMillis * 1000d * (1d + contention * (concurrency - 1) + coherency * concurrency * (concurrency - 1));
+        }
+
+        // inputs per second
+        public double throughput(int concurrency) {
+            return concurrency * 1000d * 1000d / durationMicros(concurrency);
+        }
+
+        public int optimum(int minConcurrency, int maxConcurrency) {
+            int best = minConcurrency;
+            for (int c = minConcurrency + 1; c <= maxConcurrency; c++) if (throughput(c) > throughput(best)) best = c;
+            return best;
+        }
+    }
+
+    public record Phase(int fromInput, Workload workload) {}
+
+    // convergenceSeconds is null if the phase never converged
+    public record PhaseResult(int fromInput, int optimum, Double convergenceSeconds, double regret, int changesAfterConvergence) {}
+
+    public record Result(int inputs, double virtualSeconds, double idealSeconds, double regret, int concurrencyChanges, int reversals, int finalConcurrency, List<PhaseResult> phases) {
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder(String.format("%d inputs in %.1fs (ideal %.1fs), regret %.2f%%, %d concurrency changes, %d reversals, final concurrency %d",
+                    inputs, virtualSeconds, idealSeconds, regret * 100, concurrencyChanges, reversals, finalConcurrency));
+            for (PhaseResult p : phases) {
+                sb.append(String.format("%n  phase @%d: optimum %d, convergence %s, regret %.2f%%, %d changes after convergence",
+                        p.fromInput(), p.optimum(), p.convergenceSeconds() == null ? "never" : String.format("%.1fs", p.convergenceSeconds()), p.regret() * 100, p.changesAfterConvergence()));
+            }
+            return sb.toString();
+        }
+    }
+
+    private static class PhaseStats {
+        final Phase phase;
+        final int optimum;
+        Long startNanos = null;
+        Long endNanos = null;
+        Long nearOptimalSince = null;
+        Long convergedAt = null;
+        int changesAfterConvergence = 0;
+        double lostInputs = 0;
+        double optimalInputs = 0;
+
+        PhaseStats(Phase phase, int optimum) {
+            this.phase = phase;
+            this.optimum = optimum;
+        }
+    }
+
+    private record Running(long finishNanos, int index, long startNanos) {}
+
+    private final int inputs;
+    private final Random random;
+    private final List<Phase> phases = new ArrayList<>();
+    private double noise = 0;
+    private double tolerance = 0.05;
+    private long convergenceHoldNanos = TimeUnit.SECONDS.toNanos(120);
+
+    public AutoTuneSimulator(int inputs, long seed) {
+        if (inputs < 2) throw new IllegalArgumentException("need at least 2 inputs");
+        this.inputs = inputs;
+        this.random = new Random(seed);
+    }
+
+    public AutoTuneSimulator phase(int fromInput, Workload workload) {
+        if (!phases.isEmpty() && phases.get(phases.size() - 1).fromInput() >= fromInput) throw new IllegalArgumentException("phases must be added in order");
+        if (phases.isEmpty() && fromInput != 0) throw new IllegalArgumentException("the first phase must start at input 0");
+        phases.add(new Phase(fromInput, workload));
+        return this;
+    }
+
+    // relative standard deviation of the per-input duration
+    public AutoTuneSimulator noise(double noise) {
+        this.noise = noise;
+        return this;
+    }
+
+    // the fraction of optimal throughput that still counts as "near optimal"
+    public AutoTuneSimulator tolerance(double tolerance) {
+        this.tolerance = tolerance;
+        return this;
+    }
+
+    // how long a near-optimal concurrency level must be kept before a phase counts as converged
+    public AutoTuneSimulator convergenceHold(long duration, TimeUnit unit) {
+        this.convergenceHoldNanos = unit.toNanos(duration);
+        return this;
+    }
+
+    public Result run(int minConcurrency, int maxConcurrency, int initialConcurrency) throws IOException {
+        return run(minConcurrency, maxConcurrency, initialConcurrency, clock -> new REPLJobCallbackAutoTune(minConcurrency, maxConcurrency, clock::get));
+    }
+
+    // the factory receives the virtual clock (in nanoseconds) and returns the strategy under test
+    public Result run(int minConcurrency, int maxConcurrency, int initialConcurrency, Function<VirtualClock, REPLJobCallbackAutoTune> strategy) throws IOException {
+        if (phases.isEmpty()) throw new IllegalStateException("no workload phases configured");
+        List<Serializable> in = new ArrayList<>(inputs);
+        for (int i = 0; i < inputs; i++) in.add(i);
+        REPLJob job = REPLJob.repljob((x, j) -> x, in, initialConcurrency, "AutoTune Simulation");
+
+        VirtualClock clock = new VirtualClock();
+        REPLJobCallbackAutoTune autoTune = strategy.apply(clock);
+
+        List<PhaseStats> stats = new ArrayList<>();
+        for (Phase p : phases) stats.add(new PhaseStats(p, p.workload().optimum(minConcurrency, maxConcurrency)));
+
+        PriorityQueue<Running> running = new PriorityQueue<>(Comparator.comparingLong(Running::finishNanos).thenComparingInt(Running::index));
+        int next = 0;
+        int lastConcurrency = job.getConcurrency();
+        int lastDirection = 0;
+        int changes = 0;
+        int reversals = 0;
+        double idealNanos = 0;
+
+        while (next < inputs || !running.isEmpty()) {
+            // start as many inputs as the current concurrency allows
+            while (next < inputs && running.size() < job.getConcurrency()) {
+                int pi = phaseIndex(next);
+                PhaseStats ps = stats.get(pi);
+                if (ps.startNanos == null) {
+                    ps.startNanos = clock.get();
+                    if (pi > 0) stats.get(pi - 1).endNanos = clock.get();
+                }
+                double duration = ps.phase.workload().durationMicros(job.getConcurrency());
+                if (noise > 0) duration *= Math.max(0.05, 1d + noise * random.nextGaussian());
+                running.add(new Running(clock.get() + Math.round(duration * 1000d), next, clock.get()));
+                idealNanos += TimeUnit.SECONDS.toNanos(1) / ps.phase.workload().throughput(ps.optimum);
+                next++;
+            }
+
+            // advance the clock to the next finished input and account for the time in between
+            Running r = running.remove();
+            PhaseStats current = stats.get(phaseIndex(Math.min(next, inputs - 1)));
+            account(current, clock.get(), r.finishNanos(), job.getConcurrency());
+            clock.set(r.finishNanos());
+
+            job.results[r.index()] = new REPLJob.InputResult(job.key, r.index(), TimeUnit.NANOSECONDS.toMicros(r.startNanos()), TimeUnit.NANOSECONDS.toMicros(r.finishNanos()), r.index(), null);
+            autoTune.accept(new REPLJob.JobEvent(job, clock.instant(), REPLJob.JobEventType.INPUT_SUCCESS, r.index()));
+
+            int c = job.getConcurrency();
+            if (c != lastConcurrency) {
+                changes++;
+                int direction = Integer.signum(c - lastConcurrency);
+                if (lastDirection != 0 && direction != lastDirection) reversals++;
+                lastDirection = direction;
+                lastConcurrency = c;
+                if (current.convergedAt != null) current.changesAfterConvergence++;
+            }
+        }
+        for (PhaseStats ps : stats) if (ps.endNanos == null) ps.endNanos = clock.get();
+
+        List<PhaseResult> phaseResults = new ArrayList<>();
+        double lost = 0, optimal = 0;
+        for (PhaseStats ps : stats) {
+            // a phase that ends while near optimum counts as converged if it held for the remaining time
+            if (ps.convergedAt == null && ps.nearOptimalSince != null && ps.startNanos != null && ps.endNanos - ps.nearOptimalSince >= Math.min(convergenceHoldNanos, (ps.endNanos - ps.startNanos) / 4)) ps.convergedAt = ps.nearOptimalSince;
+            Double convergence = ps.convergedAt == null || ps.startNanos == null ? null : (ps.convergedAt - ps.startNanos) / 1e9d;
+            phaseResults.add(new PhaseResult(ps.phase.fromInput(), ps.optimum, convergence, ps.optimalInputs > 0 ? ps.lostInputs / ps.optimalInputs : 0, ps.changesAfterConvergence));
+            lost += ps.lostInputs;
+            optimal += ps.optimalInputs;
+        }
+
+        return new Result(inputs, (clock.get() - VirtualClock.EPOCH) / 1e9d, idealNanos / 1e9d, optimal > 0 ? lost / optimal : 0, changes, reversals, job.getConcurrency(), phaseResults);
+    }
+
+    private int phaseIndex(int input) {
+        int idx = 0;
+        for (int i = 0; i < phases.size(); i++) if (phases.get(i).fromInput() <= input) idx = i;
+        return idx;
+    }
+
+    private void account(PhaseStats ps, long from, long to, int concurrency) {
+        if (to <= from) return;
+        double seconds = (to - from) / 1e9d;
+        Workload w = ps.phase.workload();
+        double best = w.throughput(ps.optimum);
+        double actual = w.throughput(concurrency);
+        ps.optimalInputs += best * seconds;
+        ps.lostInputs += Math.max(0, best - actual) * seconds;
+        if (actual >= (1d - tolerance) * best) {
+            if (ps.nearOptimalSince == null) ps.nearOptimalSince = from;
+            if (ps.convergedAt == null && to - ps.nearOptimalSince >= convergenceHoldNanos) ps.convergedAt = ps.nearOptimalSince;
+        } else {
+            ps.nearOptimalSince = null;
+        }
+    }
+
+    public static class VirtualClock {
+        // start well away from zero, like System.nanoTime() would
+        static final long EPOCH = TimeUnit.DAYS.toNanos(1);
+        private long nanos = EPOCH;
+
+        public long get() {
+            return nanos;
+        }
+
+        void set(long nanos) {
+            if (nanos < this.nanos) throw new IllegalStateException("virtual clock must not run backwards");
+            this.nanos = nanos;
+        }
+
+        Instant instant() {
+            return Instant.ofEpochSecond(0, nanos);
+        }
+    }
+}
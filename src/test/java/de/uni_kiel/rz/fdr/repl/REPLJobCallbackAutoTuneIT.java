@@ -0,0 +1,54 @@
+// (C) Copyright 2023 Ove Sörensen
+// SPDX-License-Identifier: MIT
+
+package de.uni_kiel.rz.fdr.repl;
+
+import org.junit.jupiter.api.MethodOrderer;
+import org.junit.jupiter.api.Order;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestMethodOrder;
+
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+public class REPLJobCallbackAutoTuneIT {
+    @Test
+    @Order(100)
+    public void testSimulatorDeterminism() throws IOException {
+        AutoTuneSimulator.Result r1 = new AutoTuneSimulator(5000, 42).noise(0.2).phase(0, new AutoTuneSimulator.Workload(200, 0.05, 0.002)).run(1, 32, 1);
+        AutoTuneSimulator.Result r2 = new AutoTuneSimulator(5000, 42).noise(0.2).phase(0, new AutoTuneSimulator.Workload(200, 0.05, 0.002)).run(1, 32, 1);
+        assertEquals(r1, r2);
+    }
+
+    @Test
+    @Order(200)
+    public void testConvergenceStable() throws IOException {
+        AutoTuneSimulator.Workload w = new AutoTuneSimulator.Workload(200, 0.05, 0.002);
+        AutoTuneSimulator.Result r = new AutoTuneSimulator(20000, 1).noise(0.1).phase(0, w).run(1, 32, 1);
+        AutoTuneSimulator.PhaseResult p = r.phases().get(0);
+        assertNotNull(p.convergenceSeconds(), r.toString());
+        assertTrue(r.regret() < 0.25, r.toString());
+        assertTrue(Math.abs(r.finalConcurrency() - p.optimum()) <= 3, r.toString());
+    }
+
+    @Test
+    @Order(300)
+    public void testConvergencePhaseChange() throws IOException {
+        AutoTuneSimulator.Result r = new AutoTuneSimulator(40000, 2).noise(0.1)
+                .phase(0, new AutoTuneSimulator.Workload(200, 0.05, 0.002))
+                .phase(20000, new AutoTuneSimulator.Workload(100, 0.2, 0.01))
+                .run(1, 32, 1);
+        for (AutoTuneSimulator.PhaseResult p : r.phases()) assertNotNull(p.convergenceSeconds(), r.toString());
+        assertTrue(r.regret() < 0.25, r.toString());
+    }
+
+    @Test
+    @Order(400)
+    public void testLimits() throws IOException {
+        AutoTuneSimulator.Result r = new AutoTuneSimulator(5000, 3).phase(0, new AutoTuneSimulator.Workload(100, 0, 0)).run(2, 4, 2);
+        assertEquals(4, r.phases().get(0).optimum());
+        assertEquals(4, r.finalConcurrency());
+    }
+}
@@ -4,6 +4,7 @@
 package de.uni_kiel.rz.fdr.repl;
 
 import de.uni_kiel.rz.fdr.repl.error.JobException;
+import de.uni_kiel.rz.fdr.repl.error.ObjectStoreInvalidException;
 import groovy.util.Eval;
 import org.junit.jupiter.api.MethodOrderer;
 import org.junit.jupiter.api.Order;
@@ -11,8 +12,15 @@ import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.TestMethodOrder;
 
 import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -66,4 +74,126 @@ public class REPLJobIT {
                     assertEquals("bar4-1", j4.results[0].result());
                 """);
     }
+
+    @Test
+    @Order(300)
+    public void testJobConcurrencyResize() throws ExecutionException, InterruptedException, IOException, JobException {
+        Set<Thread> threads = ConcurrentHashMap.newKeySet();
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        List<Serializable> inputs = new ArrayList<>();
+        for (int i = 0; i < 200; i++) inputs.add(i);
+        REPLJob job = REPLJob.repljob((x, j) -> {
+            threads.add(Thread.currentThread());
+            int r = running.incrementAndGet();
+            maxRunning.accumulateAndGet(r, Math::max);
+            try {
+                Thread.sleep(2);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            running.decrementAndGet();
+            // shrink and grow the pool repeatedly while the job is running
+            if ((int) x == 50) j.setConcurrency(2);
+            if ((int) x == 100) j.setConcurrency(8);
+            if ((int) x == 150) j.setConcurrency(1);
+            return x;
+        }, inputs, 8);
+        job.start().get();
+        assertEquals(REPLJob.JobState.COMPLETED_SUCCESSFULLY, job.getProgress().state());
+        assertEquals(0, job.getProgress().errors());
+        assertTrue(threads.size() <= 8, "created " + threads.size() + " worker threads");
+        assertTrue(maxRunning.get() <= 8);
+    }
+
+    @Test
+    @Order(400)
+    public void testJobLogPaging() throws ExecutionException, InterruptedException, IOException, JobException, ObjectStoreInvalidException {
+        String marker = "REPLJobIT-" + System.nanoTime();
+        List<Serializable> inputs = new ArrayList<>();
+        for (int i = 0; i < 3000; i++) inputs.add(i);
+        AtomicLong missingWhileRunning = new AtomicLong(-1);
+        REPLJob job = REPLJob.repljob((x, j) -> {
+            j.log(new REPLLogEntry((int) x % 100 == 0 ? REPLLogEntry.LOG_LEVEL.WARN : REPLLogEntry.LOG_LEVEL.INFO, "{} {}", marker, x), Set.of());
+            // the state file is still being written, but every entry logged so far must be found
+            if ((int) x == 2500) {
+                try {
+                    long count = j.getJobLogCount();
+                    missingWhileRunning.set(count - j.getJobLog(0, null, null).size());
+                } catch (IOException | ObjectStoreInvalidException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            return x;
+        }, inputs, 4);
+        job.start().get();
+        assertEquals(REPLJob.JobState.COMPLETED_SUCCESSFULLY, job.getProgress().state());
+        assertTrue(missingWhileRunning.get() <= 0, missingWhileRunning.get() + " entries were missing");
+
+        // only the most recent entries stay in memory, the rest is read back from the state file
+        assertEquals(1000, job.getJobLog().size());
+        List<REPLLogEntry> all = job.getJobLog(0, null, null);
+        assertEquals(job.getJobLogCount(), all.size());
+        assertEquals(3000, all.stream().filter(e -> e.getMessage().startsWith(marker + " ")).map(REPLLogEntry::getMessage).distinct().count());
+        assertEquals(all.subList(1990, 2010).stream().map(REPLLogEntry::toString).toList(), job.getJobLog(1990, 20, null).stream().map(REPLLogEntry::toString).toList());
+        assertEquals(30, job.getJobLog(0, null, REPLLogEntry.LOG_LEVEL.WARN).stream().filter(e -> e.getMessage().startsWith(marker + " ")).count());
+        assertEquals(List.of(), job.getJobLog(all.size(), 10, null));
+
+        // resuming carries over the complete history
+        REPLJob resumed = REPLJob.resume(job.getKey(), (x, j) -> x, false, false);
+        assertEquals(3000, resumed.getJobLog(0, null, null).stream().filter(e -> e.getMessage().startsWith(marker + " ")).count());
+    }
+
+    @Test
+    @Order(500)
+    public void testJobPauseCancel() throws ExecutionException, InterruptedException, IOException, JobException {
+        AtomicInteger started = new AtomicInteger();
+        List<Serializable> inputs = new ArrayList<>();
+        for (int i = 0; i < 100; i++) inputs.add(i);
+        REPLJob job = REPLJob.repljob((x, j) -> {
+            started.incrementAndGet();
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            return x;
+        }, inputs, 4);
+        Future<REPLJob.JobProgress> f = job.start();
+        while (started.get() < 10) Thread.sleep(5);
+        job.pause();
+        while (job.getProgress().state() != REPLJob.JobState.PAUSED) Thread.sleep(5);
+        int beforeCancel = started.get();
+        // inputs queued while paused must not run after a graceful cancel
+        job.cancel();
+        f.get();
+        assertEquals(REPLJob.JobState.CANCELLED, job.getProgress().state());
+        assertEquals(beforeCancel, started.get());
+        assertTrue(beforeCancel < inputs.size());
+    }
+
+    @Test
+    @Order(600)
+    public void testJobLogFormatting() throws ExecutionException, InterruptedException, IOException, JobException, ObjectStoreInvalidException {
+        ThreadLocal<String> context = new ThreadLocal<>();
+        REPLJob job = REPLJob.repljob((x, j) -> {
+            context.set("in job");
+            StringBuilder state = new StringBuilder("before");
+            Object contextual = new Object() {
+                @Override
+                public String toString() {
+                    return String.valueOf(context.get());
+                }
+            };
+            j.log(new REPLLogEntry(REPLLogEntry.LOG_LEVEL.INFO, "REPLJobIT formatting {} {}", state, contextual), Set.of());
+            // the entry must show the arguments as they were when it was logged, on the thread that logged it
+            state.replace(0, state.length(), "after");
+            context.remove();
+            return x;
+        }, List.of(1), 1);
+        job.start().get();
+        assertEquals(REPLJob.JobState.COMPLETED_SUCCESSFULLY, job.getProgress().state());
+        List<String> messages = job.getJobLog(0, null, null).stream().map(REPLLogEntry::getMessage).filter(m -> m.startsWith("REPLJobIT formatting")).toList();
+        assertEquals(List.of("REPLJobIT formatting before in job"), messages);
+    }
 }
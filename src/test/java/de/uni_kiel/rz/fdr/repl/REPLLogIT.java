@@ -0,0 +1,308 @@
+// (C) Copyright 2023 Ove Sörensen
+// SPDX-License-Identifier: MIT
+
+package de.uni_kiel.rz.fdr.repl;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.Logger;
+import org.apache.logging.log4j.core.appender.AbstractAppender;
+import org.apache.logging.log4j.core.config.Property;
+import org.codehaus.groovy.runtime.GStringImpl;
+import org.junit.jupiter.api.MethodOrderer;
+import org.junit.jupiter.api.Order;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestMethodOrder;
+import groovy.util.Eval;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+public class REPLLogIT {
+    @Test
+    @Order(100)
+    public void testFileLogConcurrent() throws InterruptedException {
+        String marker = "REPLLogIT-" + System.nanoTime();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            final int thread = t;
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < 1000; i++) REPLLog.log(new REPLLogEntry(REPLLogEntry.LOG_LEVEL.INFO, "{} {} {}", marker, thread, i), Set.of(REPLLog.LOG_TARGETS.REPL_FILE));
+            }));
+        }
+        for (Thread t : threads) t.start();
+        for (Thread t : threads) t.join();
+
+        // reading the log flushes the buffer, each thread's entries must appear completely and in order
+        List<REPLLogEntry> log = REPLLog.getLog();
+        assertNotNull(log);
+        int[] next = new int[threads.size()];
+        for (REPLLogEntry e : log) {
+            if (!e.getMessage().startsWith(marker + " ")) continue;
+            String[] parts = e.getMessage().split(" ");
+            int thread = Integer.parseInt(parts[1]);
+            assertEquals(next[thread]++, Integer.parseInt(parts[2]));
+        }
+        for (int n : next) assertEquals(1000, n);
+
+        // the arguments are formatted when the entry is logged, not when the buffer is written
+        List<String> mutable = new ArrayList<>(List.of("before"));
+        REPLLog.log(new REPLLogEntry(REPLLogEntry.LOG_LEVEL.INFO, "{} mutable {}", marker, mutable), Set.of(REPLLog.LOG_TARGETS.REPL_FILE));
+        mutable.set(0, "after");
+        assertEquals(List.of(marker + " mutable [before]"), REPLLog.query(false).grep(marker + " mutable").list().stream().map(REPLLogEntry::getMessage).toList());
+    }
+
+    @Test
+    @Order(200)
+    public void testFileLogSynchronous() {
+        String marker = "REPLLogIT-" + System.nanoTime();
+        REPLLog.log(new REPLLogEntry(REPLLogEntry.LOG_LEVEL.INFO, "{} buffered", marker), Set.of(REPLLog.LOG_TARGETS.REPL_FILE));
+        REPLLog.log(new REPLLogEntry(REPLLogEntry.LOG_LEVEL.ERROR, "{} synchronous", marker), Set.of(REPLLog.LOG_TARGETS.REPL_FILE));
+        List<String> messages = REPLLog.getLog().stream().map(REPLLogEntry::getMessage).filter(m -> m.startsWith(marker)).toList();
+        assertEquals(List.of(marker + " buffered", marker + " synchronous"), messages);
+    }
+
+    @Test
+    @Order(300)
+    public void testEntryFormatting() throws IOException, ClassNotFoundException {
+        assertEquals("a 1 b 2", new REPLLogEntry(REPLLogEntry.LOG_LEVEL.INFO, "a {} b {}", 1, 2).getMessage());
+        assertEquals("a {} b", new REPLLogEntry(REPLLogEntry.LOG_LEVEL.INFO, "a {} b").getMessage());
+        assertEquals("a x b {}", new REPLLogEntry(REPLLogEntry.LOG_LEVEL.INFO, "a {} b {}", "x").getMessage());
+        assertEquals("a {} b y", new REPLLogEntry(REPLLogEntry.LOG_LEVEL.INFO, "a {} b {}", "{}", "y").getMessage());
+        assertEquals("a null" + System.lineSeparator() + "z", new REPLLogEntry(REPLLogEntry.LOG_LEVEL.INFO, "a {}", null, "z").getMessage());
+        assertEquals("<NULL>", new REPLLogEntry(REPLLogEntry.LOG_LEVEL.INFO, (Object[]) null).getMessage());
+        assertEquals("===== t 1", new REPLLogEntry(REPLLogEntry.LOG_LEVEL.TRACE, "t {}", 1).getMessage());
+
+        // entries are formatted before serialization
+        REPLLogEntry e = new REPLLogEntry(REPLLogEntry.LOG_LEVEL.WARN, "s {}", 42);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(e);
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            REPLLogEntry copy = (REPLLogEntry) in.readObject();
+            assertEquals("s 42", copy.getMessage());
+            assertEquals(e.getTimestamp(), copy.getTimestamp());
+        }
+    }
+
+    @Test
+    @Order(500)
+    public void testQuery() throws IOException {
+        String marker = "REPLLogIT-" + System.nanoTime();
+        Instant start = Instant.now();
+        Set<REPLLog.LOG_TARGETS> targets = Set.of(REPLLog.LOG_TARGETS.REPL_FILE);
+        // spans several index blocks
+        for (int i = 0; i < 5000; i++) REPLLog.log(new REPLLogEntry(i % 100 == 0 ? REPLLogEntry.LOG_LEVEL.WARN : REPLLogEntry.LOG_LEVEL.DEBUG, "{} {} padding padding padding padding padding", marker, i), targets);
+
+        List<REPLLogEntry> last = REPLLog.query().grep(marker).limit(3).list();
+        assertEquals(3, last.size());
+        assertTrue(last.get(2).getMessage().startsWith(marker + " 4999 "));
+        assertTrue(last.get(0).getMessage().startsWith(marker + " 4997 "));
+
+        List<REPLLogEntry> warnings = REPLLog.query().since(start).level(REPLLogEntry.LOG_LEVEL.WARN).grep("^" + marker + " ").list();
+        assertEquals(50, warnings.size());
+        assertTrue(warnings.get(0).getMessage().startsWith(marker + " 0 "));
+        assertTrue(warnings.get(49).getMessage().startsWith(marker + " 4900 "));
+
+        assertEquals(0, REPLLog.query().until(start.minusSeconds(1)).grep(marker).list().size());
+        assertEquals(5000, REPLLog.query().grep(marker).stream().count());
+
+        // the shell helper, evaluated together with the shell's base script
+        String base = new String(Objects.requireNonNull(REPLLogIT.class.getResourceAsStream("/repl-groovy-base.groovy")).readAllBytes(), StandardCharsets.UTF_8);
+        Eval.me("marker", marker, base + System.lineSeparator() + """
+                    def r = repllog(level: "WARN", grep: marker, limit: 2, since: java.time.Duration.ofHours(1))
+                    org.junit.jupiter.api.Assertions.assertEquals(2, r.size())
+                    org.junit.jupiter.api.Assertions.assertTrue(r[1].getMessage().startsWith(marker + " 4900 "))
+                """);
+    }
+
+    @Test
+    @Order(600)
+    public void testRotation() throws IOException, InterruptedException {
+        String marker = "REPLLogIT-" + System.nanoTime();
+        Set<REPLLog.LOG_TARGETS> targets = Set.of(REPLLog.LOG_TARGETS.REPL_FILE);
+        for (int i = 0; i < 100; i++) REPLLog.log(new REPLLogEntry(REPLLogEntry.LOG_LEVEL.INFO, "{} {}", marker, i), targets);
+        REPLLog.rotate();
+        Instant rotated = Instant.now();
+        for (int i = 100; i < 200; i++) REPLLog.log(new REPLLogEntry(REPLLogEntry.LOG_LEVEL.INFO, "{} {}", marker, i), targets);
+
+        // the current file only has the new entries, queries see both
+        assertEquals(100, REPLLog.getLog().stream().filter(e -> e.getMessage().startsWith(marker + " ")).count());
+        List<REPLLogEntry> all = REPLLog.query().grep(marker).list();
+        assertEquals(200, all.size());
+        for (int i = 0; i < 200; i++) assertEquals(marker + " " + i, all.get(i).getMessage());
+
+        // the archive is compressed in the background and remains readable
+        Path dir = REPL.getWorkDir().toPath();
+        for (int i = 0; i < 100 && !uncompressedArchives(dir).isEmpty(); i++) Thread.sleep(100);
+        assertEquals(List.of(), uncompressedArchives(dir));
+        all = REPLLog.query().grep(marker).list();
+        assertEquals(200, all.size());
+        for (int i = 0; i < 200; i++) assertEquals(marker + " " + i, all.get(i).getMessage());
+        List<REPLLogEntry> last = REPLLog.query().grep(marker).limit(150).list();
+        assertEquals(marker + " 50", last.get(0).getMessage());
+        assertEquals(100, REPLLog.query().until(rotated).grep(marker).list().size());
+    }
+
+    @Test
+    @Order(700)
+    public void testRotationBySize() throws IOException {
+        Path dir = Files.createTempDirectory("REPLLogIT");
+        Path file = dir.resolve("test.log");
+        List<Path> archives = new ArrayList<>();
+        REPLLogFileWriter writer = new REPLLogFileWriter(() -> file, 0, 1, 16 * 1024, 0, (path, index) -> {
+            Path target = dir.resolve("test." + archives.size() + ".log");
+            Files.move(path, target);
+            archives.add(target);
+        });
+        for (int i = 0; i < 2000; i++) writer.append(new REPLLogEntry(REPLLogEntry.LOG_LEVEL.INFO, "entry {} padding padding padding", i), false);
+        writer.close();
+
+        assertTrue(archives.size() >= 5, archives.toString());
+        int lines = 0;
+        for (Path p : archives) {
+            assertTrue(Files.size(p) >= 16 * 1024 && Files.size(p) < 17 * 1024, p + ": " + Files.size(p));
+            lines += Files.readAllLines(p).size();
+        }
+        lines += Files.readAllLines(file).size();
+        assertEquals(2000, lines);
+    }
+
+    @Test
+    @Order(800)
+    public void testSuppression() {
+        AtomicLong clock = new AtomicLong();
+        // the suppressor's own sweeper thread might deliver the summaries, too
+        List<REPLLogEntry> summaries = new CopyOnWriteArrayList<>();
+        REPLLogSuppressor suppressor = new REPLLogSuppressor(REPLLogEntry.LOG_LEVEL.WARN, 3, 1000, clock::get, (e, t) -> summaries.add(e));
+        Set<REPLLog.LOG_TARGETS> targets = Set.of(REPLLog.LOG_TARGETS.REPL_FILE);
+
+        int admitted = 0;
+        for (int i = 0; i < 10; i++) {
+            if (suppressor.admit(new REPLLogEntry(REPLLogEntry.LOG_LEVEL.ERROR, "input {} failed", i), targets)) admitted++;
+        }
+        assertEquals(3, admitted);
+        // other levels and templates are counted separately, levels below the threshold are never suppressed
+        assertTrue(suppressor.admit(new REPLLogEntry(REPLLogEntry.LOG_LEVEL.WARN, "input {} failed", 1), targets));
+        assertTrue(suppressor.admit(new REPLLogEntry(REPLLogEntry.LOG_LEVEL.ERROR, "something else"), targets));
+        for (int i = 0; i < 10; i++) assertTrue(suppressor.admit(new REPLLogEntry(REPLLogEntry.LOG_LEVEL.INFO, "input {} done", i), targets));
+
+        // the summary is due once the window has passed
+        suppressor.sweep();
+        assertEquals(List.of(), summaries);
+        clock.addAndGet(1_000_000_000L);
+        suppressor.sweep();
+        assertEquals(1, summaries.size());
+        assertEquals(REPLLogEntry.LOG_LEVEL.ERROR, summaries.get(0).getLevel());
+        assertTrue(summaries.get(0).getMessage().startsWith("REPL: 7 more messages"), summaries.get(0).getMessage());
+        suppressor.sweep();
+        assertEquals(1, summaries.size());
+
+        // a new window lets messages through again; a storm that continues emits its summary inline
+        for (int i = 0; i < 5; i++) suppressor.admit(new REPLLogEntry(REPLLogEntry.LOG_LEVEL.ERROR, "input {} failed", i), targets);
+        clock.addAndGet(1_000_000_000L);
+        assertTrue(suppressor.admit(new REPLLogEntry(REPLLogEntry.LOG_LEVEL.ERROR, "input {} failed", 99), targets));
+        assertEquals(2, summaries.size());
+        assertTrue(summaries.get(1).getMessage().startsWith("REPL: 2 more messages"), summaries.get(1).getMessage());
+
+        REPLLog.SuppressionCounter counter = suppressor.getCounters().stream().filter(c -> c.level() == REPLLogEntry.LOG_LEVEL.ERROR && c.template().equals("input {} failed")).findFirst().orElseThrow();
+        assertEquals(16, counter.total());
+        assertEquals(9, counter.suppressed());
+        assertNotNull(REPLLog.getSuppressionCounters());
+
+        // interpolated GStrings are grouped by their constant parts
+        for (int i = 0; i < 10; i++) suppressor.admit(new REPLLogEntry(REPLLogEntry.LOG_LEVEL.WARN, new GStringImpl(new Object[]{i}, new String[]{"job ", " stalled"})), targets);
+        counter = suppressor.getCounters().stream().filter(c -> c.template().equals("job {} stalled")).findFirst().orElseThrow();
+        assertEquals(10, counter.total());
+        assertEquals(7, counter.suppressed());
+
+        // groups that stay quiet for a whole window are forgotten
+        clock.addAndGet(1_000_000_000L);
+        suppressor.sweep();
+        assertEquals(3, summaries.size());
+        assertTrue(summaries.get(2).getMessage().startsWith("REPL: 7 more messages like this were suppressed in the last 1s: job {} stalled"), summaries.get(2).getMessage());
+        clock.addAndGet(1_000_000_000L);
+        suppressor.sweep();
+        assertEquals(List.of(), suppressor.getCounters());
+        assertEquals(3, summaries.size());
+    }
+
+    @Test
+    @Order(850)
+    public void testSuppressionFile() {
+        String marker = "REPLLogIT-" + System.nanoTime();
+        long burst = Long.parseLong(System.getProperty("CAU.REPL.Log.SuppressAfter", "100"));
+        // errors are written synchronously, a storm of them must not reach the file beyond the burst
+        for (int i = 0; i < 1000; i++) REPLLog.log(new REPLLogEntry(REPLLogEntry.LOG_LEVEL.ERROR, marker + " storm {}", i), Set.of(REPLLog.LOG_TARGETS.REPL_FILE));
+        List<String> written = REPLLog.query(false).grep(marker + " storm").list().stream().map(REPLLogEntry::getMessage).toList();
+        assertEquals(burst, written.size());
+        assertEquals(marker + " storm " + (burst - 1), written.get(written.size() - 1));
+        REPLLog.SuppressionCounter counter = REPLLog.getSuppressionCounters().stream().filter(c -> c.template().equals(marker + " storm {}")).findFirst().orElseThrow();
+        assertEquals(1000, counter.total());
+        assertEquals(1000 - burst, counter.suppressed());
+    }
+
+    @Test
+    @Order(870)
+    public void testLog4J() {
+        // a failure to bind to Log4J would silently drop all Log4J output
+        REPLLog.initializeLibs();
+        assertTrue(REPLLog.isLog4JInitialized());
+
+        String marker = "REPLLogIT-" + System.nanoTime();
+        List<String> received = new CopyOnWriteArrayList<>();
+        Logger logger = (Logger) LogManager.getLogger(REPLLog.class);
+        AbstractAppender appender = new AbstractAppender("REPLLogIT", null, null, true, Property.EMPTY_ARRAY) {
+            @Override
+            public void append(LogEvent event) {
+                received.add(event.getLevel() + " " + event.getMessage().getFormattedMessage());
+            }
+        };
+        appender.start();
+        logger.addAppender(appender);
+        try {
+            REPLLog.log(new REPLLogEntry(REPLLogEntry.LOG_LEVEL.ERROR, "{} via log4j", marker), Set.of(REPLLog.LOG_TARGETS.LOG4J));
+        } finally {
+            logger.removeAppender(appender);
+            appender.stop();
+        }
+        assertEquals(List.of("ERROR " + marker + " via log4j"), received);
+    }
+
+    @Test
+    @Order(900)
+    public void testWriteFailure() throws IOException {
+        Path dir = Files.createTempDirectory("cau-repl-logfail");
+        Path file = dir.resolve("missing").resolve("repl.log");
+        REPLLogFileWriter writer = new REPLLogFileWriter(() -> file, 60000, 100, 0, 0, null);
+        for (int i = 0; i < 3; i++) writer.append(new REPLLogEntry(REPLLogEntry.LOG_LEVEL.INFO, "entry {}", i), false);
+        // the directory does not exist yet, so the batch can't be written, but it must not get lost
+        assertThrows(IOException.class, writer::flush);
+        assertThrows(IOException.class, () -> writer.append(new REPLLogEntry(REPLLogEntry.LOG_LEVEL.ERROR, "entry {}", 3), true));
+        Files.createDirectories(file.getParent());
+        writer.flush();
+        writer.close();
+        List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        assertEquals(List.of("entry 0", "entry 1", "entry 2", "entry 3"), lines.stream().map(l -> REPLLogEntry.fromTSV(l).getMessage()).toList());
+    }
+
+    private static List<Path> uncompressedArchives(Path dir) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(p -> p.getFileName().toString().matches("^repl\\..+\\.log$")).toList();
+        }
+    }
+}
@@ -0,0 +1,115 @@
+// (C) Copyright 2023 Ove Sörensen
+// SPDX-License-Identifier: MIT
+
+package de.uni_kiel.rz.fdr.repl;
+
+import de.uni_kiel.rz.fdr.repl.error.JobException;
+import groovy.json.JsonSlurper;
+import org.junit.jupiter.api.*;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+public class REPLMetricsIT {
+
+    private static InetSocketAddress address;
+    private static final HttpClient client = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(5)).build();
+
+    @BeforeAll
+    public static void startMetrics() throws IOException {
+        address = REPLMetrics.start("127.0.0.1", 0);
+    }
+
+    @AfterAll
+    public static void stopMetrics() {
+        REPLMetrics.stop();
+        assertNull(REPLMetrics.getAddress());
+    }
+
+    private static HttpResponse<String> get(String path) throws IOException, InterruptedException {
+        HttpRequest request = HttpRequest.newBuilder(URI.create("http://127.0.0.1:" + address.getPort() + path)).timeout(Duration.ofSeconds(5)).build();
+        return client.send(request, HttpResponse.BodyHandlers.ofString());
+    }
+
+    @Test
+    @Order(100)
+    @SuppressWarnings("unchecked")
+    public void testJobMetrics() throws IOException, InterruptedException, JobException, ExecutionException {
+        CountDownLatch started = new CountDownLatch(2);
+        CountDownLatch release = new CountDownLatch(1);
+        List<Serializable> inputs = new ArrayList<>(IntStream.range(0, 10).boxed().toList());
+        REPLJob job = REPLJob.repljob((x, j) -> {
+            if ((Integer) x >= 5) {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            if ((Integer) x == 9) throw new RuntimeException("failed");
+            return x;
+        }, inputs, 2, "metrics \"test\"");
+        job.start();
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+
+        // scraping must not wait for the job, even while someone holds its lock
+        HttpResponse<String> response;
+        synchronized (job) {
+            response = get("/metrics");
+        }
+        assertEquals(200, response.statusCode());
+        assertTrue(response.headers().firstValue("Content-Type").orElse("").startsWith("text/plain; version=0.0.4"));
+        String labels = "{job=\"" + job.getKey() + "\",name=\"metrics \\\"test\\\"\"";
+        String body = response.body();
+        assertTrue(body.contains("cau_repl_job_inputs" + labels + "} 10\n"), body);
+        assertTrue(body.contains("cau_repl_job_active_threads" + labels + "} 2\n"), body);
+        assertTrue(body.contains("cau_repl_job_concurrency" + labels + "} 2\n"), body);
+        assertTrue(body.contains("cau_repl_job_active" + labels + "} 1\n"), body);
+        assertTrue(body.contains("# TYPE cau_repl_log_messages_total counter\n"), body);
+        assertTrue(body.contains("cau_repl_breakpoints_waiting 0\n"), body);
+
+        release.countDown();
+        job.getFuture().get();
+        REPLJob.JobMetrics m = job.getMetrics();
+        assertFalse(m.active());
+        assertEquals(0, m.remainingInputs());
+        assertEquals(9, m.success());
+        assertEquals(1, m.errors());
+        assertTrue(m.inputsPerSecond() > 0);
+        assertNull(m.etaSeconds());
+
+        response = get("/metrics.json");
+        assertEquals(200, response.statusCode());
+        Map<String, Object> json = (Map<String, Object>) new JsonSlurper().parseText(response.body());
+        Map<String, Object> jobJson = ((List<Map<String, Object>>) json.get("jobs")).stream().filter(j -> job.getKey().equals(j.get("key"))).findFirst().orElseThrow();
+        assertEquals(9, jobJson.get("success"));
+        assertEquals(1, jobJson.get("errors"));
+        assertEquals(false, jobJson.get("active"));
+        assertTrue(json.containsKey("activeSessions"));
+    }
+
+    @Test
+    @Order(200)
+    public void testRequests() throws IOException, InterruptedException {
+        assertEquals(404, get("/metricsfoo").statusCode());
+        HttpRequest post = HttpRequest.newBuilder(URI.create("http://127.0.0.1:" + address.getPort() + "/metrics")).POST(HttpRequest.BodyPublishers.noBody()).build();
+        assertEquals(405, client.send(post, HttpResponse.BodyHandlers.ofString()).statusCode());
+    }
+}
@@ -0,0 +1,64 @@
+// (C) Copyright 2023 Ove Sörensen
+// SPDX-License-Identifier: MIT
+
+package de.uni_kiel.rz.fdr.repl;
+
+import org.junit.jupiter.api.MethodOrderer;
+import org.junit.jupiter.api.Order;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestMethodOrder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+@TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+public class StreamRedirectorIT {
+
+    private static class CountingOutputStream extends ByteArrayOutputStream {
+        long writes = 0;
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            writes++;
+            super.write(b, off, len);
+        }
+    }
+
+    @Test
+    @Order(100)
+    public void testRedirect() throws ExecutionException, InterruptedException, TimeoutException {
+        byte[] data = new byte[8 * 1024 * 1024];
+        new Random(1).nextBytes(data);
+        CountingOutputStream out = new CountingOutputStream();
+        StreamRedirector.asyncRedirect(new ByteArrayInputStream(data), out, true, true).get(60, TimeUnit.SECONDS);
+        assertArrayEquals(data, out.toByteArray());
+        assertTrue(out.writes <= data.length / 8192, "too many writes: " + out.writes);
+    }
+
+    @Test
+    @Order(200)
+    public void testRedirectProcess() throws IOException, ExecutionException, InterruptedException, TimeoutException {
+        assumeTrue(new File("/bin/cat").canExecute(), "needs /bin/cat");
+        byte[] data = new byte[4 * 1024 * 1024];
+        new Random(2).nextBytes(data);
+        for (int round = 0; round < 3; round++) {
+            Process proc = new ProcessBuilder("/bin/cat").start();
+            CountingOutputStream out = new CountingOutputStream();
+            CountingOutputStream err = new CountingOutputStream();
+            // the redirector closes the process' stdin at the end of our input, so cat terminates
+            StreamRedirector.asyncRedirect(proc, new ByteArrayInputStream(data), out, err).get(60, TimeUnit.SECONDS);
+            assertFalse(proc.isAlive());
+            assertArrayEquals(data, out.toByteArray());
+            assertEquals(0, err.size());
+        }
+    }
+}
@@ -0,0 +1,120 @@
+// (C) Copyright 2023 Ove Sörensen
+// SPDX-License-Identifier: MIT
+
+package de.uni_kiel.rz.fdr.repl;
+
+import org.junit.jupiter.api.MethodOrderer;
+import org.junit.jupiter.api.Order;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestMethodOrder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+public class TtyFilterOutputStreamIT {
+
+    // counts the calls that reach the channel, as each of them is expensive there
+    private static class CountingOutputStream extends ByteArrayOutputStream {
+        long writes = 0;
+        long flushes = 0;
+
+        @Override
+        public synchronized void write(int b) {
+            writes++;
+            super.write(b);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            writes++;
+            super.write(b, off, len);
+        }
+
+        @Override
+        public void flush() {
+            flushes++;
+        }
+    }
+
+    private static byte[] translate(byte[] in) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(in.length + in.length / 10);
+        for (byte b : in) {
+            out.write(b);
+            if (b == '\n') out.write('\r');
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    @Order(100)
+    public void testTranslation() throws IOException {
+        Random random = new Random(1);
+        for (int round = 0; round < 200; round++) {
+            byte[] data = new byte[random.nextInt(20000)];
+            for (int i = 0; i < data.length; i++) data[i] = random.nextInt(10) == 0 ? (byte) '\n' : (byte) ('a' + random.nextInt(26));
+            int off = data.length > 0 ? random.nextInt(data.length) : 0;
+            int len = data.length > 0 ? random.nextInt(data.length - off + 1) : 0;
+            CountingOutputStream sink = new CountingOutputStream();
+            try (TtyFilterOutputStream tty = new TtyFilterOutputStream(sink, new AtomicBoolean(true))) {
+                tty.write(data, off, len);
+            }
+            byte[] expected = new byte[len];
+            System.arraycopy(data, off, expected, 0, len);
+            assertArrayEquals(translate(expected), sink.toByteArray(), "round " + round);
+        }
+
+        // all line breaks, which exercises the buffer boundaries
+        byte[] lf = new byte[50000];
+        Arrays.fill(lf, (byte) '\n');
+        CountingOutputStream sink = new CountingOutputStream();
+        new TtyFilterOutputStream(sink, new AtomicBoolean(true)).write(lf);
+        assertArrayEquals(translate(lf), sink.toByteArray());
+
+        assertThrows(IndexOutOfBoundsException.class, () -> new TtyFilterOutputStream(new CountingOutputStream(), new AtomicBoolean(true)).write(new byte[10], 5, 6));
+    }
+
+    @Test
+    @Order(200)
+    public void testFlushCoalescing() throws IOException {
+        CountingOutputStream sink = new CountingOutputStream();
+        TtyFilterOutputStream tty = new TtyFilterOutputStream(sink, new AtomicBoolean(true));
+        tty.flush();
+        assertEquals(0, sink.flushes);
+        tty.write("x\n".getBytes(StandardCharsets.UTF_8));
+        tty.flush();
+        tty.flush();
+        assertEquals(1, sink.flushes);
+    }
+
+    @Test
+    @Order(300)
+    public void testLargeDocument() throws IOException {
+        // a large XML-like document, printed line by line
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; sb.length() < 8 * 1024 * 1024; i++) sb.append("  <entry id=\"").append(i).append("\">some value for this entry</entry>\n");
+        String doc = sb.toString();
+        byte[] bytes = doc.getBytes(StandardCharsets.UTF_8);
+
+        CountingOutputStream sink = new CountingOutputStream();
+        PrintStream ps = new PrintStream(new TtyFilterOutputStream(sink, new AtomicBoolean(true)), true, StandardCharsets.UTF_8);
+        ps.print(doc);
+        ps.flush();
+
+        // writing byte by byte must produce the same output
+        CountingOutputStream reference = new CountingOutputStream();
+        TtyFilterOutputStream tty = new TtyFilterOutputStream(reference, new AtomicBoolean(true));
+        for (byte b : bytes) tty.write(b);
+        tty.flush();
+        assertArrayEquals(reference.toByteArray(), sink.toByteArray());
+        assertArrayEquals(translate(bytes), sink.toByteArray());
+        assertTrue(sink.writes < bytes.length / 1000, "too many writes to the channel: " + sink.writes);
+    }
+}
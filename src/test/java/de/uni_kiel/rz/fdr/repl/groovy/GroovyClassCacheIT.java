@@ -0,0 +1,96 @@
+// (C) Copyright 2024 Ove Sörensen
+// SPDX-License-Identifier: MIT
+
+package de.uni_kiel.rz.fdr.repl.groovy;
+
+import de.uni_kiel.rz.fdr.repl.REPL;
+import groovy.lang.GroovyClassLoader;
+import org.junit.jupiter.api.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+public class GroovyClassCacheIT {
+
+    private static Path root;
+
+    @BeforeAll
+    public static void createSources() throws Exception {
+        assertNotNull(REPL.getWorkDir());
+        root = Files.createTempDirectory("cau-repl-classcache");
+        Path pkg = Files.createDirectories(root.resolve("test3"));
+        Files.writeString(pkg.resolve("Base.groovy"), """
+                package test3
+                class Base {
+                    String hello() { "base" }
+                }
+                """);
+        Files.writeString(pkg.resolve("Child.groovy"), """
+                package test3
+                class Child extends Base {
+                    String hello() { ["child", super.hello()].collect { it.toUpperCase() }.join(" ") }
+                }
+                """);
+        Files.writeString(pkg.resolve("Greeter.groovy"), """
+                package test3
+                @Patches
+                class Greeter {
+                    String greet() { "patched " + super.greet() }
+                }
+                """);
+    }
+
+    private static Object call(GroovySourceDirectory dir, String className, String method) throws Exception {
+        Class<?> klass = dir.getClasses().stream().filter(c -> c.getName().equals(className)).findFirst().orElseThrow();
+        return klass.getMethod(method).invoke(klass.getConstructor().newInstance());
+    }
+
+    private static GroovySourceDirectory load() throws Exception {
+        return new GroovySourceDirectory(root, new GroovyClassLoader());
+    }
+
+    @Test
+    @Order(100)
+    public void testCache() throws Exception {
+        GroovySourceDirectory compiled = load();
+        assertFalse(compiled.isFromCache());
+        assertEquals("CHILD BASE", call(compiled, "test3.Child", "hello"));
+        assertEquals("patched hello", call(compiled, "test3.Greeter", "greet"));
+
+        GroovySourceDirectory cached = load();
+        assertTrue(cached.isFromCache());
+        List<String> names = compiled.getClasses().stream().map(Class::getName).toList();
+        assertEquals(names, cached.getClasses().stream().map(Class::getName).toList());
+        assertEquals("CHILD BASE", call(cached, "test3.Child", "hello"));
+        assertEquals("patched hello", call(cached, "test3.Greeter", "greet"));
+        // the renamed target of @Patches was restored as well
+        assertEquals("test3.Greeter_CAUREPL", cached.getClassLoader().loadClass("test3.Greeter").getSuperclass().getName());
+    }
+
+    @Test
+    @Order(200)
+    public void testInvalidation() throws Exception {
+        Files.writeString(root.resolve("test3").resolve("Base.groovy"), """
+                package test3
+                class Base {
+                    String hello() { "changed" }
+                }
+                """);
+        GroovySourceDirectory dir = load();
+        assertFalse(dir.isFromCache());
+        assertEquals("CHILD CHANGED", call(dir, "test3.Child", "hello"));
+        assertTrue(load().isFromCache());
+
+        boolean enabled = GroovySourceDirectory.CLASS_CACHE;
+        try {
+            GroovySourceDirectory.CLASS_CACHE = false;
+            assertFalse(load().isFromCache());
+        } finally {
+            GroovySourceDirectory.CLASS_CACHE = enabled;
+        }
+    }
+}
@@ -0,0 +1,102 @@
+// (C) Copyright 2023 Ove Sörensen
+// SPDX-License-Identifier: MIT
+
+package de.uni_kiel.rz.fdr.repl.groovy;
+
+import org.apache.sshd.client.SshClient;
+import org.apache.sshd.client.channel.ClientChannel;
+import org.apache.sshd.client.channel.ClientChannelEvent;
+import org.apache.sshd.client.session.ClientSession;
+import org.junit.jupiter.api.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+public class GroovyExecCommandIT {
+
+    private record Result(int exitCode, String out, String err) {}
+
+    private static GroovyShellService service;
+    private static SshClient client;
+    private static ClientSession session;
+
+    @BeforeAll
+    public static void startService() throws IOException {
+        int port;
+        try (ServerSocket s = new ServerSocket(0)) {
+            port = s.getLocalPort();
+        }
+        service = new GroovyShellService(port, GroovyExecCommandIT.class.getClassLoader());
+        service.setHost("127.0.0.1");
+        service.setBindings(Map.of("answer", 42));
+        service.setPasswordAuthenticator((user, password, s) -> password.equals("secret"));
+        service.start(Files.createTempDirectory("cau-repl-exec").toFile(), List.of());
+
+        client = SshClient.setUpDefaultClient();
+        client.start();
+        session = client.connect("test", "127.0.0.1", port).verify(10, TimeUnit.SECONDS).getSession();
+        session.addPasswordIdentity("secret");
+        session.auth().verify(10, TimeUnit.SECONDS);
+    }
+
+    @AfterAll
+    public static void stopService() throws IOException {
+        session.close();
+        client.stop();
+        service.destroy();
+    }
+
+    private static Result exec(String command, String stdin) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        try (ClientChannel channel = session.createExecChannel(command)) {
+            channel.setOut(out);
+            channel.setErr(err);
+            if (stdin != null) channel.setIn(new ByteArrayInputStream(stdin.getBytes(StandardCharsets.UTF_8)));
+            channel.open().verify(10, TimeUnit.SECONDS);
+            channel.waitFor(EnumSet.of(ClientChannelEvent.CLOSED), TimeUnit.SECONDS.toMillis(60));
+            return new Result(channel.getExitStatus(), out.toString(StandardCharsets.UTF_8), err.toString(StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    @Order(100)
+    public void testExec() throws IOException {
+        Result r = exec("println 'hello'\nanswer + 1", null);
+        assertEquals(0, r.exitCode(), r.err());
+        // no tty translation of line breaks
+        assertEquals("hello\n43\n", r.out());
+
+        r = exec("REPL.versionString", null);
+        assertEquals(0, r.exitCode(), r.err());
+
+        r = exec("exitCode = 3", null);
+        assertEquals(3, r.exitCode());
+
+        r = exec("throw new IllegalStateException('broken')", null);
+        assertEquals(GroovyExecCommand.EXIT_ERROR, r.exitCode());
+        assertTrue(r.err().contains("broken"), r.err());
+
+        r = exec("def x = ", null);
+        assertEquals(GroovyExecCommand.EXIT_COMPILATION_ERROR, r.exitCode());
+    }
+
+    @Test
+    @Order(200)
+    public void testStdin() throws IOException {
+        Result r = exec(GroovyExecCommand.STDIN_COMMAND, "def twice(x) { 2 * x }\nprintln twice(answer)\n");
+        assertEquals(0, r.exitCode(), r.err());
+        assertEquals("84\n", r.out());
+    }
+}
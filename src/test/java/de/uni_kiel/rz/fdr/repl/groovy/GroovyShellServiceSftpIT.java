@@ -0,0 +1,119 @@
+// (C) Copyright 2023 Ove Sörensen
+// SPDX-License-Identifier: MIT
+
+package de.uni_kiel.rz.fdr.repl.groovy;
+
+import org.apache.sshd.client.SshClient;
+import org.apache.sshd.client.session.ClientSession;
+import org.apache.sshd.sftp.client.SftpClient;
+import org.apache.sshd.sftp.client.SftpClientFactory;
+import org.junit.jupiter.api.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+public class GroovyShellServiceSftpIT {
+
+    private static Path workDir;
+    private static GroovyShellService service;
+    private static SshClient client;
+    private static ClientSession session;
+
+    @BeforeAll
+    public static void startService() throws IOException {
+        int port;
+        try (ServerSocket s = new ServerSocket(0)) {
+            port = s.getLocalPort();
+        }
+        workDir = Files.createTempDirectory("cau-repl-sftp");
+        service = new GroovyShellService(port, GroovyShellServiceSftpIT.class.getClassLoader());
+        service.setHost("127.0.0.1");
+        service.setSftpEnabled(true);
+        service.setPasswordAuthenticator((user, password, s) -> password.equals("secret"));
+        service.start(workDir.toFile(), List.of());
+
+        client = SshClient.setUpDefaultClient();
+        client.start();
+        session = client.connect("test", "127.0.0.1", port).verify(10, TimeUnit.SECONDS).getSession();
+        session.addPasswordIdentity("secret");
+        session.auth().verify(10, TimeUnit.SECONDS);
+    }
+
+    @AfterAll
+    public static void stopService() throws IOException {
+        session.close();
+        client.stop();
+        service.destroy();
+    }
+
+    @Test
+    @Order(100)
+    public void testTransfer() throws IOException {
+        byte[] data = new byte[64 * 1024 * 1024];
+        new Random(1).nextBytes(data);
+        Files.write(workDir.resolve("export.bin"), data);
+
+        try (SftpClient sftp = SftpClientFactory.instance().createSftpClient(session)) {
+            byte[] downloaded;
+            try (InputStream in = sftp.read("/export.bin", 64 * 1024)) {
+                downloaded = in.readAllBytes();
+            }
+            assertArrayEquals(data, downloaded);
+
+            // the work directory is served read-only
+            assertThrows(IOException.class, () -> {
+                try (OutputStream out = sftp.write("/upload.bin")) {
+                    out.write(data, 0, 1024);
+                }
+            });
+            assertFalse(Files.exists(workDir.resolve("upload.bin")));
+            assertThrows(IOException.class, () -> sftp.remove("/export.bin"));
+            assertThrows(IOException.class, () -> sftp.mkdir("/newdir"));
+            assertThrows(IOException.class, () -> sftp.rename("/export.bin", "/moved.bin"));
+            assertTrue(Files.exists(workDir.resolve("export.bin")));
+        }
+    }
+
+    @Test
+    @Order(200)
+    public void testRestrictedToWorkDir() throws IOException {
+        try (SftpClient sftp = SftpClientFactory.instance().createSftpClient(session)) {
+            assertEquals("/", sftp.canonicalPath("/../.."));
+            assertThrows(IOException.class, () -> sftp.stat("/../../etc/passwd"));
+            Files.writeString(workDir.resolve("inside.txt"), "x");
+            assertEquals("x", new String(sftp.read("/../inside.txt").readAllBytes()));
+        }
+    }
+
+    @Test
+    @Order(300)
+    public void testHiddenEntries() throws IOException {
+        // the host key is created by the service itself
+        assertTrue(Files.exists(workDir.resolve(GroovyShellService.HOST_KEY_FILENAME)));
+        Files.createDirectories(workDir.resolve(GroovyClassCache.SUBDIR));
+        Files.writeString(workDir.resolve(GroovyClassCache.SUBDIR).resolve("Foo.class"), "x");
+
+        try (SftpClient sftp = SftpClientFactory.instance().createSftpClient(session)) {
+            List<String> names = new ArrayList<>();
+            for (SftpClient.DirEntry e : sftp.readDir("/")) names.add(e.getFilename());
+            assertTrue(names.contains("export.bin"), names.toString());
+            assertFalse(names.contains(GroovyShellService.HOST_KEY_FILENAME), names.toString());
+            assertFalse(names.contains(GroovyClassCache.SUBDIR), names.toString());
+            assertThrows(IOException.class, () -> sftp.read("/" + GroovyShellService.HOST_KEY_FILENAME).readAllBytes());
+            assertThrows(IOException.class, () -> sftp.stat("/" + GroovyClassCache.SUBDIR + "/Foo.class"));
+            assertThrows(IOException.class, () -> sftp.read("/./x/../" + GroovyClassCache.SUBDIR + "/Foo.class").readAllBytes());
+            assertThrows(IOException.class, () -> sftp.openDir("/" + GroovyClassCache.SUBDIR));
+        }
+    }
+}
@@ -4,13 +4,19 @@
 package de.uni_kiel.rz.fdr.repl.groovy;
 
 import de.uni_kiel.rz.fdr.repl.error.CompilationException;
+import de.uni_kiel.rz.fdr.repl.error.UncheckedCompilationException;
+import groovy.lang.GroovyClassLoader;
 import groovy.util.Eval;
 import org.junit.jupiter.api.MethodOrderer;
 import org.junit.jupiter.api.Order;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.TestMethodOrder;
 
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -42,4 +48,281 @@ public class GroovySourceDirectoryIT {
         assertFalse(ex.getMessage().endsWith("<unknown location>"), "The thrown CompilationException does not contain a location.");
     }
 
+    @Test
+    @Order(300)
+    public void testParallelBatches() throws Exception {
+        Path root = Files.createTempDirectory("cau-repl-parallel");
+        Files.createDirectories(root.resolve("common"));
+        Files.writeString(root.resolve("common").resolve("Base.groovy"), """
+                package common
+                abstract class Base {
+                    abstract String hello()
+                    String greet() { "hello from " + hello() }
+                }
+                """);
+        for (int i = 0; i < 32; i++) {
+            Path pkg = Files.createDirectories(root.resolve("p" + i));
+            Files.writeString(pkg.resolve("A.groovy"), "package p" + i + "\nclass A extends common.Base {\n    String hello() { [1, 2, 3].collect { it * " + i + " }.join('-') }\n}\n");
+            Files.writeString(pkg.resolve("B.groovy"), "package p" + i + "\nclass B extends A {\n    String hello() { 'b' + super.hello() }\n}\n");
+        }
+        Files.createDirectories(root.resolve("top"));
+        Files.writeString(root.resolve("top").resolve("Top.groovy"), """
+                package top
+                class Top extends p7.B {
+                    String hello() { "top " + super.hello() }
+                }
+                """);
+
+        int threads = GroovySourceDirectory.COMPILE_THREADS;
+        boolean classCache = GroovySourceDirectory.CLASS_CACHE;
+        try {
+            GroovySourceDirectory.CLASS_CACHE = false;
+            GroovySourceDirectory.COMPILE_THREADS = 1;
+            GroovySourceDirectory sequential = new GroovySourceDirectory(root, new GroovyClassLoader(), null, false, true);
+            GroovySourceDirectory.COMPILE_THREADS = 8;
+            GroovySourceDirectory parallel1 = new GroovySourceDirectory(root, new GroovyClassLoader(), null, false, true);
+            GroovySourceDirectory parallel2 = new GroovySourceDirectory(root, new GroovyClassLoader(), null, false, true);
+
+            List<String> order = sequential.getClasses().stream().map(Class::getName).toList();
+            assertEquals(order, parallel1.getClasses().stream().map(Class::getName).toList());
+            assertEquals(order, parallel2.getClasses().stream().map(Class::getName).toList());
+            Class<?> top = parallel1.getClassLoader().loadClass("top.Top");
+            assertEquals("hello from top b7-14-21", top.getMethod("greet").invoke(top.getConstructor().newInstance()));
+        } finally {
+            GroovySourceDirectory.COMPILE_THREADS = threads;
+            GroovySourceDirectory.CLASS_CACHE = classCache;
+        }
+    }
+
+    @Test
+    @Order(350)
+    public void testParallelBodyReferences() throws Exception {
+        // the compile order only follows supertypes and annotations. classes that are only used in fields, signatures
+        // or method bodies must be found by a parallel compilation whenever a sequential one finds them.
+        Path root = Files.createTempDirectory("cau-repl-parallel-body");
+        Files.createDirectories(root.resolve("common"));
+        Files.writeString(root.resolve("common").resolve("Base.groovy"), """
+                package common
+                abstract class Base {
+                    abstract String hello()
+                }
+                """);
+        for (int i = 0; i < 16; i++) {
+            Path pkg = Files.createDirectories(root.resolve("p" + i));
+            Files.writeString(pkg.resolve("A.groovy"), "package p" + i + "\nclass A extends common.Base {\n    String hello() { 'a" + i + "' }\n}\n");
+            Path user = Files.createDirectories(root.resolve("u" + i));
+            Files.writeString(user.resolve("User.groovy"), "package u" + i + "\nclass User extends common.Base {\n    String hello() { 'u' }\n}\n");
+        }
+
+        int threads = GroovySourceDirectory.COMPILE_THREADS;
+        boolean classCache = GroovySourceDirectory.CLASS_CACHE;
+        try {
+            GroovySourceDirectory.CLASS_CACHE = false;
+            GroovySourceDirectory.COMPILE_THREADS = 1;
+            // the order does not change with the method bodies: let each user refer to a class that is compiled before it
+            List<String> order = new GroovySourceDirectory(root, new GroovyClassLoader(), null, false, true).getClasses().stream().map(Class::getName).toList();
+            Map<String, String> expected = new HashMap<>();
+            String previous = null;
+            for (String c : order) {
+                if (c.endsWith(".A")) {
+                    previous = c;
+                } else if (c.endsWith(".User") && previous != null) {
+                    String pkg = c.substring(0, c.indexOf('.'));
+                    Files.writeString(root.resolve(pkg).resolve("User.groovy"), "package " + pkg + "\nclass User extends common.Base {\n    " + previous + " a = null\n    String hello() { 'u' + new " + previous + "().hello() }\n}\n");
+                    expected.put(c, "ua" + previous.substring(1, previous.indexOf('.')));
+                }
+            }
+            assertFalse(expected.isEmpty());
+
+            for (int t : new int[]{1, 8}) {
+                GroovySourceDirectory.COMPILE_THREADS = t;
+                GroovySourceDirectory dir = new GroovySourceDirectory(root, new GroovyClassLoader(), null, false, true);
+                assertEquals(order, dir.getClasses().stream().map(Class::getName).toList());
+                for (Map.Entry<String, String> e : expected.entrySet()) {
+                    Class<?> user = dir.getClassLoader().loadClass(e.getKey());
+                    assertEquals(e.getValue(), user.getMethod("hello").invoke(user.getConstructor().newInstance()), t + " threads");
+                }
+            }
+        } finally {
+            GroovySourceDirectory.COMPILE_THREADS = threads;
+            GroovySourceDirectory.CLASS_CACHE = classCache;
+        }
+    }
+
+    @Test
+    @Order(400)
+    public void testScannedCompileOrder() throws Exception {
+        Path root = Path.of("src", "test", "resources", "groovyIT").toAbsolutePath();
+        Path extra = Files.createTempDirectory("cau-repl-scan");
+        Files.createDirectories(extra.resolve("scan"));
+        Files.writeString(extra.resolve("scan").resolve("Base.groovy"), """
+                package scan
+                import groovy.transform.CompileStatic
+                /* class Commented extends Nothing { */
+                @CompileStatic
+                abstract class Base<T extends Map<String, List<T>>> implements Comparable<Base>, Serializable {
+                    String s = "class Fake extends Base { ${ [1, 2].collect { it } } }"
+                    static class Inner extends Base { int compareTo(Base o) { 0 } }
+                    interface Marker {}
+                }
+                """);
+        Files.writeString(extra.resolve("scan").resolve("Script.groovy"), """
+                package scan
+                def r = new Runnable() { void run() { new test1.GAA() } }
+                println(new other.User() {})
+                """);
+        Files.createDirectories(extra.resolve("other"));
+        Files.writeString(extra.resolve("other").resolve("User.groovy"), """
+                package other
+                import scan.Base as B
+                class User extends B {
+                    int compareTo(B o) { 1 }
+                }
+                enum Kind implements scan.Base.Marker { A, B { String x() { "b" } } }
+                """);
+        // neither Foo.class nor members called trait or record declare a class
+        Files.createDirectories(extra.resolve("pkga"));
+        Files.writeString(extra.resolve("pkga").resolve("C.groovy"), """
+                package pkga
+                import pkgz.Use
+                class C extends Use {}
+                """);
+        Files.createDirectories(extra.resolve("pkgz"));
+        Files.writeString(extra.resolve("pkgz").resolve("Util.groovy"), """
+                package pkgz
+                def trait = 1
+                class Use {}
+                """);
+        Files.writeString(extra.resolve("pkgz").resolve("Holder.groovy"), """
+                package pkgz
+                class Holder {
+                    Class k = String.class
+                    int trait = 2
+                    def record(x) { [class: x] }
+                    static class Inner extends pkga.C {}
+                }
+                """);
+        String classPath = System.getProperty("java.class.path");
+        GroovySourceDirectory dir = new GroovySourceDirectory(root, List.of(), new GroovyClassLoader(), classPath, true);
+        for (Path p : List.of(root, extra)) {
+            List<java.io.File> files = GroovySourceDirectory.findSources(p);
+            List<java.util.Set<java.net.URI>> scanned = dir.determineCompileOrder(files).getCompileOrder();
+            List<java.util.Set<java.net.URI>> parsed = dir.parseCompileOrder(files).getCompileOrder();
+            assertEquals(parsed, scanned);
+        }
+
+        List<GroovyHeaderScanner.ClassHeader> headers = GroovyHeaderScanner.scan("""
+                package p
+                class A {
+                    Class k = A.class
+                    def trait() { 1 }
+                    String record = "r"
+                    @Deprecated
+                    static class B extends A {}
+                }
+                """, "p/A.groovy", java.util.Map.of());
+        assertEquals(List.of("p.A", "p.A$B"), headers.stream().map(GroovyHeaderScanner.ClassHeader::name).toList());
+        assertEquals("A", headers.get(1).superClass());
+        assertEquals(List.of("Deprecated"), headers.get(1).annotations().stream().map(GroovyHeaderScanner.Annotation::name).toList());
+        // anything unexpected makes the caller fall back to the parser
+        assertThrows(GroovyHeaderScanner.ScanException.class, () -> GroovyHeaderScanner.scan("class A extends B C {}", "A.groovy", java.util.Map.of()));
+        assertThrows(GroovyHeaderScanner.ScanException.class, () -> GroovyHeaderScanner.scan("class A { int class = 1 }", "A.groovy", java.util.Map.of()));
+    }
+
+    @Test
+    @Order(500)
+    public void testLoadOrder() throws Exception {
+        Path root = Files.createTempDirectory("cau-repl-loadorder");
+        Files.createDirectories(root.resolve("big"));
+        StringBuilder sb = new StringBuilder("package big\nclass Big {\n    interface Marker {}\n");
+        // declared in reverse, so that the classes can't simply be loaded in the order of their declaration
+        for (int i = 1499; i >= 0; i--) {
+            sb.append("    static class C").append(i);
+            if (i % 10 != 0) sb.append(" extends C").append(i - 1);
+            if (i % 3 == 0) sb.append(" implements Marker");
+            sb.append(" {\n        static class Inner {}\n        def f() { [").append(i).append("].collect { it + 1 } }\n    }\n");
+        }
+        sb.append("}\n");
+        Files.writeString(root.resolve("big").resolve("Big.groovy"), sb.toString());
+
+        boolean classCache = GroovySourceDirectory.CLASS_CACHE;
+        try {
+            GroovySourceDirectory.CLASS_CACHE = false;
+            GroovySourceDirectory dir = new GroovySourceDirectory(root, new GroovyClassLoader(), null, false, false);
+            List<Class<?>> classes = dir.getClasses();
+            assertTrue(classes.size() > 4500, "expected at least 4500 classes, got " + classes.size());
+
+            java.util.Map<String, Integer> position = new java.util.HashMap<>();
+            for (Class<?> c : classes) position.put(c.getName(), position.size());
+            for (Class<?> c : classes) {
+                List<Class<?>> dependencies = new java.util.ArrayList<>(List.of(c.getInterfaces()));
+                if (c.getSuperclass() != null) dependencies.add(c.getSuperclass());
+                if (c.getEnclosingClass() != null) dependencies.add(c.getEnclosingClass());
+                for (Class<?> d : dependencies) {
+                    Integer p = position.get(d.getName());
+                    if (p != null) assertTrue(p < position.get(c.getName()), d.getName() + " was loaded after " + c.getName());
+                }
+            }
+            Class<?> c = dir.getClassLoader().loadClass("big.Big$C1499");
+            assertEquals(List.of(1500), c.getMethod("f").invoke(c.getConstructor().newInstance()));
+        } finally {
+            GroovySourceDirectory.CLASS_CACHE = classCache;
+        }
+    }
+
+    @Test
+    @Order(600)
+    public void testCompileOrderCycles() throws Exception {
+        String classPath = System.getProperty("java.class.path");
+        GroovySourceDirectory dir = new GroovySourceDirectory(Path.of("src", "test", "resources", "groovyIT").toAbsolutePath(), List.of(), new GroovyClassLoader(), classPath, true);
+
+        // the classes of a package may all depend on one another, which used to make the cycle detection explode
+        Path flat = Files.createTempDirectory("cau-repl-flat");
+        Files.createDirectories(flat.resolve("flat"));
+        Files.writeString(flat.resolve("flat").resolve("C0.groovy"), "package flat\nclass C0 {}\n");
+        for (int i = 1; i < 60; i++) Files.writeString(flat.resolve("flat").resolve("C" + i + ".groovy"), "package flat\nclass C" + i + " extends C" + (i - 1) + " {}\n");
+        List<java.io.File> files = GroovySourceDirectory.findSources(flat);
+        List<java.util.Set<java.net.URI>> order = dir.determineCompileOrder(files).getCompileOrder();
+        assertEquals(1, order.size());
+        assertEquals(60, order.get(0).size());
+
+        // two @Patches classes that depend on one another through other classes of their package
+        Path cyclic = Files.createTempDirectory("cau-repl-cyclic");
+        Files.createDirectories(cyclic.resolve("test1"));
+        Files.writeString(cyclic.resolve("test1").resolve("PB.groovy"), "package test1\nimport de.uni_kiel.rz.fdr.repl.Patches\n@Patches\nclass PB implements Helper {}\n");
+        Files.writeString(cyclic.resolve("test1").resolve("PC.groovy"), "package test1\nimport de.uni_kiel.rz.fdr.repl.Patches\n@Patches\nclass PC {}\n");
+        Files.writeString(cyclic.resolve("test1").resolve("Helper.groovy"), "package test1\ninterface Helper {}\n");
+        Files.writeString(cyclic.resolve("test1").resolve("Helper2.groovy"), "package test1\nclass Helper2 extends PC {}\n");
+        List<java.io.File> cyclicFiles = GroovySourceDirectory.findSources(cyclic);
+        UncheckedCompilationException ex = assertThrows(UncheckedCompilationException.class, () -> dir.determineCompileOrder(cyclicFiles).getCompileOrder());
+        assertTrue(ex.getMessage().startsWith("Cyclic @Patches classes detected: test1.PB -> "), ex.getMessage());
+        assertTrue(ex.getMessage().contains(" -> test1.PC -> "), ex.getMessage());
+        assertTrue(ex.getMessage().endsWith(" -> test1.PB"), ex.getMessage());
+    }
+
+    @Test
+    @Order(700)
+    public void testInMemoryCompilation() throws Exception {
+        Path root = Files.createTempDirectory("cau-repl-memory");
+        Files.createDirectories(root.resolve("memory"));
+        Files.writeString(root.resolve("memory").resolve("M.groovy"), "package memory\nclass M {\n    def f() { [1, 2].collect { it * 2 } }\n}\n");
+        boolean classCache = GroovySourceDirectory.CLASS_CACHE;
+        try {
+            GroovySourceDirectory.CLASS_CACHE = false;
+            // a plain ClassLoader, so that the classes are defined through ClassLoader.defineClass()
+            java.net.URLClassLoader loader = new java.net.URLClassLoader(new java.net.URL[0], getClass().getClassLoader());
+            GroovySourceDirectory dir = new GroovySourceDirectory(root, loader, null, false, true);
+            assertEquals(List.of("memory.M", "memory.M$_f_closure1"), dir.getClasses().stream().map(Class::getName).toList());
+            Class<?> m = loader.loadClass("memory.M");
+            assertSame(loader, m.getClassLoader());
+            assertEquals(List.of(2, 4), m.getMethod("f").invoke(m.getConstructor().newInstance()));
+            // no class files were written, neither next to the sources nor into the working directory
+            try (java.util.stream.Stream<Path> w = Files.walk(root)) {
+                assertTrue(w.noneMatch(p -> p.toString().endsWith(".class")));
+            }
+            assertFalse(Files.exists(Path.of("memory")));
+        } finally {
+            GroovySourceDirectory.CLASS_CACHE = classCache;
+        }
+    }
 }
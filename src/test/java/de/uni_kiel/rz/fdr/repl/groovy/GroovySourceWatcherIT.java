@@ -0,0 +1,110 @@
+// (C) Copyright 2024 Ove Sörensen
+// SPDX-License-Identifier: MIT
+
+package de.uni_kiel.rz.fdr.repl.groovy;
+
+import groovy.lang.GroovyClassLoader;
+import org.junit.jupiter.api.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+public class GroovySourceWatcherIT {
+
+    private static Path root;
+    private static Path pkg;
+    private static GroovySourceWatcher watcher;
+    private static final LinkedBlockingQueue<GroovySourceWatcher.Result> results = new LinkedBlockingQueue<>();
+
+    @BeforeAll
+    public static void createSources() throws Exception {
+        root = Files.createTempDirectory("cau-repl-watch");
+        pkg = Files.createDirectories(root.resolve("watch"));
+        Files.writeString(pkg.resolve("Base.groovy"), base("base"));
+        Files.writeString(pkg.resolve("Child.groovy"), """
+                package watch
+                class Child extends Base {
+                    String hello() { "child of " + super.hello() }
+                }
+                """);
+        Files.writeString(pkg.resolve("Other.groovy"), """
+                package watch
+                class Other {
+                    String hello() { "other" }
+                }
+                """);
+        GroovySourceDirectory dir = new GroovySourceDirectory(root, new GroovyClassLoader(), null, false, false);
+        watcher = new GroovySourceWatcher(dir).setListener(results::add).start();
+    }
+
+    @AfterAll
+    public static void stopWatcher() throws Exception {
+        watcher.close();
+    }
+
+    private static String base(String greeting) {
+        return "package watch\nclass Base {\n    String hello() { \"" + greeting + "\" }\n}\n";
+    }
+
+    private static Object call(String className) throws Exception {
+        Class<?> klass = watcher.getClassLoader().loadClass(className);
+        return klass.getMethod("hello").invoke(klass.getConstructor().newInstance());
+    }
+
+    @Test
+    @Order(100)
+    public void testRecompileDependents() throws Exception {
+        assertEquals("child of base", call("watch.Child"));
+        assertEquals(List.of(pkg.resolve("Base.groovy"), pkg.resolve("Child.groovy")), List.copyOf(watcher.dependents(List.of(pkg.resolve("Base.groovy")))));
+        ClassLoader before = watcher.getClassLoader();
+        Class<?> other = before.loadClass("watch.Other");
+
+        Files.writeString(pkg.resolve("Base.groovy"), base("new base"));
+        GroovySourceWatcher.Result result = results.poll(30, TimeUnit.SECONDS);
+        assertNotNull(result);
+        assertNull(result.error());
+        assertEquals(List.of(pkg.resolve("Base.groovy")), result.changed());
+        assertEquals(List.of(pkg.resolve("Base.groovy"), pkg.resolve("Child.groovy")), result.compiled());
+        assertTrue(result.millis() >= 0);
+
+        assertNotSame(before, watcher.getClassLoader());
+        assertEquals("new base", call("watch.Base"));
+        assertEquals("child of new base", call("watch.Child"));
+        assertSame(other, watcher.getClassLoader().loadClass("watch.Other"));
+    }
+
+    @Test
+    @Order(200)
+    public void testCompilationError() throws Exception {
+        ClassLoader previous = watcher.getClassLoader();
+        Files.writeString(pkg.resolve("Base.groovy"), "package watch\nclass Base {\n");
+        GroovySourceWatcher.Result result = results.poll(30, TimeUnit.SECONDS);
+        assertNotNull(result);
+        assertNotNull(result.error());
+        assertEquals("child of new base", call("watch.Child"));
+
+        // the failed file stays pending and is compiled along with the next change
+        Files.writeString(pkg.resolve("Other.groovy"), """
+                package watch
+                class Other {
+                    String hello() { "new other" }
+                }
+                """);
+        Files.writeString(pkg.resolve("Base.groovy"), base("fixed base"));
+        result = results.poll(30, TimeUnit.SECONDS);
+        assertNotNull(result);
+        assertNull(result.error());
+        assertEquals(List.of(pkg.resolve("Base.groovy"), pkg.resolve("Child.groovy"), pkg.resolve("Other.groovy")), result.compiled());
+        assertEquals("child of fixed base", call("watch.Child"));
+        assertEquals("new other", call("watch.Other"));
+        // all classes of the previous compilation were replaced, so its ClassLoader must not be reachable anymore
+        for (ClassLoader l = watcher.getClassLoader(); l != null; l = l.getParent()) assertNotSame(previous, l);
+        assertNotSame(previous, watcher.getClassLoader().getParent().loadClass("watch.Base").getClassLoader());
+    }
+}
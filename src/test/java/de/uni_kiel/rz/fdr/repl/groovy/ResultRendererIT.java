@@ -0,0 +1,103 @@
+// (C) Copyright 2023 Ove Sörensen
+// SPDX-License-Identifier: MIT
+
+package de.uni_kiel.rz.fdr.repl.groovy;
+
+import org.codehaus.groovy.runtime.FormatHelper;
+import org.junit.jupiter.api.MethodOrderer;
+import org.junit.jupiter.api.Order;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestMethodOrder;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+public class ResultRendererIT {
+
+    // a huge collection that only exists while it is iterated
+    private static class LazyList extends AbstractList<String> {
+        private final int size;
+        final AtomicInteger fetched = new AtomicInteger();
+
+        LazyList(int size) {
+            this.size = size;
+        }
+
+        @Override
+        public String get(int index) {
+            fetched.incrementAndGet();
+            return "element " + index;
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+
+    private static String render(ResultRenderer renderer, Object value) throws IOException {
+        StringWriter sw = new StringWriter();
+        renderer.render(value, sw);
+        return sw.toString();
+    }
+
+    @Test
+    @Order(100)
+    public void testFormat() throws IOException {
+        ResultRenderer renderer = new ResultRenderer(0, 0, 0, () -> false);
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("a", 1);
+        map.put("b", List.of("x", "y"));
+        map.put("c", new int[]{1, 2});
+        map.put("d", null);
+        List<Object> values = List.of(1, "text", List.of(), Map.of(), List.of(1, List.of(2, 3)), map, new Object[]{"z", 4}, new HashSet<>(List.of(5)),
+                new char[]{'a', 'b'}, new char[0], List.of(new char[]{'c'}, 6));
+        for (Object v : values) assertEquals(FormatHelper.toString(v), render(renderer, v));
+        assertEquals("null", render(renderer, null));
+
+        List<Object> self = new ArrayList<>();
+        self.add(1);
+        self.add(self);
+        assertEquals("[1, (this Collection)]", render(renderer, self));
+    }
+
+    @Test
+    @Order(200)
+    public void testLimits() throws IOException {
+        LazyList huge = new LazyList(100_000_000);
+        String s = render(new ResultRenderer(0, 3, 0, () -> false), huge);
+        assertEquals("[element 0, element 1, element 2, ... 99999997 more]", s);
+        assertEquals(3, huge.fetched.get());
+
+        huge = new LazyList(100_000_000);
+        s = render(new ResultRenderer(1000, 0, 0, () -> false), huge);
+        assertTrue(s.startsWith("[element 0, element 1"), s);
+        assertTrue(s.endsWith(" ... (output truncated after 1000 characters)"), s);
+        assertTrue(huge.fetched.get() < 1000, "fetched " + huge.fetched.get());
+
+        huge = new LazyList(100_000_000);
+        s = render(new ResultRenderer(0, 0, 100, () -> false), huge);
+        assertTrue(s.endsWith(" ... (output stopped after 100ms)"), s.substring(Math.max(0, s.length() - 100)));
+
+        AtomicInteger polls = new AtomicInteger();
+        s = render(new ResultRenderer(0, 0, 0, () -> polls.incrementAndGet() > 5), new LazyList(100_000_000));
+        assertEquals("[element 0, element 1, element 2, element 3, element 4 ... (interrupted)", s);
+    }
+
+    @Test
+    @Order(300)
+    public void testCtrlC() throws IOException {
+        ShellInputStream in = new ShellInputStream(new ByteArrayInputStream(new byte[]{'a', 'b', ShellInputStream.CTRL_C, 'c'}));
+        assertTrue(in.pollInterrupt());
+        assertFalse(in.pollInterrupt());
+        // the rest of the input is kept for the shell
+        assertEquals("abc", new String(in.readAllBytes(), StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,60 @@
+// (C) Copyright 2023 Ove Sörensen
+// SPDX-License-Identifier: MIT
+
+package de.uni_kiel.rz.fdr.repl.groovy;
+
+import groovy.lang.GroovyClassLoader;
+import org.junit.jupiter.api.MethodOrderer;
+import org.junit.jupiter.api.Order;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestMethodOrder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+@TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+public class SessionAccountingIT {
+    @Test
+    @Order(100)
+    public void testAccounting() throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        GroovyClassLoader loader = new GroovyClassLoader();
+        Thread busy = new Thread(() -> {
+            // burn some CPU and memory, like a heavy shell command would
+            List<byte[]> garbage = new ArrayList<>();
+            long t0 = System.nanoTime();
+            while (System.nanoTime() - t0 < TimeUnit.MILLISECONDS.toNanos(300)) {
+                garbage.add(new byte[1024]);
+                if (garbage.size() > 1000) garbage.clear();
+            }
+            loader.parseClass("class SessionAccountingITFoo {}; class SessionAccountingITBar {}");
+            done.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException ignore) {}
+        });
+        SessionAccounting idle = new SessionAccounting(Thread.currentThread(), null);
+        SessionAccounting accounting = new SessionAccounting(busy, loader);
+        busy.start();
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+
+        long cpu = accounting.getCpuNanos();
+        long allocated = accounting.getAllocatedBytes();
+        assumeTrue(cpu >= 0, "thread cpu time is not supported");
+        assertTrue(cpu >= TimeUnit.MILLISECONDS.toNanos(100), "cpu: " + cpu);
+        if (allocated >= 0) assertTrue(allocated >= 1024 * 1024, "allocated: " + allocated);
+        assertEquals(2, accounting.getClasses());
+        assertEquals(0, idle.getClasses());
+
+        release.countDown();
+        busy.join();
+        // the session's thread is gone
+        assertEquals(-1, accounting.getCpuNanos());
+    }
+}
@@ -0,0 +1,92 @@
+// (C) Copyright 2023 Ove Sörensen
+// SPDX-License-Identifier: MIT
+
+package de.uni_kiel.rz.fdr.repl.groovy;
+
+import org.junit.jupiter.api.MethodOrderer;
+import org.junit.jupiter.api.Order;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestMethodOrder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+public class ShellOutputQueueIT {
+    @Test
+    @Order(100)
+    public void testStalledClient() throws InterruptedException {
+        // a client that does not accept any data until released
+        CountDownLatch release = new CountDownLatch(1);
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        OutputStream stalled = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                synchronized (received) {
+                    received.write(b, off, len);
+                }
+            }
+        };
+        ShellOutputQueue queue = new ShellOutputQueue(new PrintStream(stalled, true, StandardCharsets.UTF_8), "ShellOutputQueueIT", 100, () -> {});
+
+        long t0 = System.nanoTime();
+        for (int i = 0; i < 10000; i++) queue.offer("line " + i);
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - t0);
+        assertTrue(millis < 2000, "producer was blocked for " + millis + "ms");
+
+        release.countDown();
+        String text = "";
+        for (int i = 0; i < 100 && !text.contains("line 9999"); i++) {
+            Thread.sleep(50);
+            synchronized (received) {
+                text = received.toString(StandardCharsets.UTF_8);
+            }
+        }
+        assertTrue(text.contains("line 9999"), text);
+        assertTrue(text.contains("messages were dropped"), text);
+        // the queue keeps the most recent lines
+        assertTrue(text.contains("line 9900"), text);
+        assertFalse(text.contains("line 5000" + System.lineSeparator()), text);
+        queue.close();
+    }
+
+    @Test
+    @Order(200)
+    public void testBrokenClient() throws InterruptedException {
+        CountDownLatch failed = new CountDownLatch(1);
+        AtomicBoolean removed = new AtomicBoolean(false);
+        OutputStream broken = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("connection reset");
+            }
+        };
+        ShellOutputQueue queue = new ShellOutputQueue(new PrintStream(broken, true, StandardCharsets.UTF_8), "ShellOutputQueueIT", 100, () -> {
+            removed.set(true);
+            failed.countDown();
+        });
+        queue.offer("hello");
+        assertTrue(failed.await(5, TimeUnit.SECONDS));
+        assertTrue(removed.get());
+        // further output is silently discarded
+        queue.offer("world");
+    }
+}
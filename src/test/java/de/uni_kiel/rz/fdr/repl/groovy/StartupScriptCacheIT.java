@@ -0,0 +1,129 @@
+// (C) Copyright 2023 Ove Sörensen
+// SPDX-License-Identifier: MIT
+
+package de.uni_kiel.rz.fdr.repl.groovy;
+
+import groovy.lang.Binding;
+import groovy.lang.Closure;
+import org.apache.groovy.groovysh.Groovysh;
+import org.codehaus.groovy.tools.shell.IO;
+import org.junit.jupiter.api.MethodOrderer;
+import org.junit.jupiter.api.Order;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestMethodOrder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Objects;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+public class StartupScriptCacheIT {
+
+    private static Groovysh newShell(ByteArrayOutputStream out) {
+        Binding binding = new Binding();
+        Groovysh shell = new Groovysh(StartupScriptCacheIT.class.getClassLoader(), binding, new IO(new ByteArrayInputStream(new byte[0]), out, out));
+        shell.setResultHook(new Closure<>(shell) {
+            @Override
+            public Object call(Object... args) {
+                return null;
+            }
+        });
+        return shell;
+    }
+
+    private static File tempScript(String text) throws IOException {
+        File f = File.createTempFile("cau-repl.", ".groovy");
+        f.deleteOnExit();
+        Files.writeString(f.toPath(), text);
+        return f;
+    }
+
+    @Test
+    @Order(100)
+    public void testCompiledOnce() throws IOException {
+        File base = tempScript("""
+                import java.time.Duration
+
+                def static twice(x) { return 2 * x }
+                def minutes(long m) { return Duration.ofMinutes(m) }
+                counter = (binding.hasVariable('counter') ? counter : 0) + 1
+                """);
+        // uses the import and the methods of the first script, just like :load-ed scripts can
+        File later = tempScript("""
+                fromLater = { -> twice(minutes(3).toMinutes()) }
+                laterDuration = Duration.ofSeconds(5)
+                """);
+        File commands = tempScript("""
+                :set interpreterMode false
+                fromCommands = 42
+                """);
+        List<String> scripts = List.of(base.getAbsolutePath(), later.getAbsolutePath(), commands.getAbsolutePath());
+
+        StartupScriptCache cache = new StartupScriptCache();
+        Class<?> first = null;
+        for (int session = 0; session < 3; session++) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            Groovysh shell = newShell(out);
+            cache.load(shell, scripts, getClass().getClassLoader());
+            Binding binding = shell.getInterp().getContext();
+            assertEquals(1, binding.getVariable("counter"), out.toString());
+            assertEquals(6L, ((Closure<?>) binding.getVariable("fromLater")).call());
+            assertEquals(42, binding.getVariable("fromCommands"));
+            assertTrue(shell.getImports().contains("java.time.Duration"));
+            // methods and imports are available to the user's input
+            assertEquals(8, shell.execute("twice(4)"));
+            assertEquals(120L, shell.execute("minutes(2).toSeconds()"));
+
+            Class<?> klass = ((Closure<?>) binding.getVariable("fromLater")).getOwner().getClass();
+            if (first == null) first = klass;
+            assertSame(first, klass);
+        }
+
+        // modified scripts are recompiled
+        Files.writeString(later.toPath(), "fromLater = { -> twice(21) }\n");
+        assertTrue(later.setLastModified(later.lastModified() + 2000));
+        Groovysh shell = newShell(new ByteArrayOutputStream());
+        cache.load(shell, scripts, getClass().getClassLoader());
+        assertEquals(42, ((Closure<?>) shell.getInterp().getContext().getVariable("fromLater")).call());
+    }
+
+    @Test
+    @Order(200)
+    public void testBaseScript() throws IOException {
+        File base;
+        try (InputStream in = Objects.requireNonNull(getClass().getResourceAsStream("/repl-groovy-base.groovy"))) {
+            base = File.createTempFile("cau-repl.", ".groovy");
+            base.deleteOnExit();
+            Files.copy(in, base.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        List<String> scripts = List.of(base.getAbsolutePath());
+
+        Groovysh loaded = newShell(new ByteArrayOutputStream());
+        long t0 = System.nanoTime();
+        loaded.getRegistry().find(":load").execute(scripts);
+        long load = System.nanoTime() - t0;
+
+        StartupScriptCache cache = new StartupScriptCache();
+        cache.load(newShell(new ByteArrayOutputStream()), scripts, getClass().getClassLoader());
+        Groovysh cached = newShell(new ByteArrayOutputStream());
+        t0 = System.nanoTime();
+        cache.load(cached, scripts, getClass().getClassLoader());
+        long instantiate = System.nanoTime() - t0;
+
+        // the session looks the same as one that :load-ed the script
+        for (Object variable : loaded.getInterp().getContext().getVariables().keySet()) {
+            if (variable.equals("_")) continue; // the shell's last result
+            assertTrue(cached.getInterp().getContext().hasVariable(variable.toString()), variable.toString());
+        }
+        assertTrue(cached.getImports().containsAll(loaded.getImports()), cached.getImports() + " vs " + loaded.getImports());
+        assertTrue(instantiate < load, "cached: " + instantiate + "ns, :load: " + load + "ns");
+    }
+}
@@ -0,0 +1,14 @@
+// (C) Copyright 2024 Ove Sörensen
+// SPDX-License-Identifier: MIT
+
+package test3;
+
+public class Greeter {
+    public String greet() {
+        return "hello";
+    }
+
+    public class Inner {
+        public String origin = "Greeter";
+    }
+}